@@ -0,0 +1,35 @@
+package beastlabs.benchmark;
+
+import org.openjdk.jmh.annotations.Param;
+
+/**
+ * Benchmarks the likelihood cores that support any number of states on amino acid (20)
+ * and codon (61) sized state spaces.
+ * BeerLikelihoodCoreNative is left out of the default grid since it needs libBEER on
+ * the java.library.path; add it with -p core=BeerLikelihoodCoreNative
+ */
+public class GeneralCoreBenchmark extends LikelihoodCoreBenchmark {
+
+	@Param({"BeerLikelihoodCoreCached", "BeerLikelihoodCoreCnG", "BeerLikelihoodCoreJava",
+			"BeerLikelihoodCoreSimple", "ExpBeerLikelihoodCore", "ParallelBeerLikelihoodCore", "OffHeapBeerLikelihoodCore", "FloatBeerLikelihoodCore"})
+	public String core;
+
+	@Param({"20", "61"})
+	public int stateCount;
+
+	@Param({"100", "1000", "10000", "100000"})
+	public int patternCount;
+
+	@Param({"1", "4", "8"})
+	public int categoryCount;
+
+	@Override
+	String getCore() {return core;}
+	@Override
+	int getStateCount() {return stateCount;}
+	@Override
+	int getPatternCount() {return patternCount;}
+	@Override
+	int getCategoryCount() {return categoryCount;}
+
+} // class GeneralCoreBenchmark
@@ -0,0 +1,184 @@
+package beastlabs.benchmark;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import beastlabs.evolution.likelihood.ExperimentalLikelihoodCore;
+
+/**
+ * Per kernel benchmarks for ExperimentalLikelihoodCore implementations.
+ * 
+ * The core is set up for a five taxon tree ((0,1)5,2)6 and (3,4)7 joined at root 8,
+ * so that the states/states, states/partials and partials/partials kernels each
+ * get their own benchmark. Leaf states and transition matrices are random, with
+ * about 5% gaps in the leaf states.
+ * 
+ * Subclasses provide the grid of cores, state counts, pattern counts and
+ * category counts through JMH parameters.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector", "-Xmx8g"})
+public abstract class LikelihoodCoreBenchmark {
+	final static String CORE_PACKAGE = "beastlabs.evolution.likelihood.";
+	final static int LEAF_COUNT = 5;
+	final static int NODE_COUNT = 2 * LEAF_COUNT - 1;
+	final static int ROOT = NODE_COUNT - 1;
+
+	ExperimentalLikelihoodCore core;
+	double [][] matrices; // #nodes x (#categories * #states * #states)
+	double [] proportions;
+	double [] frequencies;
+	int nCategories;
+
+	/** name of the core class, relative to the beastlabs.evolution.likelihood package **/
+	abstract String getCore();
+	abstract int getStateCount();
+	abstract int getPatternCount();
+	abstract int getCategoryCount();
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		int nStates = getStateCount();
+		int nPatterns = getPatternCount();
+		nCategories = getCategoryCount();
+		core = newCore(getCore(), nStates);
+		Random random = new Random(127);
+
+		core.initialize(NODE_COUNT, nPatterns, nCategories, true, false);
+		for (int iNode = 0; iNode < LEAF_COUNT; iNode++) {
+			int [] states = new int[nPatterns];
+			for (int k = 0; k < nPatterns; k++) {
+				// state == nStates is the gap/unknown state
+				states[k] = random.nextDouble() < 0.05 ? nStates : random.nextInt(nStates);
+			}
+			core.setNodeStates(iNode, states);
+		}
+		for (int iNode = LEAF_COUNT; iNode < NODE_COUNT; iNode++) {
+			core.createNodePartials(iNode);
+		}
+		int [] weights = new int[nPatterns];
+		Arrays.fill(weights, 1);
+		core.setPatternWeights(weights);
+
+		// random rows normalised to sum to 1, in the (nStates+1)^2 buffer padded with 1s the tree likelihood uses 
+		matrices = new double[NODE_COUNT][nCategories * (nStates + 1) * (nStates + 1)];
+		for (int iNode = 0; iNode < ROOT; iNode++) {
+			Arrays.fill(matrices[iNode], 1.0);
+			for (int l = 0; l < nCategories; l++) {
+				int offset = l * (nStates + 1) * (nStates + 1);
+				for (int i = 0; i < nStates; i++) {
+					double sum = 0;
+					for (int j = 0; j < nStates; j++) {
+						matrices[iNode][offset + i * nStates + j] = random.nextDouble();
+						sum += matrices[iNode][offset + i * nStates + j];
+					}
+					for (int j = 0; j < nStates; j++) {
+						matrices[iNode][offset + i * nStates + j] /= sum;
+					}
+				}
+			}
+			setNodeMatrix(iNode);
+		}
+		proportions = new double[nCategories];
+		Arrays.fill(proportions, 1.0 / nCategories);
+		frequencies = new double[nStates];
+		Arrays.fill(frequencies, 1.0 / nStates);
+
+		// populate all partials once, so every kernel has valid input
+		for (int iNode = LEAF_COUNT; iNode < NODE_COUNT; iNode++) {
+			core.setNodePartialsForUpdate(iNode);
+		}
+		core.calculatePartials(0, 1, 5);
+		core.calculatePartials(2, 5, 6);
+		core.calculatePartials(3, 4, 7);
+		core.calculatePartials(6, 7, 8);
+		core.calcLogP(ROOT, proportions, frequencies);
+		core.store();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Throwable {
+		core.finalize();
+	}
+
+	/** instantiate core by class name, using the no-argument constructor for the 4 state specialisations **/
+	static ExperimentalLikelihoodCore newCore(String sCore, int nStates) throws Exception {
+		Class<?> coreClass = Class.forName(CORE_PACKAGE + sCore);
+		try {
+			return (ExperimentalLikelihoodCore) coreClass.getConstructor(int.class).newInstance(nStates);
+		} catch (NoSuchMethodException e) {
+			if (nStates != 4) {
+				throw new IllegalArgumentException(sCore + " only supports 4 states");
+			}
+			return (ExperimentalLikelihoodCore) coreClass.getConstructor().newInstance();
+		}
+	}
+
+	private void setNodeMatrix(int iNode) {
+		int nMatrixSize = (getStateCount() + 1) * (getStateCount() + 1);
+		double [] fMatrix = new double[nMatrixSize];
+		core.setNodeMatrixForUpdate(iNode);
+		for (int l = 0; l < nCategories; l++) {
+			System.arraycopy(matrices[iNode], l * nMatrixSize, fMatrix, 0, nMatrixSize);
+			core.setNodeMatrix(iNode, l, fMatrix);
+		}
+	}
+
+	/** some cores only queue operations in calculatePartials, processStack() does the work for those **/
+	@Benchmark
+	public void calculatePartialsStatesStates() {
+		core.setNodePartialsForUpdate(5);
+		core.calculatePartials(0, 1, 5);
+		core.processStack();
+	}
+
+	@Benchmark
+	public void calculatePartialsStatesPartials() {
+		core.setNodePartialsForUpdate(6);
+		core.calculatePartials(2, 5, 6);
+		core.processStack();
+	}
+
+	@Benchmark
+	public void calculatePartialsPartialsPartials() {
+		core.setNodePartialsForUpdate(ROOT);
+		core.calculatePartials(6, 7, ROOT);
+		core.processStack();
+	}
+
+	@Benchmark
+	public void calcLogP(Blackhole blackhole) {
+		blackhole.consume(core.calcLogP(ROOT, proportions, frequencies));
+	}
+
+	@Benchmark
+	public void storeRestore() {
+		core.store();
+		core.restore();
+	}
+
+	@Benchmark
+	public void setNodeMatrix() {
+		setNodeMatrix(0);
+	}
+
+} // class LikelihoodCoreBenchmark
@@ -0,0 +1,34 @@
+package beastlabs.benchmark;
+
+import org.openjdk.jmh.annotations.Param;
+
+/**
+ * Benchmarks all likelihood cores, including the 4 state specialisations, on nucleotide data.
+ * BeerLikelihoodCoreNative is left out of the default grid since it needs libBEER on
+ * the java.library.path; add it with -p core=BeerLikelihoodCoreNative
+ */
+public class NucleotideCoreBenchmark extends LikelihoodCoreBenchmark {
+
+	@Param({"BeerLikelihoodCoreCached", "BeerLikelihoodCoreCached4",
+			"BeerLikelihoodCoreCnG", "BeerLikelihoodCoreCnG4", "BeerLikelihoodCoreCnG4Padded",
+			"BeerLikelihoodCoreJava", "BeerLikelihoodCoreJava4",
+			"BeerLikelihoodCoreSimple", "BeerLikelihoodCoreSimple4", "BeerLikelihoodCoreVector4",
+			"ExpBeerLikelihoodCore", "ExpBeerLikelihoodCore4", "ParallelBeerLikelihoodCore", "OffHeapBeerLikelihoodCore", "FloatBeerLikelihoodCore"})
+	public String core;
+
+	@Param({"100", "1000", "10000", "100000"})
+	public int patternCount;
+
+	@Param({"1", "4", "8"})
+	public int categoryCount;
+
+	@Override
+	String getCore() {return core;}
+	@Override
+	int getStateCount() {return 4;}
+	@Override
+	int getPatternCount() {return patternCount;}
+	@Override
+	int getCategoryCount() {return categoryCount;}
+
+} // class NucleotideCoreBenchmark
@@ -2,6 +2,7 @@ package beastlabs.evolution.likelihood;
 
 
 import java.io.PrintStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedHashSet;
 import java.util.List;
@@ -17,20 +18,33 @@ import beast.base.evolution.tree.Node;
 import beast.base.util.Randomizer;
 
 
-@Description("Logs internal states sampled from the distribution at the MRCA of a set of taxa")
+@Description("Logs internal states sampled from the distribution at the MRCA of a set of taxa. " +
+		"When multiple taxon sets are specified, states for all their MRCAs are sampled in a single traversal.")
 public class AncestralStateLogger extends TreeLikelihood implements Loggable {
-	public Input<TaxonSet> taxonsetInput = new Input<>("taxonset", "set of taxa defining a clade. The MRCA node of the clade is logged", Validate.REQUIRED);
+	public Input<List<TaxonSet>> taxonsetInput = new Input<>("taxonset", "set of taxa defining a clade. The MRCA node of the clade is logged", new ArrayList<>(), Validate.REQUIRED);
 	public Input<String> valueInput = new Input<>("value", "space delimited set of labels, one for each site in the alignment. Used as site label in the log file.");
 	public Input<Boolean> logParentInput = new Input<>("logParent", "flag to indicate the parent value should be logged", false);
 	public Input<Boolean> logMRCAInput = new Input<>("logMRCA", "flag to indicate the MRCA value should be logged", true);
+	public Input<Boolean> recalculateInput = new Input<>("recalculate", "recalculate partials before sampling. Set to false only when this logger " +
+			"is also used as tree likelihood in the posterior, so its partials are up to date (default true)", true);
 	
-    // array of flags to indicate which taxa are in the set
-    Set<String> isInTaxaSet = new LinkedHashSet<>();
-    Node MRCA;
-	int [] parentSample;
+    // for each of the clades, the set of taxa in the clade
+    List<Set<String>> isInTaxaSet = new ArrayList<>();
+    // MRCA node for each of the clades
+    Node [] MRCA;
     boolean logParent;
     boolean logMRCA;
     
+    // buffers reused between samples
+    // sampled states for nodes on the paths from the root to the MRCAs, indexed by node number
+    int [][] nodeSample;
+    // flags nodes on the paths from the root to the MRCAs
+    boolean [] onPath;
+    double [] partials;
+    double [] rootPartials;
+    int [] states;
+    double [] cumulative;
+    
     @Override
 	public void initAndValidate() {
 		// ensure we do not use BEAGLE
@@ -83,41 +97,62 @@ public class AncestralStateLogger extends TreeLikelihood implements Loggable {
 	
         isInTaxaSet.clear();
         List<String> taxaNames = dataInput.get().getTaxaNames();
-        List<String> set = taxonsetInput.get().asStringList();
-        for (final String sTaxon : set) {
-            final int iTaxon = taxaNames.indexOf(sTaxon);
-            if (iTaxon < 0) {
-                throw new IllegalArgumentException("Cannot find taxon " + sTaxon + " in data");
-            }
-            if (isInTaxaSet.contains(sTaxon)) {
-                throw new IllegalArgumentException("Taxon " + sTaxon + " is defined multiple times, while they should be unique");
-            }
-            isInTaxaSet.add(sTaxon);
+        for (TaxonSet taxonset : taxonsetInput.get()) {
+	        Set<String> isInSet = new LinkedHashSet<>();
+	        for (final String sTaxon : taxonset.asStringList()) {
+	            final int iTaxon = taxaNames.indexOf(sTaxon);
+	            if (iTaxon < 0) {
+	                throw new IllegalArgumentException("Cannot find taxon " + sTaxon + " in data");
+	            }
+	            if (isInSet.contains(sTaxon)) {
+	                throw new IllegalArgumentException("Taxon " + sTaxon + " is defined multiple times, while they should be unique");
+	            }
+	            isInSet.add(sTaxon);
+	        }
+	        isInTaxaSet.add(isInSet);
         }
+        MRCA = new Node[isInTaxaSet.size()];
         
         logParent = logParentInput.get();
-        if (logParent && taxaNames.size() == set.size()) {
+        if (logParent && isInTaxaSet.stream().anyMatch(set -> set.size() == taxaNames.size())) {
         	throw new RuntimeException("Cannot log parent of the root; either choose a different clade, or set logParent flag to false");
         }
         logMRCA = logMRCAInput.get();
         if (!logParent && ! logMRCA) {
         	throw new IllegalArgumentException("At least one of logMRCA and logParent should be seleceted");
         }
+        
+        int stateCount = dataInput.get().getMaxStateCount();
+        int patternCount = dataInput.get().getPatternCount();
+        nodeSample = new int[treeInput.get().getNodeCount()][];
+        onPath = new boolean[treeInput.get().getNodeCount()];
+        partials = new double[patternCount * stateCount * m_siteModel.getCategoryCount()];
+        rootPartials = new double[patternCount * stateCount];
+        states = new int[patternCount * m_siteModel.getCategoryCount()];
+        cumulative = new double[stateCount];
 	}
 	
 
 	@Override
 	public void init(PrintStream out) {
 		String values = valueInput.get();
+		String [] labels;
 		if (values != null && values.trim().length() > 0) {
 			// use values as labels
-			values = values.trim().replaceAll("\\s+", "\t");
-			out.append(values);
-			out.append("\t");
+			labels = values.trim().split("\\s+");
 		} else {
 			int siteCount = dataInput.get().getSiteCount();
+			labels = new String[siteCount];
 			for (int i = 0; i < siteCount; i++) {
-				out.append("site"+i+"\t");
+				labels[i] = "site" + i;
+			}
+		}
+		for (int k = 0; k < isInTaxaSet.size(); k++) {
+			// only prefix labels with the clade when there are multiple clades
+			String id = taxonsetInput.get().get(k).getID();
+			String prefix = isInTaxaSet.size() > 1 ? (id == null ? "clade" + k : id) + "." : "";
+			for (String label : labels) {
+				out.append(prefix + label + "\t");
 			}
 		}
 	}
@@ -125,26 +160,34 @@ public class AncestralStateLogger extends TreeLikelihood implements Loggable {
 	@Override
 	public void log(long nSample, PrintStream out) {
 		try {
-			// force fresh recalculation of likelihood at this stage
-			Arrays.fill(m_branchLengths, 0);
-			calculateLogP();
+			if (recalculateInput.get()) {
+				// force fresh recalculation of likelihood at this stage
+				Arrays.fill(m_branchLengths, 0);
+				calculateLogP();
+			}
 			
-			// determine the MRCA node we are going to log
-            calcMRCA(treeInput.get().getRoot(), new int[1]);
+			// determine the MRCA nodes we are going to log
+			for (int k = 0; k < MRCA.length; k++) {
+				calcMRCA(treeInput.get().getRoot(), new int[1], isInTaxaSet.get(k), k);
+			}
             
             // sample states
-            int [] sample = sample(MRCA);
+            sample();
 
             // generate output
-			for (int i = 0; i < sample.length; i++) {
-				if (logParent) {
-					out.append(parentSample[i] + "");
-				}
-				if (logMRCA) {
-					out.append(sample[i] + "");
+            for (Node mrca : MRCA) {
+            	int [] sample = nodeSample[mrca.getNr()];
+            	int [] parentSample = mrca.isRoot() ? null : nodeSample[mrca.getParent().getNr()];
+				for (int i = 0; i < sample.length; i++) {
+					if (logParent) {
+						out.append(parentSample[i] + "");
+					}
+					if (logMRCA) {
+						out.append(sample[i] + "");
+					}
+					out.append("\t");
 				}
-				out.append("\t");
-			}
+            }
 			
 		} catch (Exception e) {
 			// TODO Auto-generated catch block
@@ -152,106 +195,115 @@ public class AncestralStateLogger extends TreeLikelihood implements Loggable {
 		}
 	}
 	
-	/** traverse to the root
-	 * then, sample root values, and propagate back to the MRCA
-	 * along the path that goes between root and MRCA
-	 * @return sample
+	/** sample root values, and propagate these down to the MRCAs
+	 * along the paths that go between root and MRCAs. 
+	 * Each node on these paths is sampled once, using the partials 
+	 * currently in the likelihood core.
 	 */
-	private int[] sample(Node node) {
+	private void sample() {
+		if (beagle != null) {
+			throw new RuntimeException("BEAGLE is not supported yet");
+		}
+		Arrays.fill(onPath, false);
+		for (Node mrca : MRCA) {
+			Node node = mrca;
+			while (node != null && !onPath[node.getNr()]) {
+				onPath[node.getNr()] = true;
+				node = node.getParent();
+			}
+		}
+		
         int siteCount = dataInput.get().getSiteCount();
         int stateCount = dataInput.get().getMaxStateCount();
-        int [] sample = new int[siteCount];
+		Node root = treeInput.get().getRoot();
+		int [] sample = getSampleBuffer(root.getNr(), siteCount);
 
-		if (node.isRoot()) {
-			if (beagle != null) {
-				throw new RuntimeException("BEAGLE is not supported yet");
-				// m_fRootPartials = beagle.m_fRootPartials;
-			}
-			
-			double [] p = new double[stateCount];
-			double [] freqs = substitutionModel.getFrequencies();
-			for (int i = 0; i < sample.length; i++) {
-				int offset = stateCount * dataInput.get().getPatternIndex(i);
-				for (int j = 0; j < stateCount; j++) {
-					p[j] = m_fRootPartials[offset + j] * freqs[j];
-				}
-				sample[i] = Randomizer.randomChoicePDF(p);
-			}
-			
-		} else {
-			parentSample = sample(node.getParent());
-			
-			double [] p = new double[stateCount];
-			double [] partials = new double[dataInput.get().getPatternCount() * stateCount * m_siteModel.getCategoryCount()];
-			
-			if (m_siteModel.getCategoryCount() != 1) {
-				throw new RuntimeException("Gamma rate heterogeneity or proportion invariant is not supported yet");
+		likelihoodCore.integratePartials(root.getNr(), m_siteModel.getCategoryProportions(root), rootPartials);
+		double [] freqs = substitutionModel.getFrequencies();
+		for (int i = 0; i < siteCount; i++) {
+			int offset = stateCount * dataInput.get().getPatternIndex(i);
+			double total = 0;
+			for (int j = 0; j < stateCount; j++) {
+				total += rootPartials[offset + j] * freqs[j];
+				cumulative[j] = total;
 			}
-			if (beagle != null) {
-				throw new RuntimeException("BEAGLE is not supported yet");
-				// beagle.beagle.getPartials(arg0, arg1, arg2);
-        		// getTransitionMatrix(nodeNum, probabilities);
-			} else {
-				likelihoodCore.getNodeMatrix(node.getNr(), 0, probabilities);
-			}
-
-			if (node.isLeaf()) { 
-				if (!m_useAmbiguities.get()) {
-					// leaf node values come mainly from the states.
-					// only ambiguous sites are sampled
-					
-					int [] states = new int [dataInput.get().getPatternCount() * m_siteModel.getCategoryCount()];
-					if (beagle != null) {
-						throw new RuntimeException("BEAGLE is not supported yet");
-						// beagle.beagle.getPartials(arg0, arg1, arg2);
-		        		// getTransitionMatrix(nodeNum, probabilities);
-					} else {
-						likelihoodCore.getNodeStates(node.getNr(), states);
-					}
-					
-		            for (int j = 0; j < sample.length; j++) {
-		            	int childIndex = dataInput.get().getPatternIndex(j);
-		            	if (states[childIndex] >= 0 && states[childIndex] < stateCount) {
-		            		// copy state, if it is not ambiguous
-		            		sample[j] = states[childIndex];
-		            	} else {
-		            		sample[j] = -1;
-		            	}
-		            }
-				} else {
-					// useAmbiguities == true
-					// sample conditioned on child partials
-					likelihoodCore.getNodePartials(node.getNr(), partials);
-
-					// sample using transition matrix and parent states
-		            for (int j = 0; j < sample.length; j++) {
-		                int parentIndex = parentSample[j] * stateCount;
-		                int childIndex = dataInput.get().getPatternIndex(j) * stateCount;
+			sample[i] = draw(cumulative, total, stateCount);
+		}
 		
-		                for (int i = 0; i < stateCount; i++) {
-		                    p[i] = partials[childIndex + i] * probabilities[parentIndex + i];
-		                }
+		for (Node child : root.getChildren()) {
+			sample(child, siteCount, stateCount);
+		}
+	}
+	
+	private void sample(Node node, int siteCount, int stateCount) {
+		if (!onPath[node.getNr()]) {
+			return;
+		}
+		int [] parentSample = nodeSample[node.getParent().getNr()];
+		int [] sample = getSampleBuffer(node.getNr(), siteCount);
 		
-						sample[j] = Randomizer.randomChoicePDF(p);
-		            }
-				}
-			} else {
-				likelihoodCore.getNodePartials(node.getNr(), partials);
+		if (m_siteModel.getCategoryCount() != 1) {
+			throw new RuntimeException("Gamma rate heterogeneity or proportion invariant is not supported yet");
+		}
+		likelihoodCore.getNodeMatrix(node.getNr(), 0, probabilities);
 
-				// sample using transition matrix and parent states
-	            for (int j = 0; j < sample.length; j++) {
-	                int parentIndex = parentSample[j] * stateCount;
-	                int childIndex = dataInput.get().getPatternIndex(j) * stateCount;
-	
-	                for (int i = 0; i < stateCount; i++) {
-	                    p[i] = partials[childIndex + i] * probabilities[parentIndex + i];
-	                }
-	
-					sample[j] = Randomizer.randomChoicePDF(p);
-	            }
+		if (node.isLeaf() && !m_useAmbiguities.get()) {
+			// leaf node values come mainly from the states.
+			// only ambiguous sites are sampled
+			likelihoodCore.getNodeStates(node.getNr(), states);
+            for (int j = 0; j < siteCount; j++) {
+            	int childIndex = dataInput.get().getPatternIndex(j);
+            	if (states[childIndex] >= 0 && states[childIndex] < stateCount) {
+            		// copy state, if it is not ambiguous
+            		sample[j] = states[childIndex];
+            	} else {
+            		sample[j] = -1;
+            	}
             }
+		} else {
+			// sample conditioned on child partials
+			likelihoodCore.getNodePartials(node.getNr(), partials);
+
+			// sample using transition matrix and parent states
+            for (int j = 0; j < siteCount; j++) {
+                int parentIndex = parentSample[j] * stateCount;
+                int childIndex = dataInput.get().getPatternIndex(j) * stateCount;
+                double total = 0;
+                for (int i = 0; i < stateCount; i++) {
+                    total += partials[childIndex + i] * probabilities[parentIndex + i];
+                    cumulative[i] = total;
+                }
+				sample[j] = draw(cumulative, total, stateCount);
+            }
+		}
+		
+		for (Node child : node.getChildren()) {
+			sample(child, siteCount, stateCount);
+		}
+	}
+	
+	private int [] getSampleBuffer(int nodeNr, int siteCount) {
+		if (nodeSample[nodeNr] == null) {
+			nodeSample[nodeNr] = new int[siteCount];
+		}
+		return nodeSample[nodeNr];
+	}
+
+	/** draw from unnormalised distribution given by its cumulative values **/
+	private int draw(double [] cumulative, double total, int stateCount) {
+		double u = Randomizer.nextDouble() * total;
+		for (int i = 0; i < stateCount; i++) {
+			if (u < cumulative[i]) {
+				return i;
+			}
+		}
+		// only reached due to numerical issues: return last state with positive probability
+		for (int i = stateCount - 1; i > 0; i--) {
+			if (cumulative[i] > cumulative[i - 1]) {
+				return i;
+			}
 		}
-		return sample;
+		return 0;
 	}
 
 	@Override
@@ -260,12 +312,12 @@ public class AncestralStateLogger extends TreeLikelihood implements Loggable {
 	}
 	
 	
-    int calcMRCA(final Node node, final int[] nTaxonCount) {
+    int calcMRCA(final Node node, final int[] nTaxonCount, Set<String> isInTaxaSet, int iClade) {
         if (node.isLeaf()) {
             nTaxonCount[0]++;
             if (isInTaxaSet.contains(node.getID())) {
                 if (isInTaxaSet.size() == 1) {
-                	MRCA = node;
+                	MRCA[iClade] = node;
                     return 2;
                 }
                 return 1;
@@ -273,15 +325,15 @@ public class AncestralStateLogger extends TreeLikelihood implements Loggable {
                 return 0;
             }
         } else {
-            int taxonCount = calcMRCA(node.getLeft(), nTaxonCount);
+            int taxonCount = calcMRCA(node.getLeft(), nTaxonCount, isInTaxaSet, iClade);
             final int nLeftTaxa = nTaxonCount[0];
             nTaxonCount[0] = 0;
             if (node.getRight() != null) {
-                taxonCount += calcMRCA(node.getRight(), nTaxonCount);
+                taxonCount += calcMRCA(node.getRight(), nTaxonCount, isInTaxaSet, iClade);
                 final int nRightTaxa = nTaxonCount[0];
                 nTaxonCount[0] = nLeftTaxa + nRightTaxa;
                 if (taxonCount == isInTaxaSet.size()) {
-                	MRCA = node;
+                	MRCA[iClade] = node;
                     return taxonCount + 1;
                 }
             }
@@ -79,8 +79,12 @@ public class BeerLikelihoodCoreCnG extends ExperimentalLikelihoodCore {
     protected int[][][] m_nID; // 2 x #nodes x #patterns
     /** contains [0,1,2,...#pattenrs-1], used as default m_nID content **/
     int [] DEFAULT_ID; 
-    /** memory for building up cache index **/
+    /** memory for building up cache index when the pairs of IDs fit in (#states+1) x #patterns **/
     int [] DEFAULT_MAP; 
+    /** open addressing hash table for building up cache index of internal nodes
+     * when the number of pairs of child IDs is too large for DEFAULT_MAP **/
+    long [] m_nHashKeys;
+    int [] m_nHashIDs;
 
 
 	// stack related variables
@@ -140,7 +144,7 @@ public class BeerLikelihoodCoreCnG extends ExperimentalLikelihoodCore {
 		} else {
 			if (state2 < m_nStates) {
 				for (int i = 0; i < m_nStates; i++) {
-					pfPartials3[v] = pfMatrices2[w + state1];
+					pfPartials3[v] = pfMatrices2[w + state2];
 					v++;
 					w += m_nStates;
 				}
@@ -476,9 +480,13 @@ public class BeerLikelihoodCoreCnG extends ExperimentalLikelihoodCore {
 //				initPartialsLeave(iNode2);
 //			}
 	
-			int [] nIDMap = initIDMap(iNode3, m_nNrOfID[i1][iNode1], m_nNrOfID[i2][iNode2]);
 			int nBase = m_nNrOfID[i1][iNode1];
-			m_nNrOfID[i3][iNode3] = calcPPPInner(nID1, nID2, nID3, nBase, nIDMap, pStates1, pStates2, iNode3);
+			if ((long) nBase * m_nNrOfID[i2][iNode2] <= DEFAULT_MAP.length) {
+				int [] nIDMap = initIDMap(iNode3, m_nNrOfID[i1][iNode1], m_nNrOfID[i2][iNode2]);
+				m_nNrOfID[i3][iNode3] = calcPPPInner(nID1, nID2, nID3, nBase, nIDMap, pStates1, pStates2, iNode3);
+			} else {
+				m_nNrOfID[i3][iNode3] = calcPPPInnerHashed(nID1, nID2, nID3, nBase, pStates1, pStates2);
+			}
 		}
 	} // calculatePartialsPartialsPruning
 
@@ -496,6 +504,32 @@ public class BeerLikelihoodCoreCnG extends ExperimentalLikelihoodCore {
 		}
 		return nNrOfID;
 	}
+
+	/** as calcPPPInner, but finds pairs of child IDs through a hash table, so memory 
+	 * and time are linear in the number of patterns instead of the number of pairs **/
+	int calcPPPInnerHashed(int [] nID1, int [] nID2, int [] nID3, int nBase, int [] pStates1, int [] pStates2) {
+		Arrays.fill(m_nHashKeys, -1);
+		int nMask = m_nHashKeys.length - 1;
+		int nNrOfID = 0;
+		for (int k = 0; k < m_nPatterns; k++) {
+			int state1 = nID1[k];
+			int state2 = nID2[k];
+			long nKey = state1 + (long) nBase * state2;
+			int h = (int) ((nKey * 0x9E3779B97F4A7C15L) >>> 32) & nMask;
+			while (m_nHashKeys[h] >= 0 && m_nHashKeys[h] != nKey) {
+				h = (h + 1) & nMask;
+			}
+			if (m_nHashKeys[h] < 0) {
+				m_nHashKeys[h] = nKey;
+				m_nHashIDs[h] = nNrOfID;
+				pStates1[nNrOfID] = state1;
+				pStates2[nNrOfID] = state2;
+				nNrOfID++;
+			}
+			nID3[k] = m_nHashIDs[h];
+		}
+		return nNrOfID;
+	}
 	
 	void processNodeFromStack(int iJob) {
 		int iNode1 = m_nNode1[iJob];
@@ -692,7 +726,11 @@ public class BeerLikelihoodCoreCnG extends ExperimentalLikelihoodCore {
     	for (int k = 0; k < m_nPatterns; k++) {
     		DEFAULT_ID[k] = k;
     	}
-    	DEFAULT_MAP = new int[m_nPatterns * m_nPatterns];
+    	// large enough for pairs of a state and an ID, pairs of IDs that do not fit go through the hash table
+    	DEFAULT_MAP = new int[(m_nStates + 1) * Math.max(m_nPatterns, m_nStates + 1)];
+    	int nHashSize = Integer.highestOneBit(Math.max(2 * m_nPatterns, 16) - 1) << 1;
+    	m_nHashKeys = new long[nHashSize];
+    	m_nHashIDs = new int[nHashSize];
         
     	m_fRootPartials = new double[m_nPatterns * m_nStates];
         m_fPatternLogLikelihoods = new double[m_nPatterns];
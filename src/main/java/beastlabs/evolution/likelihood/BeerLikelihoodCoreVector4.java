@@ -0,0 +1,160 @@
+/*
+ * File BeerLikelihoodCoreVector4.java
+ *
+ * Copyright (C) 2026 Remco Bouckaert remco@cs.auckland.ac.nz
+ *
+ * This file is part of BEAST2.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+/** nucleotide likelihood core that uses the Java Vector API (SIMD) for the peeling
+ * and root integration when the jdk.incubator.vector module is available, and
+ * falls back to the scalar BeerLikelihoodCoreSimple4 code otherwise.
+ *
+ * To enable, start BEAST with --add-modules jdk.incubator.vector
+ * Set -Dbeast.vector.disable=true to force the scalar code path.
+ */
+
+
+package beastlabs.evolution.likelihood;
+
+import beast.base.core.Log;
+
+
+public class BeerLikelihoodCoreVector4 extends BeerLikelihoodCoreSimple4 {
+
+	/** system property to switch off the SIMD code path **/
+	public static final String DISABLE_VECTOR_PROPERTY = "beast.vector.disable";
+
+	private static final boolean VECTOR_API_AVAILABLE = isVectorAPIAvailable();
+
+	/** site likelihoods (not logged) at the root **/
+	double [] m_fRootLikelihoods;
+
+	public BeerLikelihoodCoreVector4() {
+		super();
+		if (!VECTOR_API_AVAILABLE) {
+			Log.warning.println("Java Vector API not available: " + getClass().getSimpleName() + " uses scalar code. "
+					+ "Add '--add-modules jdk.incubator.vector' to the JVM arguments to enable it.");
+		}
+	} // c'tor
+
+	/**
+	 * @return true if the jdk.incubator.vector module is resolved and the hardware
+	 * supports vectors of at least 4 doubles (AVX2 or better)
+	 */
+	public static boolean isVectorAPIAvailable() {
+		if (Boolean.getBoolean(DISABLE_VECTOR_PROPERTY)) {
+			return false;
+		}
+		if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+			return false;
+		}
+		try {
+			return VectorKernels4.isSupported();
+		} catch (LinkageError e) {
+			return false;
+		}
+	}
+
+	/** @return whether this core runs the SIMD kernels **/
+	public boolean usesVectorAPI() {
+		return VECTOR_API_AVAILABLE;
+	}
+
+	@Override
+	public boolean initialize(int nNodeCount, int nPatternCount, int nMatrixCount, boolean bIntegrateCategories, boolean bUseAmbiguities) {
+		boolean result = super.initialize(nNodeCount, nPatternCount, nMatrixCount, bIntegrateCategories, bUseAmbiguities);
+		m_fRootLikelihoods = new double[nPatternCount];
+		return result;
+	}
+
+	@Override
+	protected void calcAllMatrixSSP(int iNode1, int iNode2, int iNode3) {
+		if (!VECTOR_API_AVAILABLE) {
+			super.calcAllMatrixSSP(iNode1, iNode2, iNode3);
+			return;
+		}
+		VectorKernels4.statesStates(m_iStates[iNode1], m_fMatrices[m_iCurrentMatrices[iNode1]][iNode1],
+				m_iStates[iNode2], m_fMatrices[m_iCurrentMatrices[iNode2]][iNode2],
+				m_fPartials[m_iCurrentPartials[iNode3]][iNode3], m_nPatterns, m_nMatrices);
+	}
+
+	@Override
+	protected void calcAllMatrixSPP(int iNode1, int iNode2, int iNode3) {
+		if (!VECTOR_API_AVAILABLE) {
+			super.calcAllMatrixSPP(iNode1, iNode2, iNode3);
+			return;
+		}
+		VectorKernels4.statesPartials(m_iStates[iNode1], m_fMatrices[m_iCurrentMatrices[iNode1]][iNode1],
+				m_fPartials[m_iCurrentPartials[iNode2]][iNode2], m_fMatrices[m_iCurrentMatrices[iNode2]][iNode2],
+				m_fPartials[m_iCurrentPartials[iNode3]][iNode3], m_nPatterns, m_nMatrices);
+	}
+
+	@Override
+	protected void calcAllMatrixPPP(int iNode1, int iNode2, int iNode3) {
+		if (!VECTOR_API_AVAILABLE) {
+			super.calcAllMatrixPPP(iNode1, iNode2, iNode3);
+			return;
+		}
+		VectorKernels4.partialsPartials(m_fPartials[m_iCurrentPartials[iNode1]][iNode1], m_fMatrices[m_iCurrentMatrices[iNode1]][iNode1],
+				m_fPartials[m_iCurrentPartials[iNode2]][iNode2], m_fMatrices[m_iCurrentMatrices[iNode2]][iNode2],
+				m_fPartials[m_iCurrentPartials[iNode3]][iNode3], m_nPatterns, m_nMatrices);
+	}
+
+	@Override
+	void integratePartials(int iNode, double[] fProportions, double[] fOutPartials) {
+		if (!VECTOR_API_AVAILABLE) {
+			super.integratePartials(iNode, fProportions, fOutPartials);
+			return;
+		}
+		processStack();
+		VectorKernels4.integratePartials(m_fPartials[m_iCurrentPartials[iNode]][iNode], fProportions, fOutPartials,
+				m_nPatterns * 4, m_nMatrices);
+	}
+
+	@Override
+	void calculateLogLikelihoods(double[] fPartials, double[] fFrequencies, double[] fOutLogLikelihoods) {
+		if (!VECTOR_API_AVAILABLE) {
+			super.calculateLogLikelihoods(fPartials, fFrequencies, fOutLogLikelihoods);
+			return;
+		}
+		VectorKernels4.rootLikelihoods(fPartials, fFrequencies, m_fRootLikelihoods, m_nPatterns);
+		double fLogScalingFactor = getLogScalingFactor(0);
+		for (int k = 0; k < m_nPatterns; k++) {
+			fOutLogLikelihoods[k] = Math.log(m_fRootLikelihoods[k]) + fLogScalingFactor;
+		}
+	}
+
+	@Override
+	void scalePartials(int iNode) {
+		if (!VECTOR_API_AVAILABLE) {
+			super.scalePartials(iNode);
+			return;
+		}
+		VectorKernels4.scale(m_fPartials[m_iCurrentPartials[iNode]][iNode], SCALE);
+	}
+
+	@Override
+	public void finalize() throws java.lang.Throwable {
+		super.finalize();
+		m_fRootLikelihoods = null;
+	}
+
+} // class BeerLikelihoodCoreVector4
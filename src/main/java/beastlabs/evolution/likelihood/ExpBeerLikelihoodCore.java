@@ -42,6 +42,10 @@ import beast.base.core.ProgramStatus;
 
 
 
+/** Threads process interleaved pattern IDs and wait for each other at every node,
+ * since IDs of a node depend on IDs of its children. See ParallelBeerLikelihoodCore
+ * for a core where threads peel independent blocks of patterns.
+ */
 public class ExpBeerLikelihoodCore extends ExperimentalLikelihoodCore {
 	double SCALE = 10;
 //	int u, v, w, v1, v2;
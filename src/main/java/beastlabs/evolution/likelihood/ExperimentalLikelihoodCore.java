@@ -95,6 +95,8 @@ abstract public class ExperimentalLikelihoodCore {
 	boolean m_bUseScaling = false;
 	abstract public void setUseScaling(double fScale);
 	public boolean getUseScaling() {return m_bUseScaling;}
+	/** @return true if the core cannot do without scaling, so setUseScaling(1.0) does not switch it off **/
+	public boolean isAlwaysScaled() {return false;}
 	/** return the cumulative scaling effect. Should be zero if no scaling is used **/
     //abstract public double getLogScalingFactor(int iPattern);
 
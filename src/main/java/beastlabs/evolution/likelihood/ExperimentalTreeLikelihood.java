@@ -32,7 +32,9 @@ package beastlabs.evolution.likelihood;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 
 import beast.base.core.Description;
@@ -48,6 +50,7 @@ import beast.base.evolution.sitemodel.SiteModel;
 import beast.base.evolution.substitutionmodel.SubstitutionModel;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
+import beastlabs.evolution.substitutionmodel.LazyHKY;
 
 
 @Description("Calculates the likelihood of sequence data on a beast.tree given a site and substitution model using " +
@@ -62,8 +65,22 @@ public class ExperimentalTreeLikelihood extends Distribution {
             "A model describing the rates on the branches of the beast.tree.");
     public Input<Boolean> m_useAmbiguities = new Input<Boolean>("useAmbiguities", "flag to indicate leafs that sites containing ambigue states should be handled instead of ignored (the default)", false);
 
+    public enum CoreType {auto, Cached, CnG, CnG4Padded, Java, Simple, Exp, Parallel, Native, Vector, OffHeap, Float}
+    public Input<CoreType> m_coreType = new Input<CoreType>("core", "likelihood core used for the calculation, one of " + Arrays.toString(CoreType.values()) +
+    		" (default CnG). With 'auto' every core is timed on the data during initialisation and the fastest is used. " +
+    		"Can be overridden by the " + CORE_PROPERTY + " system property", CoreType.CnG, CoreType.values());
+    public Input<Integer> m_autoEvaluationCount = new Input<Integer>("autoEvaluations", "number of full likelihood evaluations used to time each core " +
+    		"when core='auto' (default 200)", 200);
+
+    /** system property for choosing the likelihood core without changing the XML **/
+    public static final String CORE_PROPERTY = "beast.likelihood.core";
+
     /** calculation engine **/
     ExperimentalLikelihoodCore m_likelihoodCore;
+    /** time in nanoseconds per evaluation of the cores that agreed with the reference core when core='auto' **/
+    Map<CoreType, Long> m_autoTimes = new EnumMap<>(CoreType.class);
+    /** whether the reference core of selectFastestCore needed scaling to prevent underflow **/
+    boolean m_bReferenceScaled;
     
     /** Plugin associated with inputs. Since none of the inputs are StateNodes, it
      * is safe to link to them only once, during initAndValidate.
@@ -96,6 +113,11 @@ public class ExperimentalTreeLikelihood extends Distribution {
     double[] m_fRootPartials;
     /** memory allocation for probability tables obtained from the SiteModel **/
     double[] m_fProbabilities;
+    /** set when the substitution model calculates the matrices for all categories of a branch in one call **/
+    LazyHKY m_lazyHKY;
+    /** distances and matrices for all categories of a branch, only used with m_lazyHKY **/
+    double[] m_fCategoryDistances;
+    double[] m_fCategoryMatrices;
 
     int m_nMatrixSize;
     
@@ -105,6 +127,18 @@ public class ExperimentalTreeLikelihood extends Distribution {
     /** dealing with proportion of site being invariant **/
     double m_fProportionInvariant = 0;
     List<Integer> m_iConstantPattern = null;
+
+    /** operation statistics, see LikelihoodOperationLogger. Times are in nanoseconds **/
+    long m_nEvaluationCount;
+    long m_nFullRecomputeCount;
+    long m_nPartialUpdateCount;
+    long m_nMatrixUpdateCount;
+    long m_nPartialTime;
+    long m_nMatrixTime;
+    long m_nFullRecomputeTime;
+    /** number of partials and matrices updated in the last evaluation **/
+    int m_nLastPartialUpdates;
+    int m_nLastMatrixUpdates;
     
     @Override
     public void initAndValidate() {
@@ -127,32 +161,32 @@ public class ExperimentalTreeLikelihood extends Distribution {
     	m_StoredBranchLengths = new double[nNodeCount];
     	
         int nStateCount = m_data.get().getMaxStateCount();
-        if (nStateCount == 4) {
-        	//m_likelihoodCore = new BeerLikelihoodCore4();
-        	//m_likelihoodCore = new BeerLikelihoodCoreCnG4();
-        	m_likelihoodCore = new BeerLikelihoodCoreCnG(4);
-            //m_likelihoodCore = new BeerLikelihoodCoreJava4();
-        	//m_likelihoodCore = new BeerLikelihoodCoreNative(4);
-            m_likelihoodCore = new BeerLikelihoodCoreSimple4();
-        	//m_likelihoodCore = new BeerLikelihoodCoreCached4();
-        } else {
-            //m_likelihoodCore = new BeerLikelihoodCore(nStateCount);
-            m_likelihoodCore = new BeerLikelihoodCoreCnG(nStateCount);
-            m_likelihoodCore = new BeerLikelihoodCoreSimple(nStateCount);
-            //m_likelihoodCore = new BeerLikelihoodCoreJava(nStateCount);
-        }
-    	m_likelihoodCore = new BeerLikelihoodCoreCnG(4);
-        //m_likelihoodCore = new BeerLikelihoodCoreSimpleNative(nStateCount);
-        //m_likelihoodCore = new BeerLikelihoodCoreSimpleGPU(nStateCount);
-        Log.info.println("TreeLikelihood uses " + m_likelihoodCore.getClass().getName());
         int nPatterns = m_data.get().getPatternCount();
-        initCore(nNodeCount, nPatterns, nStateCount);
-        
         m_fPatternLogLikelihoods = new double[nPatterns];
         m_fRootPartials = new double[nPatterns * nStateCount];
         m_nMatrixSize = (nStateCount +1)* (nStateCount+1);
         m_fProbabilities = new double[(nStateCount +1)* (nStateCount+1)];
         Arrays.fill(m_fProbabilities, 1.0);
+        if (m_substitutionModel instanceof LazyHKY) {
+        	m_lazyHKY = (LazyHKY) m_substitutionModel;
+        	m_fCategoryDistances = new double[m_siteModel.getCategoryCount()];
+        	m_fCategoryMatrices = new double[m_siteModel.getCategoryCount() * 16];
+        }
+
+        CoreType coreType = getCoreType();
+        if (coreType == CoreType.auto) {
+        	m_likelihoodCore = selectFastestCore(nNodeCount, nPatterns, nStateCount);
+        } else {
+        	m_likelihoodCore = createCore(coreType, nStateCount);
+        }
+        //m_likelihoodCore = new BeerLikelihoodCoreSimpleNative(nStateCount);
+        //m_likelihoodCore = new BeerLikelihoodCoreSimpleGPU(nStateCount);
+        Log.info.println("TreeLikelihood uses " + m_likelihoodCore.getClass().getName());
+        initCore(nNodeCount, nPatterns, nStateCount);
+        if (coreType == CoreType.auto && m_bReferenceScaled) {
+        	m_likelihoodCore.setUseScaling(m_fScale);
+        }
+        resetStatistics();
 
         if (m_data.get().isAscertained) {
             m_bAscertainedSitePatterns = true;
@@ -160,6 +194,168 @@ public class ExperimentalTreeLikelihood extends Distribution {
     }
 
 
+    /** @return core type from the system property if set, otherwise from the core input **/
+    CoreType getCoreType() {
+    	String coreType = System.getProperty(CORE_PROPERTY);
+    	if (coreType != null) {
+    		try {
+    			return CoreType.valueOf(coreType);
+    		} catch (IllegalArgumentException e) {
+    			throw new IllegalArgumentException("Unrecognised value for " + CORE_PROPERTY + ": '" + coreType + 
+    					"'. Choose one of " + Arrays.toString(CoreType.values()));
+    		}
+    	}
+    	return m_coreType.get();
+    }
+
+
+    /** @return whether the core can deal with nStateCount states **/
+    static boolean supportsStateCount(CoreType coreType, int nStateCount) {
+    	switch (coreType) {
+    	case CnG4Padded:
+    	case Vector:
+    		return nStateCount == 4;
+    	case auto:
+    		return false;
+    	default:
+    		return true;
+    	}
+    }
+
+    /** create likelihood core of given type, using the 4 state specialisation where available **/
+    static ExperimentalLikelihoodCore createCore(CoreType coreType, int nStateCount) {
+    	if (!supportsStateCount(coreType, nStateCount) && coreType != CoreType.auto) {
+    		Log.warning.println(coreType + " core does not support " + nStateCount + " states, using CnG instead");
+    		coreType = CoreType.CnG;
+    	}
+    	boolean bNucleotide = (nStateCount == 4);
+    	switch (coreType) {
+    	case Cached:
+    		return bNucleotide ? new BeerLikelihoodCoreCached4() : new BeerLikelihoodCoreCached(nStateCount);
+    	case CnG4Padded:
+    		return new BeerLikelihoodCoreCnG4Padded();
+    	case Java:
+    		return bNucleotide ? new BeerLikelihoodCoreJava4() : new BeerLikelihoodCoreJava(nStateCount);
+    	case Simple:
+    		return bNucleotide ? new BeerLikelihoodCoreSimple4() : new BeerLikelihoodCoreSimple(nStateCount);
+    	case Exp:
+    		return bNucleotide ? new ExpBeerLikelihoodCore4() : new ExpBeerLikelihoodCore(nStateCount);
+    	case Parallel:
+    		return new ParallelBeerLikelihoodCore(nStateCount);
+    	case Native:
+    		return new BeerLikelihoodCoreNative(nStateCount);
+    	case Vector:
+    		return new BeerLikelihoodCoreVector4();
+    	case OffHeap:
+    		return new OffHeapBeerLikelihoodCore(nStateCount);
+    	case Float:
+    		return new FloatBeerLikelihoodCore(nStateCount);
+    	case auto:
+    		throw new IllegalArgumentException("auto is not a core type, use selectFastestCore() instead");
+    	case CnG:
+    	default:
+    		return new BeerLikelihoodCoreCnG(nStateCount);
+    	}
+    }
+
+    /** Time each of the available cores for a number of full likelihood evaluations
+     * on the alignment, tree and site model of this likelihood, and return (an 
+     * uninitialised instance of) the fastest one. Cores that fail to load (e.g. 
+     * Native without the BEER library), produce a non-finite likelihood or disagree 
+     * with BeerLikelihoodCoreSimple are skipped.
+     */
+    ExperimentalLikelihoodCore selectFastestCore(int nNodeCount, int nPatterns, int nStateCount) {
+    	int nEvaluations = Math.max(1, m_autoEvaluationCount.get());
+    	CoreType bestType = CoreType.CnG;
+    	long nBestTime = Long.MAX_VALUE;
+    	m_autoTimes.clear();
+    	double fReferenceLogP = referenceLogP(nNodeCount, nPatterns, nStateCount);
+    	if (!Double.isFinite(fReferenceLogP)) {
+    		Log.warning.println("Could not calculate a reference likelihood (" + fReferenceLogP + "), using " + bestType + " core");
+    		m_nHasDirt = Tree.IS_FILTHY;
+    		return createCore(bestType, nStateCount);
+    	}
+    	for (CoreType coreType : CoreType.values()) {
+    		if (!supportsStateCount(coreType, nStateCount) || coreType == CoreType.Float) {
+    			// single precision trades accuracy for speed, so only use it when asked for explicitly
+    			continue;
+    		}
+    		m_likelihoodCore = null;
+    		try {
+    			m_likelihoodCore = createCore(coreType, nStateCount);
+    			initCore(nNodeCount, nPatterns, nStateCount);
+    			if (m_bReferenceScaled) {
+    				// without scaling the core would underflow like the reference did
+    				m_likelihoodCore.setUseScaling(m_fScale);
+    			}
+    			// warm up, so the JIT compiler had a go at the core
+    			for (int i = 0; i < nEvaluations / 10 + 1; i++) {
+    				fullEvaluation();
+    			}
+    			long nStart = System.nanoTime();
+    			for (int i = 0; i < nEvaluations; i++) {
+    				fullEvaluation();
+    			}
+    			long nTime = System.nanoTime() - nStart;
+    			Log.info.println(String.format("%-12s %10.3f ms/evaluation logP=%f", coreType, nTime / (1e6 * nEvaluations), logP));
+    			if (!Double.isFinite(logP) || Math.abs(logP - fReferenceLogP) > 1e-6 * Math.abs(fReferenceLogP)) {
+    				Log.warning.println(coreType + " core disagrees with reference core (" + logP + " != " + fReferenceLogP + "), ignoring it");
+    				continue;
+    			}
+    			m_autoTimes.put(coreType, nTime / nEvaluations);
+    			if (nTime < nBestTime) {
+    				nBestTime = nTime;
+    				bestType = coreType;
+    			}
+    		} catch (Exception | LinkageError e) {
+    			Log.warning.println(coreType + " core not available: " + e.getMessage());
+    		} finally {
+    			if (m_likelihoodCore != null) {
+    				try {m_likelihoodCore.finalize();} catch (Throwable e) {}
+    			}
+    		}
+    	}
+    	Log.info.println("Fastest likelihood core: " + bestType);
+    	m_likelihoodCore = null;
+    	m_nHasDirt = Tree.IS_FILTHY;
+    	return createCore(bestType, nStateCount);
+    }
+
+    /** @return log likelihood of the whole tree according to the plain Java BeerLikelihoodCoreSimple,
+     * with scaling switched on when it underflows without, which is recorded in m_bReferenceScaled **/
+    private double referenceLogP(int nNodeCount, int nPatterns, int nStateCount) {
+    	m_likelihoodCore = new BeerLikelihoodCoreSimple(nStateCount);
+    	m_bReferenceScaled = false;
+    	try {
+    		initCore(nNodeCount, nPatterns, nStateCount);
+    		fullEvaluation();
+    		if (!Double.isFinite(logP)) {
+    			m_bReferenceScaled = true;
+    			m_likelihoodCore.setUseScaling(m_fScale);
+    			fullEvaluation();
+    		}
+    		Log.info.println(String.format("%-12s reference logP=%f", CoreType.Simple, logP));
+    		return logP;
+    	} finally {
+    		try {m_likelihoodCore.finalize();} catch (Throwable e) {}
+    		m_likelihoodCore = null;
+    	}
+    }
+
+    /** @return time in nanoseconds per evaluation of each core that agreed with the reference core,
+     * as measured during initialisation with core='auto'. Empty if no core qualified. **/
+    public Map<CoreType, Long> getAutoTimes() {
+    	return Collections.unmodifiableMap(m_autoTimes);
+    }
+
+    /** recalculate the likelihood of the whole tree, ignoring any cached partials **/
+    private void fullEvaluation() {
+    	m_nHasDirt = Tree.IS_FILTHY;
+    	traverse(m_tree.get().getRoot());
+    	calcLogP();
+    }
+
+
 	/** Determine indices of m_fRootProbabilities that need to be updates
 	// due to sites being invariant. If none of the sites are invariant,
 	// the 'site invariant' category does not contribute anything to the
@@ -282,13 +478,30 @@ public class ExperimentalTreeLikelihood extends Distribution {
     int X = 100;
     @Override
     public double calculateLogP() {
+    	long nStart = System.nanoTime();
+    	m_nLastPartialUpdates = 0;
+    	m_nLastMatrixUpdates = 0;
+    	try {
+    		return calculateLogPAndScale();
+    	} finally {
+    		m_nEvaluationCount++;
+    		// sampled afterwards, so recomputes by the scaling fall-backs are counted too
+    		if (m_nHasDirt != Tree.IS_CLEAN) {
+    			m_nFullRecomputeCount++;
+    			m_nFullRecomputeTime += System.nanoTime() - nStart;
+    		}
+    	}
+    }
+
+    /** calculate the log likelihood, switching scaling on or off when numeric problems are detected **/
+    private double calculateLogPAndScale() {
         Tree tree = m_tree.get();
 
        	traverse(tree.getRoot());
         calcLogP();
         
         m_nScale++;
-        if (logP > 0 || (m_likelihoodCore.getUseScaling() && m_nScale > X)) {
+        if (!m_likelihoodCore.isAlwaysScaled() && (logP > 0 || (m_likelihoodCore.getUseScaling() && m_nScale > X))) {
             System.err.println("Switch off scaling");
             m_likelihoodCore.setUseScaling(1.0);
             m_likelihoodCore.unstore();
@@ -327,6 +540,21 @@ public class ExperimentalTreeLikelihood extends Distribution {
         }
     }
 
+    /** sets the matrices of all categories of the branch above node with a single call to m_lazyHKY **/
+    void updateMatricesInBatch(Node node, double branchRate) {
+        int nCategories = m_siteModel.getCategoryCount();
+        double fTime = node.getParent().getHeight() - node.getHeight();
+        for (int i = 0; i < nCategories; i++) {
+        	m_fCategoryDistances[i] = fTime * (m_siteModel.getRateForCategory(i, node) * branchRate);
+        }
+        m_lazyHKY.getTransitionProbabilities(m_fCategoryDistances, nCategories, m_fCategoryMatrices);
+        int nMatrixSize = 16;
+        for (int i = 0; i < nCategories; i++) {
+        	System.arraycopy(m_fCategoryMatrices, i * nMatrixSize, m_fProbabilities, 0, nMatrixSize);
+            m_likelihoodCore.setNodeMatrix(node.getNr(), i, m_fProbabilities);
+        }
+    }
+
     /* Assumes there IS a branch rate model as opposed to traverse() */
     int traverse(Node node) {
 
@@ -340,14 +568,22 @@ public class ExperimentalTreeLikelihood extends Distribution {
 
         // First update the transition probability matrix(ices) for this branch
         if (!node.isRoot() && (update != Tree.IS_CLEAN || branchTime != m_StoredBranchLengths[iNode])) {
+            long nStart = System.nanoTime();
             Node parent = node.getParent();
             m_likelihoodCore.setNodeMatrixForUpdate(iNode);
-            for (int i = 0; i < m_siteModel.getCategoryCount(); i++) {
-                double jointBranchRate = m_siteModel.getRateForCategory(i, node) * branchRate;
-            	m_substitutionModel.getTransitionProbabilities(node, parent.getHeight(), node.getHeight(), jointBranchRate, m_fProbabilities);
-                m_likelihoodCore.setNodeMatrix(iNode, i, m_fProbabilities);
+            if (m_lazyHKY != null) {
+            	updateMatricesInBatch(node, branchRate);
+            } else {
+	            for (int i = 0; i < m_siteModel.getCategoryCount(); i++) {
+	                double jointBranchRate = m_siteModel.getRateForCategory(i, node) * branchRate;
+	            	m_substitutionModel.getTransitionProbabilities(node, parent.getHeight(), node.getHeight(), jointBranchRate, m_fProbabilities);
+	                m_likelihoodCore.setNodeMatrix(iNode, i, m_fProbabilities);
+	            }
             }
             update |= Tree.IS_DIRTY;
+            m_nMatrixTime += System.nanoTime() - nStart;
+            m_nMatrixUpdateCount++;
+            m_nLastMatrixUpdates++;
         }
 
         // If the node is internal, update the partial likelihoods.
@@ -372,6 +608,9 @@ public class ExperimentalTreeLikelihood extends Distribution {
                     m_likelihoodCore.setNodeStatesForUpdate(iNode);
                 }
 
+                long nStart = System.nanoTime();
+                m_nPartialUpdateCount++;
+                m_nLastPartialUpdates++;
                 if (m_siteModel.integrateAcrossCategories()) {
                     m_likelihoodCore.calculatePartials(childNum1, childNum2, iNode);
                 } else {
@@ -401,6 +640,8 @@ public class ExperimentalTreeLikelihood extends Distribution {
                     
                     logP = m_likelihoodCore.calcLogP(iNode, fProportions, fFrequencies);
                 }
+                // cores may queue operations till calcLogP is called, so this includes peeling time at the root
+                m_nPartialTime += System.nanoTime() - nStart;
 
             }
         }
@@ -416,19 +657,16 @@ public class ExperimentalTreeLikelihood extends Distribution {
     protected boolean requiresRecalculation() {
         m_nHasDirt = Tree.IS_CLEAN;
 
-        if (m_branchRateModel != null && m_branchRateModel.isDirtyCalculation()) {
-            m_nHasDirt = Tree.IS_FILTHY;
-            return true;
-        }
+        // traverse() compares branch lengths with their stored values, so a rate change
+        // on its own only recalculates branches with a changed rate and their ancestors.
+        // The data and site model still need checking, since they affect all branches.
+        boolean bRatesDirty = m_branchRateModel != null && m_branchRateModel.isDirtyCalculation();
         if (m_data.get().isDirtyCalculation()) {
             m_nHasDirt = Tree.IS_FILTHY;
-            return true;
-        }
-        if (m_siteModel.isDirtyCalculation()) {
+        } else if (m_siteModel.isDirtyCalculation()) {
             m_nHasDirt = Tree.IS_DIRTY;
-            return true;
         }
-        return m_tree.get().somethingIsDirty();
+        return bRatesDirty || m_nHasDirt != Tree.IS_CLEAN || m_tree.get().somethingIsDirty();
     }
 
     @Override
@@ -468,4 +706,36 @@ public class ExperimentalTreeLikelihood extends Distribution {
     public void finalize() {
     	try {m_likelihoodCore.finalize();} catch (Throwable e) {}
     }
+
+    /** set all operation statistics to zero **/
+    public void resetStatistics() {
+    	m_nEvaluationCount = 0;
+    	m_nFullRecomputeCount = 0;
+    	m_nPartialUpdateCount = 0;
+    	m_nMatrixUpdateCount = 0;
+    	m_nPartialTime = 0;
+    	m_nMatrixTime = 0;
+    	m_nFullRecomputeTime = 0;
+    	m_nLastPartialUpdates = 0;
+    	m_nLastMatrixUpdates = 0;
+    }
+
+    /** @return number of calls to calculateLogP() **/
+    public long getEvaluationCount() {return m_nEvaluationCount;}
+    /** @return number of evaluations that recalculated all matrices and partials **/
+    public long getFullRecomputeCount() {return m_nFullRecomputeCount;}
+    /** @return number of internal node partials calculated **/
+    public long getPartialUpdateCount() {return m_nPartialUpdateCount;}
+    /** @return number of branches for which transition matrices were calculated **/
+    public long getMatrixUpdateCount() {return m_nMatrixUpdateCount;}
+    /** @return time spent calculating partials in nanoseconds **/
+    public long getPartialTime() {return m_nPartialTime;}
+    /** @return time spent calculating transition matrices in nanoseconds **/
+    public long getMatrixTime() {return m_nMatrixTime;}
+    /** @return time spent in evaluations that recalculated the whole tree in nanoseconds **/
+    public long getFullRecomputeTime() {return m_nFullRecomputeTime;}
+    /** @return number of internal node partials calculated in the last evaluation **/
+    public int getLastPartialUpdates() {return m_nLastPartialUpdates;}
+    /** @return number of transition matrices calculated in the last evaluation **/
+    public int getLastMatrixUpdates() {return m_nLastMatrixUpdates;}
 } // class TreeLikelihood
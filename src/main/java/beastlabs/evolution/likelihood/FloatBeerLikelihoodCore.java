@@ -0,0 +1,725 @@
+/*
+ * File FloatBeerLikelihoodCore.java
+ *
+ * Copyright (C) 2026 Remco Bouckaert remco@cs.auckland.ac.nz
+ *
+ * This file is part of BEAST2.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+/** single precision likelihood core. Partials and transition matrices are stored
+ * as floats, which halves the memory traffic of the peeling compared to the double
+ * cores, at the cost of precision.
+ *
+ * Floats underflow after a few dozen nodes, so partials are rescaled per node and
+ * per pattern: after calculating the partials of a node, the partials of every pattern
+ * are divided by their maximum and the log of that maximum is kept in a (double)
+ * scaling buffer that flips with the partials on store/restore. Scaling is always on:
+ * without it floats underflow, so setUseScaling() cannot switch it off.
+ *
+ * For validation, set a validation interval (e.g. -Dbeast.float.validate=1000): every
+ * that many likelihood calculations the tree is recomputed in double precision with
+ * BeerLikelihoodCoreSimple and the drift of the log likelihood is reported.
+ */
+
+
+package beastlabs.evolution.likelihood;
+
+import beast.base.core.Log;
+
+
+public class FloatBeerLikelihoodCore extends ExperimentalLikelihoodCore {
+	/** system property with number of likelihood calculations between double precision checks **/
+	public static final String VALIDATE_PROPERTY = "beast.float.validate";
+
+	/** various counts **/
+	protected int m_nStates;
+	protected int m_nNodes;
+	protected int m_nPatterns;
+	protected int m_nPartialsSize;
+	protected int m_nMatrixSize;
+	protected int m_nMatrices;
+	protected boolean m_bIntegrateCategories;
+
+	protected float[][][] m_fPartials; // 2 x #nodes x (#patterns*#states*#matrices)
+	/** log of the factor the partials of a pattern were divided by **/
+	protected double[][][] m_fLogScalingFactors; // 2 x #nodes x #patterns
+
+	protected int[][] m_iStates; // #nodes x #patterns
+
+	protected float[][][] m_fMatrices; // 2 x #nodes x matrix size
+
+	protected int[] m_iCurrentMatrices; // # nodes
+	protected int[] m_iStoredMatrices;  // # nodes
+	protected int[] m_iCurrentPartials; // # nodes
+	protected int[] m_iStoredPartials;  // # nodes
+
+	// stack related variables
+	final static int OPERATION_SS = 0;
+	final static int OPERATION_SP = 1;
+	final static int OPERATION_PP = 2;
+	int m_nTopOfStack = 0;
+	int [] m_nOperation; // #nodes
+	int [] m_nNode1;     // #nodes
+	int [] m_nNode2;     // #nodes
+	int [] m_nNode3;     // #nodes
+
+	/** memory allocation for the root partials **/
+	double[] m_fRootPartials;
+	double[] m_fSumLogScalingFactors; // #patterns
+	double[] m_fInvariantLikelihoods; // #patterns
+	/** dealing with proportion of site being invariant **/
+	int [] m_iConstantPattern = null;
+	double m_fProportianInvariant = 0.0;
+
+	/** memory allocation for likelihoods for each of the patterns **/
+	double[] m_fPatternLogLikelihoods;
+	int [] m_nPatternWeights;
+
+	/** validation against double precision, only used when m_nValidationInterval > 0 **/
+	int m_nValidationInterval;
+	int m_nEvaluations = 0;
+	/** children of internal nodes, flipped with the partials, so the tree can be recomputed **/
+	int [][] m_nChild1; // 2 x #nodes
+	int [][] m_nChild2; // 2 x #nodes
+	/** double precision copies of the input used by the float calculation **/
+	double [][][] m_fMatricesD; // 2 x #nodes x matrix size
+	double [][] m_fLeafPartialsD; // #nodes x partials size
+	BeerLikelihoodCoreSimple m_validationCore;
+	/** absolute difference in log likelihood above which a warning is issued **/
+	double m_fDriftTolerance = 1e-2;
+	double m_fLastDrift = 0;
+	double m_fMaxDrift = 0;
+
+
+	/** validation interval is taken from the beast.float.validate property, if any **/
+	public FloatBeerLikelihoodCore(int nStateCount) {
+		this(nStateCount, Integer.getInteger(VALIDATE_PROPERTY, 0));
+	} // c'tor
+
+	/** @param nValidationInterval number of likelihood calculations between double precision checks, 0 for none **/
+	public FloatBeerLikelihoodCore(int nStateCount, int nValidationInterval) {
+		this.m_nStates = nStateCount;
+		this.m_nValidationInterval = nValidationInterval;
+		// floats underflow quickly, so start scaled
+		m_bUseScaling = true;
+	} // c'tor
+
+
+	/**
+	 * Calculates partial likelihoods at a node when both children have states.
+	 */
+	void calcAllMatrixSSP(int iNode1, int iNode2, int iNode3) {
+		int [] iStates1 = m_iStates[iNode1];
+		int [] iStates2 = m_iStates[iNode2];
+		float [] fMatrices1 = m_fMatrices[m_iCurrentMatrices[iNode1]][iNode1];
+		float [] fMatrices2 = m_fMatrices[m_iCurrentMatrices[iNode2]][iNode2];
+		float [] fPartials3 = m_fPartials[m_iCurrentPartials[iNode3]][iNode3];
+		int v = 0;
+
+		for (int l = 0; l < m_nMatrices; l++) {
+			for (int k = 0; k < m_nPatterns; k++) {
+				int state1 = iStates1[k];
+				int state2 = iStates2[k];
+				int w = l * m_nMatrixSize;
+
+				if (state1 < m_nStates && state2 < m_nStates) {
+					for (int i = 0; i < m_nStates; i++) {
+						fPartials3[v] = fMatrices1[w + state1] * fMatrices2[w + state2];
+						v++;
+						w += m_nStates;
+					}
+				} else if (state1 < m_nStates) {
+					// child 2 has a gap or unknown state so treat it as unknown
+					for (int i = 0; i < m_nStates; i++) {
+						fPartials3[v] = fMatrices1[w + state1];
+						v++;
+						w += m_nStates;
+					}
+				} else if (state2 < m_nStates) {
+					// child 1 has a gap or unknown state so treat it as unknown
+					for (int i = 0; i < m_nStates; i++) {
+						fPartials3[v] = fMatrices2[w + state2];
+						v++;
+						w += m_nStates;
+					}
+				} else {
+					// both children have a gap or unknown state so set partials to 1
+					for (int j = 0; j < m_nStates; j++) {
+						fPartials3[v] = 1.0f;
+						v++;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Calculates partial likelihoods at a node when one child has states and one has partials.
+	 */
+	void calcAllMatrixSPP(int iNode1, int iNode2, int iNode3) {
+		int [] iStates1 = m_iStates[iNode1];
+		float [] fMatrices1 = m_fMatrices[m_iCurrentMatrices[iNode1]][iNode1];
+		float [] fPartials2 = m_fPartials[m_iCurrentPartials[iNode2]][iNode2];
+		float [] fMatrices2 = m_fMatrices[m_iCurrentMatrices[iNode2]][iNode2];
+		float [] fPartials3 = m_fPartials[m_iCurrentPartials[iNode3]][iNode3];
+
+		int u = 0;
+		int v = 0;
+		for (int l = 0; l < m_nMatrices; l++) {
+			for (int k = 0; k < m_nPatterns; k++) {
+				int state1 = iStates1[k];
+				int w = l * m_nMatrixSize;
+				for (int i = 0; i < m_nStates; i++) {
+					float sum = 0.0f;
+					for (int j = 0; j < m_nStates; j++) {
+						sum += fMatrices2[w] * fPartials2[v + j];
+						w++;
+					}
+					// if child 1 has a gap or unknown state, don't use it
+					fPartials3[u] = state1 < m_nStates ? fMatrices1[w - m_nStates + state1] * sum : sum;
+					u++;
+				}
+				v += m_nStates;
+			}
+		}
+	}
+
+	/**
+	 * Calculates partial likelihoods at a node when both children have partials.
+	 */
+	void calcAllMatrixPPP(int iNode1, int iNode2, int iNode3) {
+		float [] fPartials1 = m_fPartials[m_iCurrentPartials[iNode1]][iNode1];
+		float [] fMatrices1 = m_fMatrices[m_iCurrentMatrices[iNode1]][iNode1];
+		float [] fPartials2 = m_fPartials[m_iCurrentPartials[iNode2]][iNode2];
+		float [] fMatrices2 = m_fMatrices[m_iCurrentMatrices[iNode2]][iNode2];
+		float [] fPartials3 = m_fPartials[m_iCurrentPartials[iNode3]][iNode3];
+
+		int u = 0;
+		int v = 0;
+		for (int l = 0; l < m_nMatrices; l++) {
+			for (int k = 0; k < m_nPatterns; k++) {
+				int w = l * m_nMatrixSize;
+				for (int i = 0; i < m_nStates; i++) {
+					float sum1 = 0.0f, sum2 = 0.0f;
+					for (int j = 0; j < m_nStates; j++) {
+						sum1 += fMatrices1[w] * fPartials1[v + j];
+						sum2 += fMatrices2[w] * fPartials2[v + j];
+						w++;
+					}
+					fPartials3[u] = sum1 * sum2;
+					u++;
+				}
+				v += m_nStates;
+			}
+		}
+	}
+
+	/**
+	 * Calculates partial likelihoods at a node.
+	 *
+	 * @param iNode1 the 'child 1' node
+	 * @param iNode2 the 'child 2' node
+	 * @param iNode3 the 'parent' node
+	 */
+	@Override
+	public void calculatePartials(int iNode1, int iNode2, int iNode3) {
+		m_nChild1[m_iCurrentPartials[iNode3]][iNode3] = iNode1;
+		m_nChild2[m_iCurrentPartials[iNode3]][iNode3] = iNode2;
+
+		int nOperation;
+		if (m_iStates[iNode1] != null && m_iStates[iNode2] != null) {
+			nOperation = OPERATION_SS;
+		} else if (m_iStates[iNode1] != null) {
+			nOperation = OPERATION_SP;
+		} else if (m_iStates[iNode2] != null) {
+			nOperation = OPERATION_SP;
+			int tmp = iNode1; iNode1 = iNode2; iNode2 = tmp;
+		} else {
+			nOperation = OPERATION_PP;
+		}
+		if (m_fPartials[m_iCurrentPartials[iNode1]][iNode1] != null && m_fPartials[m_iCurrentPartials[iNode2]][iNode2] != null) {
+			// for handling ambiguities
+			nOperation = OPERATION_PP;
+		}
+		// prepare the stack
+		m_nOperation[m_nTopOfStack] = nOperation;
+		m_nNode1[m_nTopOfStack] = iNode1;
+		m_nNode2[m_nTopOfStack] = iNode2;
+		m_nNode3[m_nTopOfStack] = iNode3;
+		m_nTopOfStack++;
+	}
+
+	@Override
+	public void processStack() {
+		for (int iJob = 0; iJob < m_nTopOfStack; iJob++) {
+			int iNode1 = m_nNode1[iJob];
+			int iNode2 = m_nNode2[iJob];
+			int iNode3 = m_nNode3[iJob];
+
+			switch (m_nOperation[iJob]) {
+			case OPERATION_SS:
+				calcAllMatrixSSP(iNode1, iNode2, iNode3);
+				break;
+			case OPERATION_SP:
+				calcAllMatrixSPP(iNode1, iNode2, iNode3);
+				break;
+			case OPERATION_PP:
+				calcAllMatrixPPP(iNode1, iNode2, iNode3);
+				break;
+			}
+			if (m_bUseScaling) {
+				scalePartials(iNode3);
+			} else {
+				java.util.Arrays.fill(m_fLogScalingFactors[m_iCurrentPartials[iNode3]][iNode3], 0.0);
+			}
+		}
+		m_nTopOfStack = 0;
+	}
+
+	/**
+	 * Divides the partials of every pattern at node iNode by their maximum over
+	 * states and categories, and records the log of that maximum.
+	 */
+	void scalePartials(int iNode) {
+		float [] fPartials = m_fPartials[m_iCurrentPartials[iNode]][iNode];
+		double [] fLogScalingFactors = m_fLogScalingFactors[m_iCurrentPartials[iNode]][iNode];
+		int nCategorySize = m_nPatterns * m_nStates;
+		int nMatrices = fPartials.length / nCategorySize;
+
+		for (int k = 0; k < m_nPatterns; k++) {
+			float fMax = 0;
+			for (int l = 0; l < nMatrices; l++) {
+				int v = l * nCategorySize + k * m_nStates;
+				for (int i = 0; i < m_nStates; i++) {
+					fMax = Math.max(fMax, fPartials[v + i]);
+				}
+			}
+			if (fMax > 0) {
+				float fScale = 1.0f / fMax;
+				for (int l = 0; l < nMatrices; l++) {
+					int v = l * nCategorySize + k * m_nStates;
+					for (int i = 0; i < m_nStates; i++) {
+						fPartials[v + i] *= fScale;
+					}
+				}
+				fLogScalingFactors[k] = Math.log(fMax);
+			} else {
+				fLogScalingFactors[k] = 0.0;
+			}
+		}
+	}
+
+	/**
+	 * Sums the log scaling factors of each pattern over all nodes into fOutLogScalingFactors
+	 */
+	void calculateLogScalingFactors(double[] fOutLogScalingFactors) {
+		java.util.Arrays.fill(fOutLogScalingFactors, 0.0);
+		if (m_bUseScaling) {
+			for (int i = 0; i < m_nNodes; i++) {
+				double [] fLogScalingFactors = m_fLogScalingFactors[m_iCurrentPartials[i]][i];
+				if (fLogScalingFactors != null) {
+					for (int k = 0; k < m_nPatterns; k++) {
+						fOutLogScalingFactors[k] += fLogScalingFactors[k];
+					}
+				}
+			}
+		}
+	}
+
+	@Override
+	public void setPatternWeights(int [] nPatterWeights) {
+		System.arraycopy(nPatterWeights, 0, m_nPatternWeights, 0, m_nPatterns);
+	}
+
+	@Override
+	public void setProportionInvariant(double fProportianInvariant, int [] iConstantPatterns) {
+		m_fProportianInvariant = fProportianInvariant;
+		m_iConstantPattern = new int[iConstantPatterns.length];
+		System.arraycopy(iConstantPatterns, 0, m_iConstantPattern, 0, iConstantPatterns.length);
+	}
+
+	@Override
+	public void getPatternLogLikelihoods(double [] fPatternLogLikelihoods) {
+		System.arraycopy(m_fPatternLogLikelihoods, 0, fPatternLogLikelihoods, 0, m_nPatterns);
+	}
+
+	/**
+	 * Integrates partials across categories.
+	 * @param fProportions the proportions of sites in each category
+	 * @param fOutPartials an array into which the partials will go
+	 */
+	void integratePartials(int iNode, double[] fProportions, double[] fOutPartials) {
+		processStack();
+
+		float[] fInPartials = m_fPartials[m_iCurrentPartials[iNode]][iNode];
+		int nSize = m_nPatterns * m_nStates;
+		for (int u = 0; u < nSize; u++) {
+			fOutPartials[u] = fInPartials[u] * fProportions[0];
+		}
+		int v = nSize;
+		for (int l = 1; l < m_nMatrices; l++) {
+			for (int u = 0; u < nSize; u++) {
+				fOutPartials[u] += fInPartials[v] * fProportions[l];
+				v++;
+			}
+		}
+	}
+
+	/**
+	 * Calculates pattern log likelihoods at a node.
+	 * @param fPartials the (scaled) partials used to calculate the likelihoods
+	 * @param fFrequencies an array of state frequencies
+	 * @param fOutLogLikelihoods an array into which the likelihoods will go
+	 */
+	void calculateLogLikelihoods(double[] fPartials, double[] fFrequencies, double[] fOutLogLikelihoods) {
+		calculateLogScalingFactors(m_fSumLogScalingFactors);
+		int v = 0;
+		for (int k = 0; k < m_nPatterns; k++) {
+			double sum = 0.0;
+			for (int i = 0; i < m_nStates; i++) {
+				sum += fFrequencies[i] * fPartials[v];
+				v++;
+			}
+			fOutLogLikelihoods[k] = Math.log(sum) + m_fSumLogScalingFactors[k];
+		}
+	}
+
+	/**
+	 * Adds the invariant sites contribution to the pattern log likelihoods. The root
+	 * partials are scaled, so rather than adding to the partials as in BeerLikelihoodCoreSimple
+	 * this is done on log scale to prevent overflow.
+	 */
+	void addInvariantLikelihoods(double[] fFrequencies, double[] fLogLikelihoods) {
+		java.util.Arrays.fill(m_fInvariantLikelihoods, 0.0);
+		for (int i : m_iConstantPattern) {
+			m_fInvariantLikelihoods[i / m_nStates] += m_fProportianInvariant * fFrequencies[i % m_nStates];
+		}
+		for (int k = 0; k < m_nPatterns; k++) {
+			if (m_fInvariantLikelihoods[k] > 0) {
+				double a = fLogLikelihoods[k];
+				double b = Math.log(m_fInvariantLikelihoods[k]);
+				double fMax = Math.max(a, b);
+				fLogLikelihoods[k] = fMax + Math.log(Math.exp(a - fMax) + Math.exp(b - fMax));
+			}
+		}
+	}
+
+
+	/**
+	 * initializes partial likelihood arrays.
+	 *
+	 * @param nNodeCount           the number of nodes in the tree
+	 * @param nPatternCount        the number of patterns
+	 * @param nMatrixCount         the number of matrices (i.e., number of categories)
+	 * @param bIntegrateCategories whether sites are being integrated over all matrices
+	 */
+	@Override
+	public boolean initialize(int nNodeCount, int nPatternCount, int nMatrixCount, boolean bIntegrateCategories, boolean bUseAmbiguities) {
+		this.m_nNodes = nNodeCount;
+		this.m_nPatterns = nPatternCount;
+		this.m_nMatrices = nMatrixCount;
+		this.m_bIntegrateCategories = bIntegrateCategories;
+
+		if (bIntegrateCategories) {
+			m_nPartialsSize = nPatternCount * m_nStates * nMatrixCount;
+		} else {
+			m_nPartialsSize = nPatternCount * m_nStates;
+		}
+
+		m_fPartials = new float[2][nNodeCount][];
+		m_fLogScalingFactors = new double[2][nNodeCount][];
+
+		m_iCurrentMatrices = new int[nNodeCount];
+		m_iStoredMatrices = new int[nNodeCount];
+		m_iCurrentPartials = new int[nNodeCount];
+		m_iStoredPartials = new int[nNodeCount];
+
+		m_iStates = new int[nNodeCount][];
+
+		m_nMatrixSize = m_nStates * m_nStates;
+		m_fMatrices = new float[2][nNodeCount][nMatrixCount * m_nMatrixSize];
+
+		m_nTopOfStack = 0;
+		m_nOperation    = new int[nNodeCount]; // #nodes
+		m_nNode1        = new int[nNodeCount];// #nodes
+		m_nNode2        = new int[nNodeCount];// #nodes
+		m_nNode3        = new int[nNodeCount];// #nodes
+
+		m_nChild1 = new int[2][nNodeCount];
+		m_nChild2 = new int[2][nNodeCount];
+		for (int i = 0; i < 2; i++) {
+			java.util.Arrays.fill(m_nChild1[i], -1);
+			java.util.Arrays.fill(m_nChild2[i], -1);
+		}
+		if (m_nValidationInterval > 0) {
+			m_fMatricesD = new double[2][nNodeCount][nMatrixCount * m_nMatrixSize];
+			m_fLeafPartialsD = new double[nNodeCount][];
+			m_validationCore = null;
+		}
+
+		m_fRootPartials = new double[m_nPatterns * m_nStates];
+		m_fSumLogScalingFactors = new double[m_nPatterns];
+		m_fInvariantLikelihoods = new double[m_nPatterns];
+		m_fPatternLogLikelihoods = new double[m_nPatterns];
+		m_nPatternWeights  = new int[m_nPatterns];
+		return true;
+	}
+
+	/**
+	 * cleans up and deallocates arrays.
+	 */
+	@Override
+	public void finalize() throws java.lang.Throwable  {
+		m_nNodes = 0;
+		m_nPatterns = 0;
+		m_nMatrices = 0;
+
+		m_fPartials = null;
+		m_fLogScalingFactors = null;
+		m_iCurrentPartials = null;
+		m_iStoredPartials = null;
+		m_iStates = null;
+		m_fMatrices = null;
+		m_iCurrentMatrices = null;
+		m_iStoredMatrices = null;
+		m_fRootPartials = null;
+		m_fSumLogScalingFactors = null;
+		m_fInvariantLikelihoods = null;
+		m_fPatternLogLikelihoods = null;
+		m_nPatternWeights  = null;
+		m_nChild1 = null;
+		m_nChild2 = null;
+		m_fMatricesD = null;
+		m_fLeafPartialsD = null;
+		if (m_validationCore != null) {
+			m_validationCore.finalize();
+			m_validationCore = null;
+		}
+	}
+
+	/**
+	 * Allocates partials for a node
+	 */
+	@Override
+	public void createNodePartials(int iNode) {
+		m_fPartials[0][iNode] = new float[m_nPartialsSize];
+		m_fPartials[1][iNode] = new float[m_nPartialsSize];
+		m_fLogScalingFactors[0][iNode] = new double[m_nPatterns];
+		m_fLogScalingFactors[1][iNode] = new double[m_nPatterns];
+	}
+
+	/**
+	 * Sets partials for a node
+	 */
+	@Override
+	public void setNodePartials(int iNode, double[] fPartials) {
+		if (m_fPartials[0][iNode] == null) {
+			createNodePartials(iNode);
+		}
+		float [] fTarget = m_fPartials[0][iNode];
+		for (int i = 0; i < m_nPartialsSize; i++) {
+			fTarget[i] = (float) fPartials[i % fPartials.length];
+		}
+		if (m_fLeafPartialsD != null) {
+			m_fLeafPartialsD[iNode] = fPartials.clone();
+		}
+	}
+
+	/**
+	 * Sets states for a node
+	 */
+	@Override
+	public void setNodeStates(int iNode, int[] iStates) {
+		if (m_iStates[iNode] == null) {
+			m_iStates[iNode] = new int[m_nPatterns];
+		}
+		System.arraycopy(iStates, 0, m_iStates[iNode], 0, m_nPatterns);
+	}
+
+	@Override
+	public void setNodeMatrixForUpdate(int iNode) {
+		m_iCurrentMatrices[iNode] = 1 - m_iCurrentMatrices[iNode];
+	}
+
+	/**
+	 * Sets probability matrix for a node
+	 */
+	@Override
+	public void setNodeMatrix(int iNode, int iMatrixIndex, double[] fMatrix) {
+		float [] fMatrices = m_fMatrices[m_iCurrentMatrices[iNode]][iNode];
+		int k = iMatrixIndex * m_nMatrixSize;
+		for (int i = 0; i < m_nMatrixSize; i++) {
+			fMatrices[k + i] = (float) fMatrix[i];
+		}
+		if (m_fMatricesD != null) {
+			System.arraycopy(fMatrix, 0, m_fMatricesD[m_iCurrentMatrices[iNode]][iNode], k, m_nMatrixSize);
+		}
+	}
+
+	@Override
+	public void setNodePartialsForUpdate(int iNode) {
+		m_iCurrentPartials[iNode] = 1 - m_iCurrentPartials[iNode];
+	}
+
+	/**
+	 * Store current state
+	 */
+	@Override
+	public void store() {
+		System.arraycopy(m_iCurrentMatrices, 0, m_iStoredMatrices, 0, m_nNodes);
+		System.arraycopy(m_iCurrentPartials, 0, m_iStoredPartials, 0, m_nNodes);
+	}
+
+	@Override
+	public void unstore() {
+		System.arraycopy(m_iStoredMatrices, 0, m_iCurrentMatrices, 0, m_nNodes);
+		System.arraycopy(m_iStoredPartials, 0, m_iCurrentPartials, 0, m_nNodes);
+	}
+
+	/**
+	 * Restore the stored state
+	 */
+	@Override
+	public void restore() {
+		// Rather than copying the stored stuff back, just swap the pointers...
+		int[] iTmp1 = m_iCurrentMatrices;
+		m_iCurrentMatrices = m_iStoredMatrices;
+		m_iStoredMatrices = iTmp1;
+
+		int[] iTmp2 = m_iCurrentPartials;
+		m_iCurrentPartials = m_iStoredPartials;
+		m_iStoredPartials = iTmp2;
+	}
+
+	/** scaling is dynamic and always on, so fScale is ignored **/
+	@Override
+	public void setUseScaling(double fScale) {
+		m_bUseScaling = true;
+	}
+
+	@Override
+	public boolean isAlwaysScaled() {
+		return true;
+	}
+
+	@Override
+	public double calcLogP(int iNode, double[] fProportions, double[] fFrequencies) {
+		integratePartials(iNode, fProportions, m_fRootPartials);
+
+		calculateLogLikelihoods(m_fRootPartials, fFrequencies, m_fPatternLogLikelihoods);
+
+		if (m_iConstantPattern != null) {
+			// some portion of sites is invariant, so adjust likelihoods for this
+			addInvariantLikelihoods(fFrequencies, m_fPatternLogLikelihoods);
+		}
+
+		double fLogP = 0.0;
+		for (int i = 0; i < m_nPatterns; i++) {
+			fLogP += m_fPatternLogLikelihoods[i] * m_nPatternWeights[i];
+		}
+
+		if (m_nValidationInterval > 0 && ++m_nEvaluations % m_nValidationInterval == 0) {
+			validate(iNode, fProportions, fFrequencies, fLogP);
+		}
+		return fLogP;
+	}
+
+	/**
+	 * Recompute the tree below iNode in double precision and report the difference
+	 * with the single precision log likelihood fLogP.
+	 */
+	void validate(int iNode, double[] fProportions, double[] fFrequencies, double fLogP) {
+		try {
+			if (m_validationCore == null) {
+				m_validationCore = new BeerLikelihoodCoreSimple(m_nStates);
+				m_validationCore.initialize(m_nNodes, m_nPatterns, m_nMatrices, m_bIntegrateCategories, false);
+				for (int i = 0; i < m_nNodes; i++) {
+					if (m_iStates[i] != null) {
+						m_validationCore.setNodeStates(i, m_iStates[i]);
+					} else if (m_fLeafPartialsD[i] != null) {
+						m_validationCore.setNodePartials(i, m_fLeafPartialsD[i]);
+					} else {
+						m_validationCore.createNodePartials(i);
+					}
+				}
+			}
+			double [] fMatrix = new double[m_nMatrixSize];
+			for (int i = 0; i < m_nNodes; i++) {
+				double [] fMatrices = m_fMatricesD[m_iCurrentMatrices[i]][i];
+				for (int l = 0; l < m_nMatrices; l++) {
+					System.arraycopy(fMatrices, l * m_nMatrixSize, fMatrix, 0, m_nMatrixSize);
+					m_validationCore.setNodeMatrix(i, l, fMatrix);
+				}
+			}
+			// scale the double precision partials by the average factor the single precision
+			// partials were scaled by per node, so large trees do not underflow
+			double fMeanLogScale = 0;
+			for (int k = 0; k < m_nPatterns; k++) {
+				fMeanLogScale += m_fSumLogScalingFactors[k];
+			}
+			fMeanLogScale /= m_nPatterns * Math.max(1, m_nNodes / 2);
+			m_validationCore.setUseScaling(Math.exp(-fMeanLogScale));
+			traverseDouble(iNode);
+			m_validationCore.setPatternWeights(m_nPatternWeights);
+			if (m_iConstantPattern != null) {
+				m_validationCore.setProportionInvariant(m_fProportianInvariant, m_iConstantPattern);
+			}
+			double fLogPDouble = m_validationCore.calcLogP(iNode, fProportions, fFrequencies);
+			m_fLastDrift = fLogP - fLogPDouble;
+			if (!Double.isNaN(m_fLastDrift)) {
+				m_fMaxDrift = Math.max(m_fMaxDrift, Math.abs(m_fLastDrift));
+			}
+			if (Math.abs(m_fLastDrift) > m_fDriftTolerance) {
+				Log.warning.println("Single precision likelihood drifted " + m_fLastDrift + " from double precision (" + fLogPDouble + ")");
+			} else {
+				Log.debug.println("Single precision likelihood drift: " + m_fLastDrift);
+			}
+		} catch (Throwable e) {
+			Log.warning.println("Could not validate single precision likelihood: " + e.getMessage());
+		}
+	}
+
+	/** post order traversal over the recorded children, calculating partials in double **/
+	private void traverseDouble(int iNode) {
+		int iChild1 = m_nChild1[m_iCurrentPartials[iNode]][iNode];
+		int iChild2 = m_nChild2[m_iCurrentPartials[iNode]][iNode];
+		if (iChild1 < 0) {
+			return;
+		}
+		traverseDouble(iChild1);
+		traverseDouble(iChild2);
+		m_validationCore.calculatePartials(iChild1, iChild2, iNode);
+	}
+
+	/** @return difference between single and double precision log likelihood at the last validation **/
+	public double getLastDrift() {
+		return m_fLastDrift;
+	}
+
+	/** @return largest absolute difference between single and double precision log likelihood seen so far **/
+	public double getMaxDrift() {
+		return m_fMaxDrift;
+	}
+
+	public void setDriftTolerance(double fDriftTolerance) {
+		m_fDriftTolerance = fDriftTolerance;
+	}
+
+} // class FloatBeerLikelihoodCore
@@ -0,0 +1,779 @@
+package beastlabs.evolution.likelihood;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import beagle.Beagle;
+import beagle.BeagleFlag;
+import beagle.InstanceDetails;
+import beast.base.core.Log;
+
+/**
+ * Pure Java implementation of the part of the BEAGLE API used by MultiPartitionTreeLikelihood,
+ * so that it can run on machines where the BEAGLE library is not installed.
+ *
+ * Partials for all partitions are stored in a single array per buffer, laid out as in BEAGLE,
+ * that is, [category][pattern][state], and a partition is a range of patterns.
+ * All operations of a call to updatePartialsByPartition are done in one pass over these arrays.
+ * Since patterns are independent, the pattern range of each partition is split into blocks
+ * that are processed in parallel, each block running through all operations in order.
+ * When there are too few patterns to keep all threads busy, operations that do not depend
+ * on each other (typically those at the same level in the tree) are done in parallel instead.
+ *
+ * Scale factors are stored on log scale. Only real eigen decompositions are supported:
+ * setEigenDecomposition throws when eigen values have non-zero imaginary parts.
+ */
+public class JavaMultiPartitionBeagle implements Beagle {
+	/** default smallest number of patterns a thread handles, to prevent overhead dominating for small partitions **/
+	final static int MIN_PATTERNS_PER_TASK = 128;
+	int minPatternsPerTask = MIN_PATTERNS_PER_TASK;
+
+	final int tipCount;
+	final int stateCount;
+	final int patternCount;
+	final int categoryCount;
+	final int matrixSize;
+	final int partialsSize;
+
+	/** partials, indexed [buffer][(category * patternCount + pattern) * stateCount + state], allocated when first used **/
+	double [][] partials;
+	/** tip states, indexed [tip][pattern], states >= stateCount are treated as missing data **/
+	int [][] tipStates;
+	/** transition probabilities, indexed [matrix][(category * stateCount + i) * stateCount + j] **/
+	double [][] matrices;
+	/** log scale factors, indexed [scale buffer][pattern] **/
+	double [][] scaleFactors;
+
+	double [][] eigenVectors;
+	double [][] inverseEigenVectors;
+	double [][] eigenValues;
+
+	/** indexed by the buffer indices used by the caller, grown as required **/
+	double [][] categoryRates = new double[1][];
+	double [][] categoryWeights = new double[1][];
+	double [][] stateFrequencies = new double[1][];
+
+	double [] patternWeights;
+	double [] siteLogLikelihoods;
+
+	int partitionCount = 1;
+	/** patterns of partition i are partitionStart[i] ... partitionStart[i+1]-1 **/
+	int [] partitionStart;
+
+	int threadCount = 1;
+	ExecutorService exec = null;
+
+	/** work space for calculating transition probabilities **/
+	double [] expLambda;
+
+	public JavaMultiPartitionBeagle(int tipCount, int partialsBufferCount, int compactBufferCount, int stateCount,
+			int patternCount, int eigenBufferCount, int matrixBufferCount, int categoryCount, int scaleBufferCount) {
+		this.tipCount = tipCount;
+		this.stateCount = stateCount;
+		this.patternCount = patternCount;
+		this.categoryCount = categoryCount;
+		matrixSize = stateCount * stateCount;
+		partialsSize = categoryCount * patternCount * stateCount;
+
+		partials = new double[partialsBufferCount][];
+		tipStates = new int[Math.max(tipCount, compactBufferCount)][];
+		matrices = new double[matrixBufferCount][categoryCount * matrixSize];
+		scaleFactors = new double[scaleBufferCount][];
+		eigenVectors = new double[eigenBufferCount][];
+		inverseEigenVectors = new double[eigenBufferCount][];
+		eigenValues = new double[eigenBufferCount][];
+
+		patternWeights = new double[patternCount];
+		Arrays.fill(patternWeights, 1.0);
+		siteLogLikelihoods = new double[patternCount];
+		partitionStart = new int[]{0, patternCount};
+		expLambda = new double[stateCount];
+	}
+
+	@Override
+	public void finalize() throws Throwable {
+		if (exec != null) {
+			exec.shutdownNow();
+			exec = null;
+		}
+	}
+
+	@Override
+	public void setCPUThreadCount(int threadCount) {
+		if (exec != null) {
+			exec.shutdown();
+			exec = null;
+		}
+		this.threadCount = Math.max(1, threadCount);
+		if (this.threadCount > 1) {
+			exec = Executors.newFixedThreadPool(this.threadCount, r -> {
+				Thread thread = new Thread(r, "JavaMultiPartitionBeagle");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+
+	public int getCPUThreadCount() {
+		return threadCount;
+	}
+
+	public void setMinPatternsPerTask(int minPatternsPerTask) {
+		this.minPatternsPerTask = Math.max(1, minPatternsPerTask);
+	}
+
+	@Override
+	public void setPatternWeights(final double[] patternWeights) {
+		System.arraycopy(patternWeights, 0, this.patternWeights, 0, patternCount);
+	}
+
+	@Override
+	public void setPatternPartitions(int partitionCount, final int[] patternPartitions) {
+		this.partitionCount = partitionCount;
+		partitionStart = new int[partitionCount + 1];
+		int k = 0;
+		for (int i = 0; i < partitionCount; i++) {
+			partitionStart[i] = k;
+			while (k < patternCount && patternPartitions[k] == i) {
+				k++;
+			}
+		}
+		if (k != patternCount) {
+			throw new IllegalArgumentException("Patterns of a partition should be consecutive and ordered by partition");
+		}
+		partitionStart[partitionCount] = patternCount;
+	}
+
+	@Override
+	public void setTipStates(int tipIndex, final int[] inStates) {
+		tipStates[tipIndex] = Arrays.copyOf(inStates, patternCount);
+		partials[tipIndex] = null;
+	}
+
+	@Override
+	public void getTipStates(int tipIndex, final int[] outStates) {
+		System.arraycopy(tipStates[tipIndex], 0, outStates, 0, patternCount);
+	}
+
+	@Override
+	public void setTipPartials(int tipIndex, final double[] inPartials) {
+		// replicate for each category
+		double [] p = getPartials(tipIndex);
+		int n = patternCount * stateCount;
+		for (int l = 0; l < categoryCount; l++) {
+			System.arraycopy(inPartials, 0, p, l * n, n);
+		}
+		if (tipIndex < tipStates.length) {
+			tipStates[tipIndex] = null;
+		}
+	}
+
+	@Override
+	public void setPartials(int bufferIndex, final double[] inPartials) {
+		System.arraycopy(inPartials, 0, getPartials(bufferIndex), 0, partialsSize);
+		if (bufferIndex < tipStates.length) {
+			tipStates[bufferIndex] = null;
+		}
+	}
+
+	@Override
+	public void getPartials(int bufferIndex, int scaleIndex, final double[] outPartials) {
+		System.arraycopy(getPartials(bufferIndex), 0, outPartials, 0, partialsSize);
+		if (scaleIndex != Beagle.NONE) {
+			double [] scale = getScaleFactors(scaleIndex);
+			for (int l = 0; l < categoryCount; l++) {
+				for (int k = 0; k < patternCount; k++) {
+					double f = Math.exp(scale[k]);
+					int v = (l * patternCount + k) * stateCount;
+					for (int i = 0; i < stateCount; i++) {
+						outPartials[v + i] *= f;
+					}
+				}
+			}
+		}
+	}
+
+	@Override
+	public void getLogScaleFactors(int scaleIndex, final double[] outFactors) {
+		System.arraycopy(getScaleFactors(scaleIndex), 0, outFactors, 0, patternCount);
+	}
+
+	@Override
+	public void setEigenDecomposition(int eigenIndex, final double[] inEigenVectors, final double[] inInverseEigenVectors,
+			final double[] inEigenValues) {
+		eigenVectors[eigenIndex] = inEigenVectors.clone();
+		inverseEigenVectors[eigenIndex] = inInverseEigenVectors.clone();
+		for (int i = stateCount; i < inEigenValues.length; i++) {
+			if (inEigenValues[i] != 0.0) {
+				throw new UnsupportedOperationException("Complex eigen decompositions are not supported by the Java implementation");
+			}
+		}
+		eigenValues[eigenIndex] = Arrays.copyOf(inEigenValues, stateCount);
+	}
+
+	@Override
+	public void setStateFrequencies(int stateFrequenciesIndex, final double[] stateFrequencies) {
+		this.stateFrequencies = grow(this.stateFrequencies, stateFrequenciesIndex);
+		this.stateFrequencies[stateFrequenciesIndex] = stateFrequencies.clone();
+	}
+
+	@Override
+	public void setCategoryWeights(int categoryWeightsIndex, final double[] categoryWeights) {
+		this.categoryWeights = grow(this.categoryWeights, categoryWeightsIndex);
+		this.categoryWeights[categoryWeightsIndex] = categoryWeights.clone();
+	}
+
+	@Override
+	public void setCategoryRates(final double[] inCategoryRates) {
+		setCategoryRatesWithIndex(0, inCategoryRates);
+	}
+
+	@Override
+	public void setCategoryRatesWithIndex(int categoryRatesIndex, final double[] inCategoryRates) {
+		categoryRates = grow(categoryRates, categoryRatesIndex);
+		categoryRates[categoryRatesIndex] = inCategoryRates.clone();
+	}
+
+	@Override
+	public void convolveTransitionMatrices(final int[] firstIndices, final int[] secondIndices, final int[] resultIndices,
+			int matrixCount) {
+		for (int n = 0; n < matrixCount; n++) {
+			double [] m1 = matrices[firstIndices[n]];
+			double [] m2 = matrices[secondIndices[n]];
+			double [] result = new double[categoryCount * matrixSize];
+			for (int l = 0; l < categoryCount; l++) {
+				int w = l * matrixSize;
+				for (int i = 0; i < stateCount; i++) {
+					for (int j = 0; j < stateCount; j++) {
+						double sum = 0;
+						for (int k = 0; k < stateCount; k++) {
+							sum += m1[w + i * stateCount + k] * m2[w + k * stateCount + j];
+						}
+						result[w + i * stateCount + j] = sum;
+					}
+				}
+			}
+			matrices[resultIndices[n]] = result;
+		}
+	}
+
+	@Override
+	public void addTransitionMatrices(final int[] firstIndices, final int[] secondIndices, final int[] resultIndices,
+			int matrixCount) {
+		for (int n = 0; n < matrixCount; n++) {
+			double [] m1 = matrices[firstIndices[n]];
+			double [] m2 = matrices[secondIndices[n]];
+			double [] result = new double[categoryCount * matrixSize];
+			for (int i = 0; i < result.length; i++) {
+				result[i] = m1[i] + m2[i];
+			}
+			matrices[resultIndices[n]] = result;
+		}
+	}
+
+	@Override
+	public void transposeTransitionMatrices(final int[] inIndices, final int[] outIndices, int matrixCount) {
+		for (int n = 0; n < matrixCount; n++) {
+			double [] m = matrices[inIndices[n]];
+			double [] result = new double[categoryCount * matrixSize];
+			for (int l = 0; l < categoryCount; l++) {
+				int w = l * matrixSize;
+				for (int i = 0; i < stateCount; i++) {
+					for (int j = 0; j < stateCount; j++) {
+						result[w + j * stateCount + i] = m[w + i * stateCount + j];
+					}
+				}
+			}
+			matrices[outIndices[n]] = result;
+		}
+	}
+
+	@Override
+	public void updateTransitionMatrices(int eigenIndex, final int[] probabilityIndices, final int[] firstDerivativeIndices,
+			final int[] secondDervativeIndices, final double[] edgeLengths, int count) {
+		checkNoDerivatives(firstDerivativeIndices, secondDervativeIndices);
+		for (int n = 0; n < count; n++) {
+			calcTransitionMatrix(eigenIndex, categoryRates[0], edgeLengths[n], matrices[probabilityIndices[n]]);
+		}
+	}
+
+	@Override
+	public void updateTransitionMatricesWithMultipleModels(final int[] eigenIndices, final int[] categoryRateIndices,
+			final int[] probabilityIndices, final int[] firstDerivativeIndices, final int[] secondDervativeIndices,
+			final double[] edgeLengths, int count) {
+		checkNoDerivatives(firstDerivativeIndices, secondDervativeIndices);
+		for (int n = 0; n < count; n++) {
+			calcTransitionMatrix(eigenIndices[n], categoryRates[categoryRateIndices[n]], edgeLengths[n], matrices[probabilityIndices[n]]);
+		}
+	}
+
+	/** P(t) = E exp(lambda * rate * t) E^-1 for each of the categories **/
+	private void calcTransitionMatrix(int eigenIndex, double [] rates, double edgeLength, double [] matrix) {
+		final double [] evec = eigenVectors[eigenIndex];
+		final double [] ievc = inverseEigenVectors[eigenIndex];
+		final double [] eval = eigenValues[eigenIndex];
+		for (int l = 0; l < categoryCount; l++) {
+			double t = edgeLength * rates[l];
+			for (int k = 0; k < stateCount; k++) {
+				expLambda[k] = Math.exp(eval[k] * t);
+			}
+			int w = l * matrixSize;
+			for (int i = 0; i < stateCount; i++) {
+				for (int j = 0; j < stateCount; j++) {
+					double sum = 0;
+					for (int k = 0; k < stateCount; k++) {
+						sum += evec[i * stateCount + k] * expLambda[k] * ievc[k * stateCount + j];
+					}
+					// guard against rounding errors
+					matrix[w + i * stateCount + j] = sum > 0 ? sum : 0;
+				}
+			}
+		}
+	}
+
+	private void checkNoDerivatives(int [] firstDerivativeIndices, int [] secondDervativeIndices) {
+		if (firstDerivativeIndices != null || secondDervativeIndices != null) {
+			throw new UnsupportedOperationException("Derivatives are not supported by the Java implementation");
+		}
+	}
+
+	@Override
+	public void setTransitionMatrix(int matrixIndex, final double[] inMatrix, double paddedValue) {
+		System.arraycopy(inMatrix, 0, matrices[matrixIndex], 0, categoryCount * matrixSize);
+	}
+
+	@Override
+	public void setDifferentialMatrix(int matrixIndex, final double[] inMatrix) {
+		throw new UnsupportedOperationException("Differential matrices are not supported by the Java implementation");
+	}
+
+	@Override
+	public void getTransitionMatrix(int matrixIndex, double[] outMatrix) {
+		System.arraycopy(matrices[matrixIndex], 0, outMatrix, 0, categoryCount * matrixSize);
+	}
+
+	@Override
+	public void setRootPrePartials(final int[] inbufferIndices, final int[] instateFrequenciesIndices, int count) {
+		throw new UnsupportedOperationException("Pre-order traversal is not supported by the Java implementation");
+	}
+
+	@Override
+	public void updatePrePartials(final int[] operations, int operationCount, int cumulativeScaleIndex) {
+		throw new UnsupportedOperationException("Pre-order traversal is not supported by the Java implementation");
+	}
+
+	@Override
+	public void updatePrePartialsByPartition(final int[] operations, int operationCount) {
+		throw new UnsupportedOperationException("Pre-order traversal is not supported by the Java implementation");
+	}
+
+	@Override
+	public void calculateEdgeDerivative(final int[] postBufferIndices, final int[] preBufferIndices, final int rootBufferIndex,
+			final int[] firstDerivativeIndices, final int[] secondDerivativeIndices, final int categoryWeightsIndex,
+			final int categoryRatesIndex, final int stateFrequenciesIndex, final int[] cumulativeScaleIndices,
+			int count, double[] outFirstDerivative, double[] outDiagonalSecondDerivative) {
+		throw new UnsupportedOperationException("Derivatives are not supported by the Java implementation");
+	}
+
+	@Override
+	public void calculateEdgeDifferentials(final int[] postBufferIndices, final int[] preBufferIndices,
+			final int[] derivativeMatrixIndices, final int[] categoryWeightsIndices, int count, double[] outDerivatives,
+			double[] outSumDerivatives, double[] outSumSquaredDerivatives) {
+		throw new UnsupportedOperationException("Derivatives are not supported by the Java implementation");
+	}
+
+	@Override
+	public void calculateCrossProductDifferentials(final int[] postBufferIndices, final int[] preBufferIndices,
+			final int[] categoryRateIndices, final int[] categoryWeightsIndices, final double[] edgeLengths, int count,
+			double[] outSumDerivatives, double[] outSumSquaredDerivatives) {
+		throw new UnsupportedOperationException("Derivatives are not supported by the Java implementation");
+	}
+
+	@Override
+	public void updatePartials(final int[] operations, int operationCount, int cumulativeScaleIndex) {
+		// convert to partitioned operations over a single partition covering all patterns
+		int [] partitionStart0 = partitionStart;
+		int partitionCount0 = partitionCount;
+		partitionStart = new int[]{0, patternCount};
+		partitionCount = 1;
+		try {
+			int [] ops = new int[operationCount * Beagle.PARTITION_OPERATION_TUPLE_SIZE];
+			for (int n = 0; n < operationCount; n++) {
+				System.arraycopy(operations, n * Beagle.OPERATION_TUPLE_SIZE, ops, n * Beagle.PARTITION_OPERATION_TUPLE_SIZE, Beagle.OPERATION_TUPLE_SIZE);
+				ops[n * Beagle.PARTITION_OPERATION_TUPLE_SIZE + 7] = 0;
+				ops[n * Beagle.PARTITION_OPERATION_TUPLE_SIZE + 8] = Beagle.NONE;
+			}
+			updatePartialsByPartition(ops, operationCount);
+		} finally {
+			partitionStart = partitionStart0;
+			partitionCount = partitionCount0;
+		}
+		if (cumulativeScaleIndex != Beagle.NONE) {
+			double [] cumulative = getScaleFactors(cumulativeScaleIndex);
+			for (int n = 0; n < operationCount; n++) {
+				int writeScale = operations[n * Beagle.OPERATION_TUPLE_SIZE + 1];
+				if (writeScale != Beagle.NONE) {
+					double [] scale = scaleFactors[writeScale];
+					for (int k = 0; k < patternCount; k++) {
+						cumulative[k] += scale[k];
+					}
+				}
+			}
+		}
+	}
+
+	/** a block of patterns of one partition, for which operations firstOperation ... lastOperation-1 are done by a single thread **/
+	class PatternBlock implements Runnable {
+		final int [] operations;
+		final int firstOperation, lastOperation;
+		final int partition;
+		final int from, to;
+		CountDownLatch countDown;
+		RuntimeException exception;
+
+		PatternBlock(int [] operations, int firstOperation, int lastOperation, int partition, int from, int to) {
+			this.operations = operations;
+			this.firstOperation = firstOperation;
+			this.lastOperation = lastOperation;
+			this.partition = partition;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		public void run() {
+			try {
+				for (int n = firstOperation; n < lastOperation; n++) {
+					int k = n * Beagle.PARTITION_OPERATION_TUPLE_SIZE;
+					if (operations[k + 7] == partition) {
+						updatePartials(operations, k, from, to);
+					}
+				}
+			} catch (RuntimeException e) {
+				exception = e;
+			}
+			if (countDown != null) {
+				countDown.countDown();
+			}
+		}
+	}
+
+	@Override
+	public void updatePartialsByPartition(final int[] operations, int operationCount) {
+		// allocate all buffers that will be written to, so threads only write into existing arrays
+		int [] partitionOperations = new int[partitionCount];
+		for (int n = 0; n < operationCount; n++) {
+			int k = n * Beagle.PARTITION_OPERATION_TUPLE_SIZE;
+			getPartials(operations[k]);
+			if (operations[k + 1] != Beagle.NONE) {
+				getScaleFactors(operations[k + 1]);
+			}
+			partitionOperations[operations[k + 7]]++;
+		}
+
+		// split the partitions into blocks of patterns
+		int workPatterns = 0;
+		for (int p = 0; p < partitionCount; p++) {
+			if (partitionOperations[p] > 0) {
+				workPatterns += partitionStart[p + 1] - partitionStart[p];
+			}
+		}
+		int blockSize = Math.max(minPatternsPerTask, (workPatterns + 2 * threadCount - 1) / (2 * threadCount));
+		List<PatternBlock> blocks = new ArrayList<>();
+		for (int p = 0; p < partitionCount; p++) {
+			if (partitionOperations[p] > 0) {
+				for (int from = partitionStart[p]; from < partitionStart[p + 1]; from += blockSize) {
+					blocks.add(new PatternBlock(operations, 0, operationCount, p, from, Math.min(from + blockSize, partitionStart[p + 1])));
+				}
+			}
+		}
+
+		if (exec == null || blocks.size() >= threadCount || operationCount <= 1) {
+			runBlocks(blocks);
+		} else {
+			// not enough patterns to keep all threads busy: run independent operations in parallel
+			updatePartialsByStage(operations, operationCount);
+		}
+	}
+
+	/**
+	 * Split operations into stages of operations that do not depend on each other,
+	 * and run operations within a stage in parallel. With operations in reverse level order
+	 * (as MultiPartitionTreeLikelihood provides them) a stage is a level of the tree.
+	 */
+	private void updatePartialsByStage(final int[] operations, int operationCount) {
+		boolean [] written = new boolean[partials.length];
+		List<PatternBlock> blocks = new ArrayList<>();
+		int stageStart = 0;
+		for (int n = 0; n <= operationCount; n++) {
+			int k = n * Beagle.PARTITION_OPERATION_TUPLE_SIZE;
+			if (n == operationCount || written[operations[k + 3]] || written[operations[k + 5]]) {
+				// end of stage
+				for (int m = stageStart; m < n; m++) {
+					int p = operations[m * Beagle.PARTITION_OPERATION_TUPLE_SIZE + 7];
+					for (int from = partitionStart[p]; from < partitionStart[p + 1]; from += minPatternsPerTask) {
+						blocks.add(new PatternBlock(operations, m, m + 1, p, from, Math.min(from + minPatternsPerTask, partitionStart[p + 1])));
+					}
+					written[operations[m * Beagle.PARTITION_OPERATION_TUPLE_SIZE]] = false;
+				}
+				runBlocks(blocks);
+				blocks.clear();
+				stageStart = n;
+			}
+			if (n < operationCount) {
+				written[operations[k]] = true;
+			}
+		}
+	}
+
+	private void runBlocks(List<PatternBlock> blocks) {
+		if (exec == null || blocks.size() <= 1) {
+			for (PatternBlock block : blocks) {
+				block.run();
+			}
+		} else {
+			CountDownLatch countDown = new CountDownLatch(blocks.size());
+			for (PatternBlock block : blocks) {
+				block.countDown = countDown;
+				exec.execute(block);
+			}
+			try {
+				countDown.await();
+			} catch (InterruptedException e) {
+				Log.err.println("Interrupted while calculating partials: " + e.getMessage());
+				Thread.currentThread().interrupt();
+			}
+		}
+		for (PatternBlock block : blocks) {
+			if (block.exception != null) {
+				throw block.exception;
+			}
+		}
+	}
+
+	/** perform operation starting at operations[k] for patterns from ... to-1 **/
+	private void updatePartials(int [] operations, int k, int from, int to) {
+		final double [] dest = partials[operations[k]];
+		final int writeScale = operations[k + 1];
+		final int readScale = operations[k + 2];
+
+		propagate(operations[k + 3], matrices[operations[k + 4]], dest, from, to, false);
+		propagate(operations[k + 5], matrices[operations[k + 6]], dest, from, to, true);
+
+		if (writeScale != Beagle.NONE) {
+			final double [] scale = scaleFactors[writeScale];
+			for (int pattern = from; pattern < to; pattern++) {
+				double max = 0;
+				for (int l = 0; l < categoryCount; l++) {
+					int v = (l * patternCount + pattern) * stateCount;
+					for (int i = 0; i < stateCount; i++) {
+						if (dest[v + i] > max) {
+							max = dest[v + i];
+						}
+					}
+				}
+				if (max == 0) {
+					max = 1.0;
+				}
+				double f = 1.0 / max;
+				for (int l = 0; l < categoryCount; l++) {
+					int v = (l * patternCount + pattern) * stateCount;
+					for (int i = 0; i < stateCount; i++) {
+						dest[v + i] *= f;
+					}
+				}
+				scale[pattern] = Math.log(max);
+			}
+		} else if (readScale != Beagle.NONE) {
+			final double [] scale = scaleFactors[readScale];
+			for (int pattern = from; pattern < to; pattern++) {
+				double f = Math.exp(-scale[pattern]);
+				for (int l = 0; l < categoryCount; l++) {
+					int v = (l * patternCount + pattern) * stateCount;
+					for (int i = 0; i < stateCount; i++) {
+						dest[v + i] *= f;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * calculate matrix times partials of child for patterns from ... to-1,
+	 * and store in dest or, if multiply=true, multiply dest by it
+	 */
+	private void propagate(int child, double [] matrix, double [] dest, int from, int to, boolean multiply) {
+		final int [] states = child < tipStates.length ? tipStates[child] : null;
+		if (states != null) {
+			for (int l = 0; l < categoryCount; l++) {
+				int w = l * matrixSize;
+				for (int pattern = from; pattern < to; pattern++) {
+					int v = (l * patternCount + pattern) * stateCount;
+					int state = states[pattern];
+					if (state < stateCount) {
+						for (int i = 0; i < stateCount; i++) {
+							double x = matrix[w + i * stateCount + state];
+							dest[v + i] = multiply ? dest[v + i] * x : x;
+						}
+					} else if (!multiply) {
+						// missing data
+						for (int i = 0; i < stateCount; i++) {
+							dest[v + i] = 1.0;
+						}
+					}
+				}
+			}
+		} else {
+			final double [] p = partials[child];
+			for (int l = 0; l < categoryCount; l++) {
+				int w = l * matrixSize;
+				for (int pattern = from; pattern < to; pattern++) {
+					int v = (l * patternCount + pattern) * stateCount;
+					for (int i = 0; i < stateCount; i++) {
+						int u = w + i * stateCount;
+						double sum = 0;
+						for (int j = 0; j < stateCount; j++) {
+							sum += matrix[u + j] * p[v + j];
+						}
+						dest[v + i] = multiply ? dest[v + i] * sum : sum;
+					}
+				}
+			}
+		}
+	}
+
+	@Override
+	public void accumulateScaleFactors(final int[] scaleIndices, final int count, final int cumulativeScaleIndex) {
+		addScaleFactors(scaleIndices, count, cumulativeScaleIndex, 0, patternCount, 1.0);
+	}
+
+	@Override
+	public void accumulateScaleFactorsByPartition(final int[] scaleIndices, int count, int cumulativeScaleIndex,
+			int partitionIndex) {
+		addScaleFactors(scaleIndices, count, cumulativeScaleIndex, partitionStart[partitionIndex], partitionStart[partitionIndex + 1], 1.0);
+	}
+
+	@Override
+	public void removeScaleFactors(final int[] scaleIndices, final int count, final int cumulativeScaleIndex) {
+		addScaleFactors(scaleIndices, count, cumulativeScaleIndex, 0, patternCount, -1.0);
+	}
+
+	@Override
+	public void removeScaleFactorsByPartition(final int[] scaleIndices, final int count, final int cumulativeScaleIndex,
+			final int partitionIndex) {
+		addScaleFactors(scaleIndices, count, cumulativeScaleIndex, partitionStart[partitionIndex], partitionStart[partitionIndex + 1], -1.0);
+	}
+
+	private void addScaleFactors(int [] scaleIndices, int count, int cumulativeScaleIndex, int from, int to, double sign) {
+		double [] cumulative = getScaleFactors(cumulativeScaleIndex);
+		for (int n = 0; n < count; n++) {
+			double [] scale = getScaleFactors(scaleIndices[n]);
+			for (int k = from; k < to; k++) {
+				cumulative[k] += sign * scale[k];
+			}
+		}
+	}
+
+	@Override
+	public void copyScaleFactors(int destScalingIndex, int srcScalingIndex) {
+		System.arraycopy(getScaleFactors(srcScalingIndex), 0, getScaleFactors(destScalingIndex), 0, patternCount);
+	}
+
+	@Override
+	public void resetScaleFactors(int cumulativeScaleIndex) {
+		Arrays.fill(getScaleFactors(cumulativeScaleIndex), 0.0);
+	}
+
+	@Override
+	public void resetScaleFactorsByPartition(int cumulativeScaleIndex, int partitionIndex) {
+		Arrays.fill(getScaleFactors(cumulativeScaleIndex), partitionStart[partitionIndex], partitionStart[partitionIndex + 1], 0.0);
+	}
+
+	@Override
+	public void calculateRootLogLikelihoods(int[] bufferIndices, int[] categoryWeightsIndices, int[] stateFrequenciesIndices,
+			int[] cumulativeScaleIndices, int count, double[] outSumLogLikelihood) {
+		outSumLogLikelihood[0] = calcRootLogLikelihood(bufferIndices[0], categoryWeightsIndices[0], stateFrequenciesIndices[0],
+				cumulativeScaleIndices[0], 0, patternCount);
+	}
+
+	@Override
+	public void calculateRootLogLikelihoodsByPartition(int[] bufferIndices, int[] categoryWeightsIndices,
+			int[] stateFrequenciesIndices, int[] cumulativeScaleIndices, int[] partitionIndices, int partitionCount,
+			int count, double[] outSumLogLikelihoodByPartition, double[] outSumLogLikelihood) {
+		double sum = 0;
+		for (int i = 0; i < partitionCount; i++) {
+			int p = partitionIndices[i];
+			outSumLogLikelihoodByPartition[i] = calcRootLogLikelihood(bufferIndices[i], categoryWeightsIndices[i], stateFrequenciesIndices[i],
+					cumulativeScaleIndices[i], partitionStart[p], partitionStart[p + 1]);
+			sum += outSumLogLikelihoodByPartition[i];
+		}
+		outSumLogLikelihood[0] = sum;
+	}
+
+	private double calcRootLogLikelihood(int bufferIndex, int categoryWeightsIndex, int stateFrequenciesIndex,
+			int cumulativeScaleIndex, int from, int to) {
+		final double [] p = partials[bufferIndex];
+		final double [] weights = categoryWeights[categoryWeightsIndex];
+		final double [] frequencies = stateFrequencies[stateFrequenciesIndex];
+		final double [] scale = cumulativeScaleIndex != Beagle.NONE ? getScaleFactors(cumulativeScaleIndex) : null;
+		double logL = 0;
+		for (int pattern = from; pattern < to; pattern++) {
+			double sum = 0;
+			for (int l = 0; l < categoryCount; l++) {
+				int v = (l * patternCount + pattern) * stateCount;
+				double sumCategory = 0;
+				for (int i = 0; i < stateCount; i++) {
+					sumCategory += frequencies[i] * p[v + i];
+				}
+				sum += weights[l] * sumCategory;
+			}
+			double siteLogL = Math.log(sum);
+			if (scale != null) {
+				siteLogL += scale[pattern];
+			}
+			siteLogLikelihoods[pattern] = siteLogL;
+			logL += siteLogL * patternWeights[pattern];
+		}
+		return logL;
+	}
+
+	@Override
+	public void getSiteLogLikelihoods(double[] outLogLikelihoods) {
+		System.arraycopy(siteLogLikelihoods, 0, outLogLikelihoods, 0, patternCount);
+	}
+
+	@Override
+	public InstanceDetails getDetails() {
+		InstanceDetails details = new InstanceDetails();
+		details.setResourceNumber(-1);
+		details.setFlags(BeagleFlag.PROCESSOR_CPU.getMask() | BeagleFlag.PRECISION_DOUBLE.getMask() |
+				BeagleFlag.SCALING_MANUAL.getMask() | BeagleFlag.EIGEN_REAL.getMask() |
+				(threadCount > 1 ? BeagleFlag.THREADING_CPP.getMask() : BeagleFlag.THREADING_NONE.getMask()));
+		return details;
+	}
+
+	private double [] getPartials(int bufferIndex) {
+		if (partials[bufferIndex] == null) {
+			partials[bufferIndex] = new double[partialsSize];
+		}
+		return partials[bufferIndex];
+	}
+
+	private double [] getScaleFactors(int scaleIndex) {
+		if (scaleFactors[scaleIndex] == null) {
+			scaleFactors[scaleIndex] = new double[patternCount];
+		}
+		return scaleFactors[scaleIndex];
+	}
+
+	private double [][] grow(double [][] array, int index) {
+		if (index >= array.length) {
+			return Arrays.copyOf(array, index + 1);
+		}
+		return array;
+	}
+}
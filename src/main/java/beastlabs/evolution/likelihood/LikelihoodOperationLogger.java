@@ -0,0 +1,70 @@
+package beastlabs.evolution.likelihood;
+
+import java.io.PrintStream;
+
+import beast.base.core.BEASTObject;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.core.Loggable;
+
+@Description("Logger for reporting how much work an ExperimentalTreeLikelihood does: " +
+		"the number of partials and transition matrices that are recalculated, how often " +
+		"the whole tree is recalculated, and the time spent on each. Useful for tuning operator weights.")
+public class LikelihoodOperationLogger extends BEASTObject implements Loggable {
+	final public Input<ExperimentalTreeLikelihood> likelihoodInput = new Input<>("likelihood", "tree likelihood to report statistics for", Validate.REQUIRED);
+	final public Input<Boolean> cumulativeInput = new Input<>("cumulative", "report totals since the start of the run (default) " +
+			"or only the work done since the previous log line", true);
+
+	ExperimentalTreeLikelihood likelihood;
+	boolean cumulative;
+	/** values at previous log line, in order of the columns **/
+	long [] previous;
+
+	@Override
+	public void initAndValidate() {
+		likelihood = likelihoodInput.get();
+		cumulative = cumulativeInput.get();
+		previous = new long[7];
+	}
+
+	@Override
+	public void init(PrintStream out) {
+		String id = likelihood.getID() == null ? "likelihood" : likelihood.getID();
+		out.append(id + ".evaluations\t");
+		out.append(id + ".fullRecomputes\t");
+		out.append(id + ".partialUpdates\t");
+		out.append(id + ".matrixUpdates\t");
+		out.append(id + ".fullRecomputeTime\t");
+		out.append(id + ".partialTime\t");
+		out.append(id + ".matrixTime\t");
+	}
+
+	@Override
+	public void log(long sample, PrintStream out) {
+		long [] current = new long[] {
+				likelihood.getEvaluationCount(),
+				likelihood.getFullRecomputeCount(),
+				likelihood.getPartialUpdateCount(),
+				likelihood.getMatrixUpdateCount(),
+				likelihood.getFullRecomputeTime(),
+				likelihood.getPartialTime(),
+				likelihood.getMatrixTime()
+		};
+		for (int i = 0; i < current.length; i++) {
+			long value = cumulative ? current[i] : current[i] - previous[i];
+			if (i < 4) {
+				out.append(value + "\t");
+			} else {
+				// times in milliseconds
+				out.append(value / 1000000 + "\t");
+			}
+		}
+		previous = current;
+	}
+
+	@Override
+	public void close(PrintStream out) {
+		// nothing to do
+	}
+}
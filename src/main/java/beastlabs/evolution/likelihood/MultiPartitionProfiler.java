@@ -0,0 +1,173 @@
+package beastlabs.evolution.likelihood;
+
+import java.io.PrintStream;
+import java.util.List;
+
+import beast.base.core.BEASTObject;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.core.Log;
+import beast.base.core.Loggable;
+import beast.base.evolution.likelihood.GenericTreeLikelihood;
+
+@Description("Profiler for MultiPartitionTreeLikelihood: counts, for each partition, the number of transition matrix updates, " +
+		"partial updates, rescalings and root integrations, and the time spent on each of these. " +
+		"Since BEAGLE handles all partitions in a single call, time per partition is estimated by distributing the time " +
+		"of each call over the partitions in proportion to their number of operations times their number of patterns. " +
+		"Adding this logger switches profiling on; a summary is reported when the run finishes.")
+public class MultiPartitionProfiler extends BEASTObject implements Loggable {
+	final public Input<MultiPartitionTreeLikelihood> likelihoodInput = new Input<>("likelihood", "multi-partition tree likelihood to profile", Validate.REQUIRED);
+	final public Input<Boolean> logPartitionsInput = new Input<>("logPartitions", "log counts and time for each of the partitions, otherwise only time per calculation step is logged", true);
+
+	public final static int MATRIX = 0;
+	public final static int PARTIALS = 1;
+	public final static int RESCALE = 2;
+	public final static int ROOT = 3;
+	final static String [] STEP_NAMES = {"matrix", "partials", "rescale", "root"};
+
+	MultiPartitionTreeLikelihood likelihood;
+	boolean logPartitions;
+
+	int partitionCount;
+	int [] patternCounts;
+	String [] partitionNames;
+
+	long evaluationCount;
+	/** total time in nano seconds per calculation step **/
+	long [] stepTime;
+	/** total number of operations per partition and calculation step **/
+	long [][] operationCount;
+	/** estimated time in nano seconds spent per partition **/
+	double [] partitionTime;
+
+	/** operations and time of the current evaluation, used to distribute time over partitions **/
+	int [][] currentCount;
+	long [] currentTime;
+
+	@Override
+	public void initAndValidate() {
+		likelihood = likelihoodInput.get();
+		logPartitions = logPartitionsInput.get();
+		likelihood.setProfiler(this);
+	}
+
+	/** called by the likelihood once its partitions are known **/
+	void initPartitions(int [] patternCounts, List<GenericTreeLikelihood> likelihoods) {
+		partitionCount = patternCounts.length;
+		this.patternCounts = patternCounts;
+		partitionNames = new String[partitionCount];
+		for (int i = 0; i < partitionCount; i++) {
+			if (likelihoods.size() == partitionCount && likelihoods.get(i).getID() != null) {
+				partitionNames[i] = likelihoods.get(i).getID();
+			} else {
+				partitionNames[i] = "partition" + i;
+			}
+		}
+		stepTime = new long[STEP_NAMES.length];
+		operationCount = new long[STEP_NAMES.length][partitionCount];
+		partitionTime = new double[partitionCount];
+		currentCount = new int[STEP_NAMES.length][partitionCount];
+		currentTime = new long[STEP_NAMES.length];
+	}
+
+	void count(int step, int partition, int count) {
+		currentCount[step][partition] += count;
+	}
+
+	void addTime(int step, long nanos) {
+		currentTime[step] += nanos;
+	}
+
+	/** accumulate statistics of the evaluation that just finished **/
+	void endEvaluation() {
+		evaluationCount++;
+		for (int step = 0; step < STEP_NAMES.length; step++) {
+			int [] count = currentCount[step];
+			double work = 0;
+			for (int i = 0; i < partitionCount; i++) {
+				work += (double) count[i] * patternCounts[i];
+			}
+			for (int i = 0; i < partitionCount; i++) {
+				if (count[i] > 0) {
+					partitionTime[i] += currentTime[step] * count[i] * patternCounts[i] / work;
+					operationCount[step][i] += count[i];
+					count[i] = 0;
+				}
+			}
+			stepTime[step] += currentTime[step];
+			currentTime[step] = 0;
+		}
+	}
+
+	public long getEvaluationCount() {
+		return evaluationCount;
+	}
+
+	public long getStepTime(int step) {
+		return stepTime[step];
+	}
+
+	public long getOperationCount(int step, int partition) {
+		return operationCount[step][partition];
+	}
+
+	public double getPartitionTime(int partition) {
+		return partitionTime[partition];
+	}
+
+	@Override
+	public void init(PrintStream out) {
+		String id = likelihood.getID() == null ? "likelihood" : likelihood.getID();
+		out.append(id + ".evaluations\t");
+		for (String step : STEP_NAMES) {
+			out.append(id + "." + step + "Time\t");
+		}
+		if (logPartitions) {
+			for (int i = 0; i < partitionCount; i++) {
+				for (String step : STEP_NAMES) {
+					out.append(partitionNames[i] + "." + step + "\t");
+				}
+				out.append(partitionNames[i] + ".time\t");
+			}
+		}
+	}
+
+	@Override
+	public void log(long sample, PrintStream out) {
+		out.append(evaluationCount + "\t");
+		// times in milli seconds
+		for (int step = 0; step < STEP_NAMES.length; step++) {
+			out.append(stepTime[step] / 1000000 + "\t");
+		}
+		if (logPartitions) {
+			for (int i = 0; i < partitionCount; i++) {
+				for (int step = 0; step < STEP_NAMES.length; step++) {
+					out.append(operationCount[step][i] + "\t");
+				}
+				out.append((long) (partitionTime[i] / 1000000) + "\t");
+			}
+		}
+	}
+
+	@Override
+	public void close(PrintStream out) {
+		if (partitionCount == 0) {
+			return;
+		}
+		long total = 0;
+		for (long t : stepTime) {
+			total += t;
+		}
+		Log.info.println("\nProfile of " + likelihood.getID() + " over " + evaluationCount + " evaluations (times in ms)");
+		for (int step = 0; step < STEP_NAMES.length; step++) {
+			Log.info.println(String.format("%-10s %10d %6.2f%%", STEP_NAMES[step], stepTime[step] / 1000000, 100.0 * stepTime[step] / Math.max(total, 1)));
+		}
+		Log.info.println(String.format("%-30s %8s %10s %10s %10s %10s %10s", "partition", "patterns", "matrix", "partials", "rescale", "root", "time"));
+		for (int i = 0; i < partitionCount; i++) {
+			Log.info.println(String.format("%-30s %8d %10d %10d %10d %10d %10d", partitionNames[i], patternCounts[i],
+					operationCount[MATRIX][i], operationCount[PARTIALS][i], operationCount[RESCALE][i], operationCount[ROOT][i],
+					(long) (partitionTime[i] / 1000000)));
+		}
+	}
+}
@@ -32,6 +32,7 @@ import beagle.*;
 import beast.base.core.Description;
 import beast.base.core.Input;
 import beast.base.core.Log;
+import beast.base.core.ProgramStatus;
 import beast.base.core.Input.Validate;
 import beast.base.evolution.alignment.Alignment;
 import beast.base.evolution.branchratemodel.BranchRateModel;
@@ -94,6 +95,9 @@ public class MultiPartitionTreeLikelihood extends Distribution {
     
     public int matrixUpdateCount;
     public int partialUpdateCount;
+
+    /** optional profiler, set when a MultiPartitionProfiler is attached to this likelihood **/
+    private MultiPartitionProfiler profiler = null;
     
     /**
      * Lengths of the branches in the tree associated with each of the nodes
@@ -153,6 +157,10 @@ public class MultiPartitionTreeLikelihood extends Distribution {
     private static final String EXTRA_BUFFER_COUNT_PROPERTY = "beagle.extra.buffer.count";
     private static final String FORCE_VECTORIZATION = "beagle.force.vectorization";
     private static final String THREAD_COUNT = "beagle.thread.count";
+    // set to true to use the Java implementation instead of the BEAGLE library
+    public static final String JAVA_IMPLEMENTATION_PROPERTY = "beast.multipartition.java";
+    // minimum number of patterns a thread of the Java implementation works on, to limit threading overhead on small data sets
+    public static final String MIN_PATTERNS_PER_TASK_PROPERTY = "beast.multipartition.minpatterns";
 
 
     // Which scheme to use if choice not specified (or 'default' is selected):
@@ -312,6 +320,9 @@ public class MultiPartitionTreeLikelihood extends Distribution {
             k++;
         }
         totalPatternCount = total;
+        if (profiler != null) {
+        	profiler.initPartitions(patternCounts, likelihoodsInput.get());
+        }
 
         useScaleFactors = new boolean[partitionCount];
         recomputeScaleFactors = new boolean[partitionCount];
@@ -585,20 +596,44 @@ public class MultiPartitionTreeLikelihood extends Distribution {
 
             //TODO: check getBufferCount() calls with Daniel
             //TODO: should we multiple getBufferCount() by the number of partitions?
-            beagle = BeagleFactory.loadBeagleInstance(
-                    tipCount,
-                    partialBufferHelper[0].getBufferCount(),
-                    compactPartialsCount,
-                    stateCount,
-                    totalPatternCount,
-                    eigenBufferCount,
-                    matrixBufferCount,
-                    categoryCount,
-                    scaleBufferHelper[0].getBufferCount(), // Always allocate; they may become necessary
-                    resourceList,
-                    preferenceFlags,
-                    requirementFlags
-            );
+            beagle = null;
+            if (!Boolean.getBoolean(JAVA_IMPLEMENTATION_PROPERTY)) {
+            	try {
+		            beagle = BeagleFactory.loadBeagleInstance(
+		                    tipCount,
+		                    partialBufferHelper[0].getBufferCount(),
+		                    compactPartialsCount,
+		                    stateCount,
+		                    totalPatternCount,
+		                    eigenBufferCount,
+		                    matrixBufferCount,
+		                    categoryCount,
+		                    scaleBufferHelper[0].getBufferCount(), // Always allocate; they may become necessary
+		                    resourceList,
+		                    preferenceFlags,
+		                    requirementFlags
+		            );
+            	} catch (Throwable e) {
+            		// UnsatisfiedLinkError if the BEAGLE library is not installed
+            		Log.warning("Could not load BEAGLE instance (" + e.getMessage() + ")");
+            	}
+            }
+            if (beagle == null) {
+            	if (BeagleFlag.EIGEN_COMPLEX.isSet(requirementFlags)) {
+            		throw new UnsupportedOperationException("Substitution model " + substitutionModels.get(0).getID()
+            				+ " can have complex eigen values, which the Java implementation does not support: BEAGLE is required");
+            	}
+            	beagle = new JavaMultiPartitionBeagle(
+	                    tipCount,
+	                    partialBufferHelper[0].getBufferCount(),
+	                    compactPartialsCount,
+	                    stateCount,
+	                    totalPatternCount,
+	                    eigenBufferCount,
+	                    matrixBufferCount,
+	                    categoryCount,
+	                    scaleBufferHelper[0].getBufferCount());
+            }
             
 //            BeagleDebugger debugger = new BeagleDebugger(beagle, true);
 //            beagle = debugger;
@@ -611,7 +646,11 @@ public class MultiPartitionTreeLikelihood extends Distribution {
 //                throw new DelegateTypeException();
 //            }
 
-            Log.warning("\nUsing Multi-Partition Data Likelihood Delegate with BEAGLE 3 multi-partition extensions");
+            if (beagle instanceof JavaMultiPartitionBeagle) {
+            	Log.warning("\nUsing Multi-Partition Data Likelihood Delegate with Java implementation");
+            } else {
+            	Log.warning("\nUsing Multi-Partition Data Likelihood Delegate with BEAGLE 3 multi-partition extensions");
+            }
 
 //            for (BranchRateModel branchModel : this.branchModels) {
 //                addModel(branchModel);
@@ -622,7 +661,15 @@ public class MultiPartitionTreeLikelihood extends Distribution {
 //                addModel(siteRateModel);
 //            }
 
-            if (instanceDetails != null) {
+            if (beagle instanceof JavaMultiPartitionBeagle) {
+            	// use as many threads as BEAST, unless specified otherwise
+            	beagle.setCPUThreadCount(threadCount > 0 ? threadCount : ProgramStatus.m_nThreads);
+            	String minPatterns = System.getProperty(MIN_PATTERNS_PER_TASK_PROPERTY);
+            	if (minPatterns != null) {
+            		((JavaMultiPartitionBeagle) beagle).setMinPatternsPerTask(Integer.parseInt(minPatterns));
+            	}
+            	Log.warning("  Using Java implementation with " + ((JavaMultiPartitionBeagle) beagle).getCPUThreadCount() + " thread(s)");
+            } else if (instanceDetails != null) {
                 resourceDetails = BeagleFactory.getResourceDetails(instanceDetails.getResourceNumber());
                 if (resourceDetails != null) {
                     StringBuilder sb = new StringBuilder("  Using BEAGLE version: " + BeagleInfo.getVersion() + " resource ");
@@ -645,8 +692,13 @@ public class MultiPartitionTreeLikelihood extends Distribution {
                 Log.warning("  No external BEAGLE resources available, or resource list/requirements not met, using Java implementation");
             }
 
-            if (IS_THREAD_COUNT_COMPATIBLE() && threadCount > 1) {
-                beagle.setCPUThreadCount(threadCount);
+            if (!(beagle instanceof JavaMultiPartitionBeagle) && IS_THREAD_COUNT_COMPATIBLE()) {
+            	if (threadCount > 1) {
+            		beagle.setCPUThreadCount(threadCount);
+            	} else if (threadCount < 0 && ProgramStatus.m_nThreads > 1 && BeagleFlag.THREADING_CPP.isSet(instanceFlags)) {
+            		// thread count not specified: let a threaded CPU instance spread partitions over as many threads as BEAST uses
+            		beagle.setCPUThreadCount(ProgramStatus.m_nThreads);
+            	}
             }
 
             patternPartitions = new int[totalPatternCount];
@@ -1159,10 +1211,14 @@ public class MultiPartitionTreeLikelihood extends Distribution {
                         edgeLengths[matrixUpdateCount] = branchLengths[i];
                         matrixUpdateCount++;
                     }
+                    if (profiler != null) {
+                    	profiler.count(MultiPartitionProfiler.MATRIX, partition, branchUpdateCount);
+                    }
                 }
                 partition++;
             }
 
+            long start = profiler != null ? System.nanoTime() : 0;
             beagle.updateTransitionMatricesWithMultipleModels(
                     eigenDecompositionIndices,
                     categoryRateIndices,
@@ -1171,6 +1227,9 @@ public class MultiPartitionTreeLikelihood extends Distribution {
                     null, // secondDerivativeIndices
                     edgeLengths,
                     matrixUpdateCount);
+            if (profiler != null) {
+            	profiler.addTime(MultiPartitionProfiler.MATRIX, System.nanoTime() - start);
+            }
 
             if (COUNT_CALCULATIONS) {
                 totalMatrixUpdateCount += matrixUpdateCount;
@@ -1275,12 +1334,21 @@ public class MultiPartitionTreeLikelihood extends Distribution {
 
                     k += Beagle.PARTITION_OPERATION_TUPLE_SIZE;
                     partialUpdateCount++;
+                    if (profiler != null) {
+                    	profiler.count(MultiPartitionProfiler.PARTIALS, i, 1);
+                    }
                 }
 
             }
         }
 
+        long start = profiler != null ? System.nanoTime() : 0;
         beagle.updatePartialsByPartition(operations, partialUpdateCount);
+        if (profiler != null) {
+        	long end = System.nanoTime();
+        	profiler.addTime(MultiPartitionProfiler.PARTIALS, end - start);
+        	start = end;
+        }
 
         if (COUNT_CALCULATIONS) {
             totalEvaluationCount += 1;
@@ -1301,12 +1369,19 @@ public class MultiPartitionTreeLikelihood extends Distribution {
                     //TODO: check with Daniel if calling these methods using an iteration can be done more efficiently
                     beagle.resetScaleFactorsByPartition(cumulativeScaleIndices[i], i);
                     beagle.accumulateScaleFactorsByPartition(scaleBufferIndices[i], internalNodeCount, cumulativeScaleIndices[i], i);
+                    if (profiler != null) {
+                    	profiler.count(MultiPartitionProfiler.RESCALE, i, 1);
+                    }
                 } else {
                     cumulativeScaleIndices[i] = scaleBufferHelper[i].getOffsetIndex(internalNodeCount);
                 }
             }
         }
 
+        if (profiler != null) {
+        	profiler.addTime(MultiPartitionProfiler.RESCALE, System.nanoTime() - start);
+        }
+
 //        double[] scaleFactors = new double[totalPatternCount];
 //        beagle.getLogScaleFactors(cumulateScaleBufferIndex, scaleFactors);
 
@@ -1362,6 +1437,9 @@ public class MultiPartitionTreeLikelihood extends Distribution {
 
         //TODO: check these arguments with Daniel
         //TODO: partitionIndices needs to be set according to which partitions need updating?
+        if (profiler != null) {
+        	start = System.nanoTime();
+        }
         beagle.calculateRootLogLikelihoodsByPartition(
                 rootIndices,
                 categoryWeightsIndices,
@@ -1372,6 +1450,13 @@ public class MultiPartitionTreeLikelihood extends Distribution {
                 1,
                 sumLogLikelihoodsByPartition,
                 sumLogLikelihoods);
+        if (profiler != null) {
+        	profiler.addTime(MultiPartitionProfiler.ROOT, System.nanoTime() - start);
+        	for (int i = 0; i < updatedPartitionCount; i++) {
+        		profiler.count(MultiPartitionProfiler.ROOT, partitionIndices[i], 1);
+        	}
+        	profiler.endEvaluation();
+        }
 
                 /*System.out.println();
                 for (int i = 0; i < partitionCount; i++) {
@@ -1811,7 +1896,18 @@ public class MultiPartitionTreeLikelihood extends Distribution {
      */
     private Beagle beagle;
     
+    /** switch on profiling, used by MultiPartitionProfiler **/
+    void setProfiler(MultiPartitionProfiler profiler) {
+    	this.profiler = profiler;
+    	if (patternCounts != null) {
+    		profiler.initPartitions(patternCounts, likelihoodsInput.get());
+    	}
+    }
+
     public String getProcessor() {
+    	if (beagle instanceof JavaMultiPartitionBeagle) {
+    		return "Java";
+    	}
     	InstanceDetails details = beagle.getDetails();
     	for (BeagleFlag flag : BeagleFlag.values()) {
             if (flag.isSet(details.getFlags())) {
@@ -0,0 +1,589 @@
+/*
+ * File OffHeapBeerLikelihoodCore.java
+ *
+ * Copyright (C) 2026 Remco Bouckaert remco@cs.auckland.ac.nz
+ *
+ * This file is part of BEAST2.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+/** likelihood core that keeps partials outside the Java heap, so that very large
+ * alignments do not need a huge heap and do not cause long GC pauses.
+ *
+ * Partials live in MemorySegments allocated from a shared Arena, or, when a scratch
+ * directory is given (e.g. through -Dbeast.offheap.dir=/scratch), in a memory mapped
+ * temporary file that is deleted when the core is finalised. The operating system then
+ * pages partials in and out as required.
+ *
+ * Apart from the storage, the calculation follows BeerLikelihoodCoreSimple: operations
+ * are collected on a stack and processed when the likelihood is requested, and
+ * store/restore flip indices into current/stored buffers.
+ */
+
+
+package beastlabs.evolution.likelihood;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import beast.base.core.Log;
+
+
+public class OffHeapBeerLikelihoodCore extends ExperimentalLikelihoodCore {
+	/** system property with directory for memory mapped scratch files **/
+	public static final String SCRATCH_DIR_PROPERTY = "beast.offheap.dir";
+
+	final static ValueLayout.OfDouble DOUBLE = ValueLayout.JAVA_DOUBLE;
+
+	/** various counts **/
+	protected int m_nStates;
+	protected int m_nNodes;
+	protected int m_nPatterns;
+	protected int m_nPartialsSize;
+	protected int m_nMatrixSize;
+	protected int m_nMatrices;
+
+	/** off heap storage **/
+	Arena m_arena;
+	/** directory for scratch file, or null if partials should be kept in memory **/
+	File m_scratchDir;
+	FileChannel m_scratchChannel;
+
+	protected MemorySegment[][] m_partials; // 2 x #nodes, each #patterns*#states*#matrices doubles
+
+	protected int[][] m_iStates; // #nodes x #patterns
+
+	protected double[][][] m_fMatrices; // 2 x #nodes x matrix size
+
+	protected int[] m_iCurrentMatrices; // # nodes
+	protected int[] m_iStoredMatrices;  // # nodes
+	protected int[] m_iCurrentPartials; // # nodes
+	protected int[] m_iStoredPartials;  // # nodes
+
+	/** one number to scale them all */
+	double SCALE = 1.05;
+
+	// stack related variables
+	final static int OPERATION_SS = 0;
+	final static int OPERATION_SP = 1;
+	final static int OPERATION_PP = 2;
+	int m_nTopOfStack = 0;
+	int [] m_nOperation; // #nodes
+	int [] m_nNode1;     // #nodes
+	int [] m_nNode2;     // #nodes
+	int [] m_nNode3;     // #nodes
+
+	/** memory allocation for the root partials **/
+	double[] m_fRootPartials;
+	/** dealing with proportion of site being invariant **/
+	int [] m_iConstantPattern = null;
+	double m_fProportianInvariant = 0.0;
+
+	/** memory allocation for likelihoods for each of the patterns **/
+	double[] m_fPatternLogLikelihoods;
+	int [] m_nPatternWeights;
+
+
+	/** keep partials in memory, or in a scratch file if the beast.offheap.dir property is set **/
+	public OffHeapBeerLikelihoodCore(int nStateCount) {
+		this(nStateCount, System.getProperty(SCRATCH_DIR_PROPERTY) == null ? null : new File(System.getProperty(SCRATCH_DIR_PROPERTY)));
+	} // c'tor
+
+	/** @param scratchDir directory for memory mapped partials, or null to keep them in (off heap) memory **/
+	public OffHeapBeerLikelihoodCore(int nStateCount, File scratchDir) {
+		this.m_nStates = nStateCount;
+		this.m_scratchDir = scratchDir;
+	} // c'tor
+
+
+	/**
+	 * Calculates partial likelihoods at a node when both children have states.
+	 */
+	void calcAllMatrixSSP(int iNode1, int iNode2, int iNode3) {
+		int [] iStates1 = m_iStates[iNode1];
+		int [] iStates2 = m_iStates[iNode2];
+		double [] fMatrices1 = m_fMatrices[m_iCurrentMatrices[iNode1]][iNode1];
+		double [] fMatrices2 = m_fMatrices[m_iCurrentMatrices[iNode2]][iNode2];
+		MemorySegment partials3 = m_partials[m_iCurrentPartials[iNode3]][iNode3];
+		long v = 0;
+
+		for (int l = 0; l < m_nMatrices; l++) {
+			for (int k = 0; k < m_nPatterns; k++) {
+				int state1 = iStates1[k];
+				int state2 = iStates2[k];
+				int w = l * m_nMatrixSize;
+
+				if (state1 < m_nStates && state2 < m_nStates) {
+					for (int i = 0; i < m_nStates; i++) {
+						partials3.setAtIndex(DOUBLE, v, fMatrices1[w + state1] * fMatrices2[w + state2]);
+						v++;
+						w += m_nStates;
+					}
+				} else if (state1 < m_nStates) {
+					// child 2 has a gap or unknown state so treat it as unknown
+					for (int i = 0; i < m_nStates; i++) {
+						partials3.setAtIndex(DOUBLE, v, fMatrices1[w + state1]);
+						v++;
+						w += m_nStates;
+					}
+				} else if (state2 < m_nStates) {
+					// child 1 has a gap or unknown state so treat it as unknown
+					for (int i = 0; i < m_nStates; i++) {
+						partials3.setAtIndex(DOUBLE, v, fMatrices2[w + state2]);
+						v++;
+						w += m_nStates;
+					}
+				} else {
+					// both children have a gap or unknown state so set partials to 1
+					for (int j = 0; j < m_nStates; j++) {
+						partials3.setAtIndex(DOUBLE, v, 1.0);
+						v++;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Calculates partial likelihoods at a node when one child has states and one has partials.
+	 */
+	void calcAllMatrixSPP(int iNode1, int iNode2, int iNode3) {
+		int [] iStates1 = m_iStates[iNode1];
+		double [] fMatrices1 = m_fMatrices[m_iCurrentMatrices[iNode1]][iNode1];
+		MemorySegment partials2 = m_partials[m_iCurrentPartials[iNode2]][iNode2];
+		double [] fMatrices2 = m_fMatrices[m_iCurrentMatrices[iNode2]][iNode2];
+		MemorySegment partials3 = m_partials[m_iCurrentPartials[iNode3]][iNode3];
+
+		long u = 0;
+		long v = 0;
+		for (int l = 0; l < m_nMatrices; l++) {
+			for (int k = 0; k < m_nPatterns; k++) {
+				int state1 = iStates1[k];
+				int w = l * m_nMatrixSize;
+				for (int i = 0; i < m_nStates; i++) {
+					double sum = 0.0;
+					for (int j = 0; j < m_nStates; j++) {
+						sum += fMatrices2[w] * partials2.getAtIndex(DOUBLE, v + j);
+						w++;
+					}
+					// if child 1 has a gap or unknown state, don't use it
+					partials3.setAtIndex(DOUBLE, u, state1 < m_nStates ? fMatrices1[w - m_nStates + state1] * sum : sum);
+					u++;
+				}
+				v += m_nStates;
+			}
+		}
+	}
+
+	/**
+	 * Calculates partial likelihoods at a node when both children have partials.
+	 */
+	void calcAllMatrixPPP(int iNode1, int iNode2, int iNode3) {
+		MemorySegment partials1 = m_partials[m_iCurrentPartials[iNode1]][iNode1];
+		double [] fMatrices1 = m_fMatrices[m_iCurrentMatrices[iNode1]][iNode1];
+		MemorySegment partials2 = m_partials[m_iCurrentPartials[iNode2]][iNode2];
+		double [] fMatrices2 = m_fMatrices[m_iCurrentMatrices[iNode2]][iNode2];
+		MemorySegment partials3 = m_partials[m_iCurrentPartials[iNode3]][iNode3];
+
+		long u = 0;
+		long v = 0;
+		for (int l = 0; l < m_nMatrices; l++) {
+			for (int k = 0; k < m_nPatterns; k++) {
+				int w = l * m_nMatrixSize;
+				for (int i = 0; i < m_nStates; i++) {
+					double sum1 = 0.0, sum2 = 0.0;
+					for (int j = 0; j < m_nStates; j++) {
+						sum1 += fMatrices1[w] * partials1.getAtIndex(DOUBLE, v + j);
+						sum2 += fMatrices2[w] * partials2.getAtIndex(DOUBLE, v + j);
+						w++;
+					}
+					partials3.setAtIndex(DOUBLE, u, sum1 * sum2);
+					u++;
+				}
+				v += m_nStates;
+			}
+		}
+	}
+
+	/**
+	 * Calculates partial likelihoods at a node.
+	 *
+	 * @param iNode1 the 'child 1' node
+	 * @param iNode2 the 'child 2' node
+	 * @param iNode3 the 'parent' node
+	 */
+	@Override
+	public void calculatePartials(int iNode1, int iNode2, int iNode3) {
+		int nOperation;
+		if (m_iStates[iNode1] != null && m_iStates[iNode2] != null) {
+			nOperation = OPERATION_SS;
+		} else if (m_iStates[iNode1] != null) {
+			nOperation = OPERATION_SP;
+		} else if (m_iStates[iNode2] != null) {
+			nOperation = OPERATION_SP;
+			int tmp = iNode1; iNode1 = iNode2; iNode2 = tmp;
+		} else {
+			nOperation = OPERATION_PP;
+		}
+		if (m_partials[m_iCurrentPartials[iNode1]][iNode1] != null && m_partials[m_iCurrentPartials[iNode2]][iNode2] != null) {
+			// for handling ambiguities
+			nOperation = OPERATION_PP;
+		}
+		// prepare the stack
+		m_nOperation[m_nTopOfStack] = nOperation;
+		m_nNode1[m_nTopOfStack] = iNode1;
+		m_nNode2[m_nTopOfStack] = iNode2;
+		m_nNode3[m_nTopOfStack] = iNode3;
+		m_nTopOfStack++;
+	}
+
+	@Override
+	public void processStack() {
+		for (int iJob = 0; iJob < m_nTopOfStack; iJob++) {
+			int iNode1 = m_nNode1[iJob];
+			int iNode2 = m_nNode2[iJob];
+			int iNode3 = m_nNode3[iJob];
+
+			switch (m_nOperation[iJob]) {
+			case OPERATION_SS:
+				calcAllMatrixSSP(iNode1, iNode2, iNode3);
+				break;
+			case OPERATION_SP:
+				calcAllMatrixSPP(iNode1, iNode2, iNode3);
+				break;
+			case OPERATION_PP:
+				calcAllMatrixPPP(iNode1, iNode2, iNode3);
+				break;
+			}
+			if (m_bUseScaling) {
+				scalePartials(iNode3);
+			}
+		}
+		m_nTopOfStack = 0;
+	}
+
+	@Override
+	public void setPatternWeights(int [] nPatterWeights) {
+		System.arraycopy(nPatterWeights, 0, m_nPatternWeights, 0, m_nPatterns);
+	}
+
+	@Override
+	public void setProportionInvariant(double fProportianInvariant, int [] iConstantPatterns) {
+		m_fProportianInvariant = fProportianInvariant;
+		m_iConstantPattern = new int[iConstantPatterns.length];
+		System.arraycopy(iConstantPatterns, 0, m_iConstantPattern, 0, iConstantPatterns.length);
+	}
+
+	@Override
+	public void getPatternLogLikelihoods(double [] fPatternLogLikelihoods) {
+		System.arraycopy(m_fPatternLogLikelihoods, 0, fPatternLogLikelihoods, 0, m_nPatterns);
+	}
+
+	/**
+	 * Integrates partials across categories.
+	 * @param fProportions the proportions of sites in each category
+	 * @param fOutPartials an array into which the partials will go
+	 */
+	void integratePartials(int iNode, double[] fProportions, double[] fOutPartials) {
+		processStack();
+
+		MemorySegment inPartials = m_partials[m_iCurrentPartials[iNode]][iNode];
+		int nSize = m_nPatterns * m_nStates;
+		for (int u = 0; u < nSize; u++) {
+			fOutPartials[u] = inPartials.getAtIndex(DOUBLE, u) * fProportions[0];
+		}
+		long v = nSize;
+		for (int l = 1; l < m_nMatrices; l++) {
+			for (int u = 0; u < nSize; u++) {
+				fOutPartials[u] += inPartials.getAtIndex(DOUBLE, v) * fProportions[l];
+				v++;
+			}
+		}
+	}
+
+	/**
+	 * Calculates pattern log likelihoods at a node.
+	 * @param fPartials the partials used to calculate the likelihoods
+	 * @param fFrequencies an array of state frequencies
+	 * @param fOutLogLikelihoods an array into which the likelihoods will go
+	 */
+	void calculateLogLikelihoods(double[] fPartials, double[] fFrequencies, double[] fOutLogLikelihoods) {
+		int v = 0;
+		double fLogScalingFactor = getLogScalingFactor();
+		for (int k = 0; k < m_nPatterns; k++) {
+			double sum = 0.0;
+			for (int i = 0; i < m_nStates; i++) {
+				sum += fFrequencies[i] * fPartials[v];
+				v++;
+			}
+			fOutLogLikelihoods[k] = Math.log(sum) + fLogScalingFactor;
+		}
+	}
+
+
+	/**
+	 * initializes partial likelihood arrays.
+	 *
+	 * @param nNodeCount           the number of nodes in the tree
+	 * @param nPatternCount        the number of patterns
+	 * @param nMatrixCount         the number of matrices (i.e., number of categories)
+	 * @param bIntegrateCategories whether sites are being integrated over all matrices
+	 */
+	@Override
+	public boolean initialize(int nNodeCount, int nPatternCount, int nMatrixCount, boolean bIntegrateCategories, boolean bUseAmbiguities) {
+		this.m_nNodes = nNodeCount;
+		this.m_nPatterns = nPatternCount;
+		this.m_nMatrices = nMatrixCount;
+
+		if (bIntegrateCategories) {
+			m_nPartialsSize = nPatternCount * m_nStates * nMatrixCount;
+		} else {
+			m_nPartialsSize = nPatternCount * m_nStates;
+		}
+
+		releaseMemory();
+		m_arena = Arena.ofShared();
+		if (m_scratchDir != null) {
+			try {
+				Path scratchFile = Files.createTempFile(m_scratchDir.toPath(), "beast-partials", ".bin");
+				m_scratchChannel = FileChannel.open(scratchFile, StandardOpenOption.READ, StandardOpenOption.WRITE,
+						StandardOpenOption.DELETE_ON_CLOSE);
+				Log.info.println("Partials are memory mapped to " + scratchFile);
+			} catch (IOException e) {
+				throw new IllegalArgumentException("Could not create scratch file for partials in " + m_scratchDir + ": " + e.getMessage());
+			}
+		}
+		m_partials = new MemorySegment[2][nNodeCount];
+
+		m_iCurrentMatrices = new int[nNodeCount];
+		m_iStoredMatrices = new int[nNodeCount];
+		m_iCurrentPartials = new int[nNodeCount];
+		m_iStoredPartials = new int[nNodeCount];
+
+		m_iStates = new int[nNodeCount][];
+
+		m_nMatrixSize = m_nStates * m_nStates;
+		m_fMatrices = new double[2][nNodeCount][nMatrixCount * m_nMatrixSize];
+
+		m_nTopOfStack = 0;
+		m_nOperation    = new int[nNodeCount]; // #nodes
+		m_nNode1        = new int[nNodeCount];// #nodes
+		m_nNode2        = new int[nNodeCount];// #nodes
+		m_nNode3        = new int[nNodeCount];// #nodes
+
+		m_fRootPartials = new double[m_nPatterns * m_nStates];
+		m_fPatternLogLikelihoods = new double[m_nPatterns];
+		m_nPatternWeights  = new int[m_nPatterns];
+		return true;
+	}
+
+	/** free off heap memory and close (and thereby delete) the scratch file **/
+	void releaseMemory() {
+		if (m_arena != null) {
+			m_arena.close();
+			m_arena = null;
+		}
+		if (m_scratchChannel != null) {
+			try {
+				m_scratchChannel.close();
+			} catch (IOException e) {
+				Log.warning.println("Could not close scratch file: " + e.getMessage());
+			}
+			m_scratchChannel = null;
+		}
+	}
+
+	/**
+	 * cleans up and deallocates arrays.
+	 */
+	@Override
+	public void finalize() throws java.lang.Throwable  {
+		releaseMemory();
+		m_nNodes = 0;
+		m_nPatterns = 0;
+		m_nMatrices = 0;
+
+		m_partials = null;
+		m_iCurrentPartials = null;
+		m_iStoredPartials = null;
+		m_iStates = null;
+		m_fMatrices = null;
+		m_iCurrentMatrices = null;
+		m_iStoredMatrices = null;
+		m_fRootPartials = null;
+		m_fPatternLogLikelihoods = null;
+		m_nPatternWeights  = null;
+	}
+
+	/** @return new zeroed segment for buffer iBuffer (0 or 1) of node iNode **/
+	MemorySegment allocatePartials(int iBuffer, int iNode) {
+		long nBytes = (long) m_nPartialsSize * Double.BYTES;
+		if (m_scratchChannel != null) {
+			try {
+				// every buffer has a fixed place in the file, so the file is only as large as the highest node used
+				long nOffset = (2L * iNode + iBuffer) * nBytes;
+				return m_scratchChannel.map(FileChannel.MapMode.READ_WRITE, nOffset, nBytes, m_arena);
+			} catch (IOException e) {
+				throw new RuntimeException("Could not map partials for node " + iNode + ": " + e.getMessage());
+			}
+		}
+		return m_arena.allocate(nBytes, Double.BYTES);
+	}
+
+	/**
+	 * Allocates partials for a node
+	 */
+	@Override
+	public void createNodePartials(int iNode) {
+		m_partials[0][iNode] = allocatePartials(0, iNode);
+		m_partials[1][iNode] = allocatePartials(1, iNode);
+	}
+
+	/**
+	 * Sets partials for a node
+	 */
+	@Override
+	public void setNodePartials(int iNode, double[] fPartials) {
+		if (m_partials[0][iNode] == null) {
+			createNodePartials(iNode);
+		}
+		if (fPartials.length < m_nPartialsSize) {
+			long k = 0;
+			for (int i = 0; i < m_nMatrices; i++) {
+				MemorySegment.copy(fPartials, 0, m_partials[0][iNode], DOUBLE, k * Double.BYTES, fPartials.length);
+				k += fPartials.length;
+			}
+		} else {
+			MemorySegment.copy(fPartials, 0, m_partials[0][iNode], DOUBLE, 0, fPartials.length);
+		}
+	}
+
+	/**
+	 * Sets states for a node
+	 */
+	@Override
+	public void setNodeStates(int iNode, int[] iStates) {
+		if (m_iStates[iNode] == null) {
+			m_iStates[iNode] = new int[m_nPatterns];
+		}
+		System.arraycopy(iStates, 0, m_iStates[iNode], 0, m_nPatterns);
+	}
+
+	@Override
+	public void setNodeMatrixForUpdate(int iNode) {
+		m_iCurrentMatrices[iNode] = 1 - m_iCurrentMatrices[iNode];
+	}
+
+	/**
+	 * Sets probability matrix for a node
+	 */
+	@Override
+	public void setNodeMatrix(int iNode, int iMatrixIndex, double[] fMatrix) {
+		System.arraycopy(fMatrix, 0, m_fMatrices[m_iCurrentMatrices[iNode]][iNode],
+				iMatrixIndex * m_nMatrixSize, m_nMatrixSize);
+	}
+
+	@Override
+	public void setNodePartialsForUpdate(int iNode) {
+		m_iCurrentPartials[iNode] = 1 - m_iCurrentPartials[iNode];
+	}
+
+	/** multiply partials at a node by SCALE, see BeerLikelihoodCoreSimple.scalePartials() **/
+	void scalePartials(int iNode) {
+		MemorySegment partials = m_partials[m_iCurrentPartials[iNode]][iNode];
+		for (long v = 0; v < m_nPartialsSize; v++) {
+			partials.setAtIndex(DOUBLE, v, partials.getAtIndex(DOUBLE, v) * SCALE);
+		}
+	}
+
+	/**
+	 * @return the log scaling factor, which is the same for every pattern
+	 */
+	double getLogScalingFactor() {
+		if (m_bUseScaling) {
+			return -(m_nNodes/2) * Math.log(SCALE);
+		} else {
+			return 0;
+		}
+	}
+
+	/**
+	 * Store current state
+	 */
+	@Override
+	public void store() {
+		System.arraycopy(m_iCurrentMatrices, 0, m_iStoredMatrices, 0, m_nNodes);
+		System.arraycopy(m_iCurrentPartials, 0, m_iStoredPartials, 0, m_nNodes);
+	}
+
+	@Override
+	public void unstore() {
+		System.arraycopy(m_iStoredMatrices, 0, m_iCurrentMatrices, 0, m_nNodes);
+		System.arraycopy(m_iStoredPartials, 0, m_iCurrentPartials, 0, m_nNodes);
+	}
+
+	/**
+	 * Restore the stored state
+	 */
+	@Override
+	public void restore() {
+		// Rather than copying the stored stuff back, just swap the pointers...
+		int[] iTmp1 = m_iCurrentMatrices;
+		m_iCurrentMatrices = m_iStoredMatrices;
+		m_iStoredMatrices = iTmp1;
+
+		int[] iTmp2 = m_iCurrentPartials;
+		m_iCurrentPartials = m_iStoredPartials;
+		m_iStoredPartials = iTmp2;
+	}
+
+	@Override
+	public void setUseScaling(double fScale) {
+		SCALE = fScale;
+		m_bUseScaling = (fScale != 1.0);
+	}
+
+	@Override
+	public double calcLogP(int iNode, double[] fProportions, double[] fFrequencies) {
+		integratePartials(iNode, fProportions, m_fRootPartials);
+
+		if (m_iConstantPattern != null) {
+			// some portion of sites is invariant, so adjust root partials for this
+			for (int i : m_iConstantPattern) {
+				m_fRootPartials[i] += m_fProportianInvariant;
+			}
+		}
+
+		calculateLogLikelihoods(m_fRootPartials, fFrequencies, m_fPatternLogLikelihoods);
+
+		double fLogP = 0.0;
+		for (int i = 0; i < m_nPatterns; i++) {
+			fLogP += m_fPatternLogLikelihoods[i] * m_nPatternWeights[i];
+		}
+		return fLogP;
+	}
+
+} // class OffHeapBeerLikelihoodCore
@@ -0,0 +1,326 @@
+/*
+ * File ParallelBeerLikelihoodCore.java
+ *
+ * Copyright (C) 2026 Remco Bouckaert remco@cs.auckland.ac.nz
+ *
+ * This file is part of BEAST2.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+/** likelihood core that collects all operations like BeerLikelihoodCoreSimple, then
+ * splits the patterns once into contiguous blocks, one per thread. Every thread peels
+ * all operations on the stack for its own block, so threads do not need to synchronise
+ * at every node like ExpBeerLikelihoodCore does. At the root, every block contributes
+ * the log likelihood of its patterns, and the block sums are added up.
+ *
+ * Blocks are run in the common ForkJoinPool, with the calling thread doing the first block.
+ * The smallest block size can be set with the beast.parallel.minpatterns property.
+ */
+
+
+package beastlabs.evolution.likelihood;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import beast.base.core.ProgramStatus;
+
+
+public class ParallelBeerLikelihoodCore extends BeerLikelihoodCoreSimple {
+	/** blocks smaller than this are not worth the overhead of handing them to another thread **/
+	final static int MIN_PATTERNS_PER_BLOCK = 128;
+
+	/** system property overriding MIN_PATTERNS_PER_BLOCK **/
+	public static final String MIN_PATTERNS_PROPERTY = "beast.parallel.minpatterns";
+
+	/** maximum number of blocks the patterns are split in **/
+	int m_nThreads;
+	int m_nMinPatternsPerBlock = Math.max(1, Integer.getInteger(MIN_PATTERNS_PROPERTY, MIN_PATTERNS_PER_BLOCK));
+
+	/** start of each pattern block, with m_nBlockStart[nBlocks] == m_nPatterns **/
+	int [] m_nBlockStart;
+
+	/** use as many threads as BEAST is told to use through -threads, or all cores if that is not set **/
+	public ParallelBeerLikelihoodCore(int nStateCount) {
+		this(nStateCount, ProgramStatus.m_nThreads > 1 ? ProgramStatus.m_nThreads : Runtime.getRuntime().availableProcessors());
+	} // c'tor
+
+	public ParallelBeerLikelihoodCore(int nStateCount, int nThreads) {
+		super(nStateCount);
+		m_nThreads = Math.max(1, nThreads);
+	} // c'tor
+
+	@Override
+	public boolean initialize(int nNodeCount, int nPatternCount, int nMatrixCount, boolean bIntegrateCategories, boolean bUseAmbiguities) {
+		boolean result = super.initialize(nNodeCount, nPatternCount, nMatrixCount, bIntegrateCategories, bUseAmbiguities);
+		initBlocks();
+		return result;
+	}
+
+	/** split patterns in at most m_nThreads contiguous blocks of roughly equal size **/
+	void initBlocks() {
+		int nBlocks = Math.max(1, Math.min(m_nThreads, m_nPatterns / m_nMinPatternsPerBlock));
+		m_nBlockStart = new int[nBlocks + 1];
+		for (int i = 0; i <= nBlocks; i++) {
+			m_nBlockStart[i] = (int) ((long) m_nPatterns * i / nBlocks);
+		}
+	}
+
+	/** @return number of blocks the patterns are split in **/
+	public int getBlockCount() {
+		return m_nBlockStart.length - 1;
+	}
+
+	@Override
+	public void processStack() {
+		runBlocks(-1, null, null);
+	}
+
+	@Override
+	void integratePartials(int iNode, double[] fProportions, double[] fOutPartials) {
+		processStack();
+		for (int iBlock = 0; iBlock < getBlockCount(); iBlock++) {
+			integratePartials(iNode, fProportions, fOutPartials, m_nBlockStart[iBlock], m_nBlockStart[iBlock + 1]);
+		}
+	}
+
+	@Override
+	public double calcLogP(int iNode, double[] fProportions, double[] fFrequencies) {
+		return runBlocks(iNode, fProportions, fFrequencies);
+	}
+
+	/**
+	 * Peel all operations on the stack, one block of patterns per thread.
+	 * If iRoot >= 0, also calculate the log likelihood at the root.
+	 * @return log likelihood, or 0 if iRoot < 0
+	 */
+	double runBlocks(int iRoot, double[] fProportions, double[] fFrequencies) {
+		int nBlocks = getBlockCount();
+		double fLogP;
+		if (nBlocks == 1) {
+			fLogP = peelBlock(0, m_nPatterns, iRoot, fProportions, fFrequencies);
+		} else {
+			@SuppressWarnings("unchecked")
+			ForkJoinTask<Double> [] tasks = new ForkJoinTask[nBlocks];
+			ForkJoinPool pool = ForkJoinPool.commonPool();
+			for (int iBlock = 1; iBlock < nBlocks; iBlock++) {
+				final int iStart = m_nBlockStart[iBlock];
+				final int iEnd = m_nBlockStart[iBlock + 1];
+				tasks[iBlock] = pool.submit(() -> peelBlock(iStart, iEnd, iRoot, fProportions, fFrequencies));
+			}
+			fLogP = peelBlock(m_nBlockStart[0], m_nBlockStart[1], iRoot, fProportions, fFrequencies);
+			// add in block order, so the result does not depend on thread timing
+			for (int iBlock = 1; iBlock < nBlocks; iBlock++) {
+				fLogP += tasks[iBlock].join();
+			}
+		}
+		m_nTopOfStack = 0;
+		return fLogP;
+	}
+
+	/** peel the tree for patterns iStart (inclusive) to iEnd (exclusive) **/
+	double peelBlock(int iStart, int iEnd, int iRoot, double[] fProportions, double[] fFrequencies) {
+		for (int iJob = 0; iJob < m_nTopOfStack; iJob++) {
+			int iNode1 = m_nNode1[iJob];
+			int iNode2 = m_nNode2[iJob];
+			int iNode3 = m_nNode3[iJob];
+
+			switch (m_nOperation[iJob]) {
+			case OPERATION_SS:
+				calcAllMatrixSSP(iNode1, iNode2, iNode3, iStart, iEnd);
+				break;
+			case OPERATION_SP:
+				calcAllMatrixSPP(iNode1, iNode2, iNode3, iStart, iEnd);
+				break;
+			case OPERATION_PP:
+				calcAllMatrixPPP(iNode1, iNode2, iNode3, iStart, iEnd);
+				break;
+			}
+			if (m_bUseScaling) {
+				scalePartials(iNode3, iStart, iEnd);
+			}
+		}
+		if (iRoot < 0) {
+			return 0;
+		}
+
+		integratePartials(iRoot, fProportions, m_fRootPartials, iStart, iEnd);
+		if (m_iConstantPattern != null) {
+			// some portion of sites is invariant, so adjust root partials for this
+			int iFirst = iStart * m_nStates;
+			int iLast = iEnd * m_nStates;
+			for (int i : m_iConstantPattern) {
+				if (i >= iFirst && i < iLast) {
+					m_fRootPartials[i] += m_fProportianInvariant;
+				}
+			}
+		}
+
+		double fLogScalingFactor = getLogScalingFactor(0);
+		double fLogP = 0;
+		int v = iStart * m_nStates;
+		for (int k = iStart; k < iEnd; k++) {
+			double sum = 0.0;
+			for (int i = 0; i < m_nStates; i++) {
+				sum += fFrequencies[i] * m_fRootPartials[v];
+				v++;
+			}
+			m_fPatternLogLikelihoods[k] = Math.log(sum) + fLogScalingFactor;
+			fLogP += m_fPatternLogLikelihoods[k] * m_nPatternWeights[k];
+		}
+		return fLogP;
+	}
+
+	/**
+	 * Calculates partial likelihoods at a node when both children have states.
+	 */
+	void calcAllMatrixSSP(int iNode1, int iNode2, int iNode3, int iStart, int iEnd) {
+		int [] iStates1 = m_iStates[iNode1];
+		int [] iStates2 = m_iStates[iNode2];
+		double [] fMatrices1 = m_fMatrices[m_iCurrentMatrices[iNode1]][iNode1];
+		double [] fMatrices2 = m_fMatrices[m_iCurrentMatrices[iNode2]][iNode2];
+		double [] fPartials3 = m_fPartials[m_iCurrentPartials[iNode3]][iNode3];
+
+		for (int l = 0; l < m_nMatrices; l++) {
+			int v = (l * m_nPatterns + iStart) * m_nStates;
+			for (int k = iStart; k < iEnd; k++) {
+				int state1 = iStates1[k];
+				int state2 = iStates2[k];
+				int w = l * m_nMatrixSize;
+				if (state1 < m_nStates && state2 < m_nStates) {
+					for (int i = 0; i < m_nStates; i++) {
+						fPartials3[v] = fMatrices1[w + state1] * fMatrices2[w + state2];
+						v++;
+						w += m_nStates;
+					}
+				} else if (state1 < m_nStates) {
+					// child 2 has a gap or unknown state so treat it as unknown
+					for (int i = 0; i < m_nStates; i++) {
+						fPartials3[v] = fMatrices1[w + state1];
+						v++;
+						w += m_nStates;
+					}
+				} else if (state2 < m_nStates) {
+					// child 1 has a gap or unknown state so treat it as unknown
+					for (int i = 0; i < m_nStates; i++) {
+						fPartials3[v] = fMatrices2[w + state2];
+						v++;
+						w += m_nStates;
+					}
+				} else {
+					// both children have a gap or unknown state so set partials to 1
+					for (int j = 0; j < m_nStates; j++) {
+						fPartials3[v] = 1.0;
+						v++;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Calculates partial likelihoods at a node when one child has states and one has partials.
+	 */
+	void calcAllMatrixSPP(int iNode1, int iNode2, int iNode3, int iStart, int iEnd) {
+		int [] iStates1 = m_iStates[iNode1];
+		double [] fMatrices1 = m_fMatrices[m_iCurrentMatrices[iNode1]][iNode1];
+		double [] fPartials2 = m_fPartials[m_iCurrentPartials[iNode2]][iNode2];
+		double [] fMatrices2 = m_fMatrices[m_iCurrentMatrices[iNode2]][iNode2];
+		double [] fPartials3 = m_fPartials[m_iCurrentPartials[iNode3]][iNode3];
+
+		for (int l = 0; l < m_nMatrices; l++) {
+			int u = (l * m_nPatterns + iStart) * m_nStates;
+			int v = u;
+			for (int k = iStart; k < iEnd; k++) {
+				int state1 = iStates1[k];
+				int w = l * m_nMatrixSize;
+				for (int i = 0; i < m_nStates; i++) {
+					double sum = 0.0;
+					for (int j = 0; j < m_nStates; j++) {
+						sum += fMatrices2[w] * fPartials2[v + j];
+						w++;
+					}
+					// if child 1 has a gap or unknown state, don't use it
+					fPartials3[u] = (state1 < m_nStates ? fMatrices1[w - m_nStates + state1] * sum : sum);
+					u++;
+				}
+				v += m_nStates;
+			}
+		}
+	}
+
+	/**
+	 * Calculates partial likelihoods at a node when both children have partials.
+	 */
+	void calcAllMatrixPPP(int iNode1, int iNode2, int iNode3, int iStart, int iEnd) {
+		double [] fPartials1 = m_fPartials[m_iCurrentPartials[iNode1]][iNode1];
+		double [] fMatrices1 = m_fMatrices[m_iCurrentMatrices[iNode1]][iNode1];
+		double [] fPartials2 = m_fPartials[m_iCurrentPartials[iNode2]][iNode2];
+		double [] fMatrices2 = m_fMatrices[m_iCurrentMatrices[iNode2]][iNode2];
+		double [] fPartials3 = m_fPartials[m_iCurrentPartials[iNode3]][iNode3];
+
+		for (int l = 0; l < m_nMatrices; l++) {
+			int u = (l * m_nPatterns + iStart) * m_nStates;
+			int v = u;
+			for (int k = iStart; k < iEnd; k++) {
+				int w = l * m_nMatrixSize;
+				for (int i = 0; i < m_nStates; i++) {
+					double sum1 = 0.0, sum2 = 0.0;
+					for (int j = 0; j < m_nStates; j++) {
+						sum1 += fMatrices1[w] * fPartials1[v + j];
+						sum2 += fMatrices2[w] * fPartials2[v + j];
+						w++;
+					}
+					fPartials3[u] = sum1 * sum2;
+					u++;
+				}
+				v += m_nStates;
+			}
+		}
+	}
+
+	/** integrate partials across categories for patterns iStart (inclusive) to iEnd (exclusive) **/
+	void integratePartials(int iNode, double[] fProportions, double[] fOutPartials, int iStart, int iEnd) {
+		double[] fInPartials = m_fPartials[m_iCurrentPartials[iNode]][iNode];
+		int iFirst = iStart * m_nStates;
+		int iLast = iEnd * m_nStates;
+		for (int u = iFirst; u < iLast; u++) {
+			fOutPartials[u] = fInPartials[u] * fProportions[0];
+		}
+		for (int l = 1; l < m_nMatrices; l++) {
+			int v = l * m_nPatterns * m_nStates + iFirst;
+			for (int u = iFirst; u < iLast; u++) {
+				fOutPartials[u] += fInPartials[v] * fProportions[l];
+				v++;
+			}
+		}
+	}
+
+	void scalePartials(int iNode, int iStart, int iEnd) {
+		double [] fPartials = m_fPartials[m_iCurrentPartials[iNode]][iNode];
+		for (int l = 0; l < m_nMatrices; l++) {
+			int iFirst = (l * m_nPatterns + iStart) * m_nStates;
+			int iLast = (l * m_nPatterns + iEnd) * m_nStates;
+			for (int v = iFirst; v < iLast; v++) {
+				fPartials[v] *= SCALE;
+			}
+		}
+	}
+
+} // class ParallelBeerLikelihoodCore
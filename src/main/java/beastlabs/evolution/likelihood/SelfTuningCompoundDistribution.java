@@ -5,6 +5,7 @@ package beastlabs.evolution.likelihood;
 
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
 import java.util.concurrent.CountDownLatch;
@@ -12,8 +13,6 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
 
-import beagle.BeagleFactory;
-import beagle.ResourceDetails;
 import beast.base.core.BEASTInterface;
 import beast.base.core.Description;
 import beast.base.core.Input;
@@ -56,11 +55,21 @@ public class SelfTuningCompoundDistribution extends Distribution {
     
     final public Input<Boolean> includeMPTLInput = new Input<>("includeMPTL", "include multi-partition (BEAGLE 3) tree likelihood in configurations", true);
     final public Input<Boolean> includeSPTLInput = new Input<>("includeSPTL", "include single-partition (BEAGLE 2) tree likelihood in configurations", true);
+    final public Input<Boolean> scheduleByCostInput = new Input<>("scheduleByCost", "when using threads, start the distributions that are expected to take longest first, "
+    		+ "based on their past run times (default true)", true);
+    final public Input<Double> explorationRateInput = new Input<>("explorationRate", "after the first round of tuning, probability of trying "
+    		+ "another configuration instead of the one with the highest throughput every time switchCount samples are done. "
+    		+ "This keeps the choice up to date when throughput changes over time, e.g. due to other jobs on the same machine. "
+    		+ "If 0, tuning is only restarted every reconfigCount samples (default 0)", 0.0);
+    final public Input<Double> recencyWeightInput = new Input<>("recencyWeight", "weight of the latest measurement in the throughput estimate of a "
+    		+ "configuration: higher values adapt faster to changes in throughput (default 0.3)", 0.3);
     
     class Configuration {
     	long nrOfSamples;
     	double totalRunTime;
     	int threadCount;
+    	/** number of samples per milli second, weighted towards recent measurements, 0 if not measured yet **/
+    	double throughput;
     	
     	Configuration(int threadCount) {
     		this.nrOfSamples = 0;
@@ -157,6 +166,12 @@ public class SelfTuningCompoundDistribution extends Distribution {
 	private boolean initialMeasurement;
 	private int sameOptimumCount;
 
+	/** continuous tuning: explore other configurations with explorationRate probability once the best configuration is found **/
+	private double explorationRate;
+	private double recencyWeight;
+	/** separate random number generator, so tuning does not change the random number sequence of the MCMC chain **/
+	private Random tuningRandom;
+
     
     /**
      * flag to indicate threads should be used. Only effective if the useThreadsInput is
@@ -166,6 +181,17 @@ public class SelfTuningCompoundDistribution extends Distribution {
     int maxNrOfThreads;
     boolean ignore;
     public static ExecutorService exec;
+
+    /** scheduling of distributions over threads: longest expected processing time first **/
+    boolean scheduleByCost;
+    /** estimated run time in nano seconds of each distribution, smoothed over recent evaluations, 0 if never measured **/
+    double [] costEstimate;
+    /** size of each distribution, used to estimate cost of distributions that were not timed yet **/
+    double [] costWeight;
+    /** order in which dirty distributions are handed to the threads **/
+    Integer [] scheduleOrder;
+    /** weight of the latest measurement in the cost estimate **/
+    final static double COST_SMOOTHING = 0.2;
     
     @Override
     public void initAndValidate() {
@@ -178,6 +204,16 @@ public class SelfTuningCompoundDistribution extends Distribution {
         if (stopAfterSamerResultsInput.get() < 1) {
         	throw new IllegalArgumentException("stopAfterSamerResults must be at least 1");
         }
+
+        explorationRate = explorationRateInput.get();
+        if (explorationRate < 0 || explorationRate > 1) {
+        	throw new IllegalArgumentException("explorationRate must be between 0 and 1");
+        }
+        recencyWeight = recencyWeightInput.get();
+        if (recencyWeight <= 0 || recencyWeight > 1) {
+        	throw new IllegalArgumentException("recencyWeight must be larger than 0 and at most 1");
+        }
+        tuningRandom = new Random(127);
         
         useThreads = useThreadsInput.get() && (ProgramStatus.m_nThreads > 1);
 		maxNrOfThreads = useThreads ? ProgramStatus.m_nThreads : 1;
@@ -190,6 +226,8 @@ public class SelfTuningCompoundDistribution extends Distribution {
 
         ignore = ignoreInput.get();
         
+        initScheduler();
+
         switchCount = swithcCountInput.get();
 
         if (pDistributions.get().size() == 0) {
@@ -215,6 +253,25 @@ public class SelfTuningCompoundDistribution extends Distribution {
     }
 
 
+    private void initScheduler() {
+        scheduleByCost = scheduleByCostInput.get();
+        int n = pDistributions.get().size();
+        costEstimate = new double[n];
+        costWeight = new double[n];
+        scheduleOrder = new Integer[n];
+        for (int i = 0; i < n; i++) {
+        	Distribution distr = pDistributions.get().get(i);
+        	if (distr instanceof GenericTreeLikelihood) {
+        		// work is roughly proportional to number of patterns
+        		costWeight[i] = ((GenericTreeLikelihood) distr).dataInput.get().getPatternCount();
+        	} else {
+        		costWeight[i] = 1;
+        	}
+        	scheduleOrder[i] = i;
+        }
+	}
+
+
     private MultiPartitionTreeLikelihood createMultiPartitionTreeLikelihood() {
     	
         GenericTreeLikelihood tl0 = null;
@@ -298,10 +355,6 @@ public class SelfTuningCompoundDistribution extends Distribution {
 
 
 	private Configuration initConfigurations(MultiPartitionTreeLikelihood mpTreeLikelihood) {
-        List<ResourceDetails> resourceDetails = BeagleFactory.getResourceDetails();
-        ResourceDetails rd = resourceDetails.get(0);
-        rd.getNumber();
-
         configurations = new ArrayList<>();
 
         if (mpTreeLikelihood != null) {
@@ -321,6 +374,9 @@ public class SelfTuningCompoundDistribution extends Distribution {
 
 
 	private boolean switchConfiguration() {
+		if (bestConfigurationSoFar != null && explorationRate > 0) {
+			return continueTuning();
+		}
 		if (bestConfigurationSoFar != null || !keepTuning) {
 			// all configurations tried, and best one found
 			return false;
@@ -345,6 +401,9 @@ public class SelfTuningCompoundDistribution extends Distribution {
 			bestConfigurationSoFar = cfg0;
 			for (Configuration cfg : configurations) {
 				double score = cfg.totalRunTime / cfg.nrOfSamples;
+				if (cfg.totalRunTime > 0) {
+					cfg.throughput = cfg.nrOfSamples / cfg.totalRunTime;
+				}
 				Log.warning(cfg.toString() + ": " + cfg.totalRunTime + "/" + cfg.nrOfSamples + " = " + cfg.totalRunTime / cfg.nrOfSamples);
 				if (score < best) {
 					bestConfigurationSoFar = cfg;
@@ -419,6 +478,65 @@ public class SelfTuningCompoundDistribution extends Distribution {
         return logP;
     }
 
+	/**
+	 * Bandit style tuning, used once all configurations have been timed:
+	 * update the throughput of the current configuration with the latest measurement,
+	 * then mostly pick the configuration with highest throughput, but every now and
+	 * then (with probability explorationRate) pick another one to see whether it got faster.
+	 * @return true if the configuration changed
+	 */
+	private boolean continueTuning() {
+		long endTime = System.currentTimeMillis();
+		double latest = (currentConfiguration.nrOfSamples - 1.0) / Math.max(1, endTime - switchTime);
+		if (currentConfiguration.throughput == 0) {
+			currentConfiguration.throughput = latest;
+		} else {
+			currentConfiguration.throughput += recencyWeight * (latest - currentConfiguration.throughput);
+		}
+
+		Configuration next = null;
+		if (configurations.size() > 1 && tuningRandom.nextDouble() < explorationRate) {
+			int i = tuningRandom.nextInt(configurations.size() - 1);
+			if (i >= configurations.indexOf(currentConfiguration)) {
+				i++;
+			}
+			next = configurations.get(i);
+		} else {
+			next = configurations.get(0);
+			for (Configuration cfg : configurations) {
+				if (cfg.throughput > next.throughput) {
+					next = cfg;
+				}
+			}
+		}
+
+		boolean changed = next != currentConfiguration;
+		if (changed) {
+			if (currentConfiguration.threadCount != next.threadCount) {
+				if (exec != null) {
+					exec.shutdown();
+				}
+				if (next.threadCount > 1) {
+					exec = Executors.newFixedThreadPool(next.threadCount);
+				}
+			}
+			currentConfiguration = next;
+			currentConfiguration.reset();
+			Log.debug.println("Switching to " + currentConfiguration.toString());
+		}
+		currentConfiguration.nrOfSamples = 1;
+		switchTime = System.currentTimeMillis();
+		return changed;
+	}
+
+	List<Configuration> getConfigurations() {
+		return configurations;
+	}
+
+	Configuration getCurrentConfiguration() {
+		return currentConfiguration;
+	}
+
     private void restartTuning() {
     	if (!keepTuning) {
     		return;
@@ -448,18 +566,20 @@ public class SelfTuningCompoundDistribution extends Distribution {
 
 	class CoreRunnable implements java.lang.Runnable {
         Distribution distr;
+        int index;
 
-        CoreRunnable(Distribution core) {
+        CoreRunnable(Distribution core, int index) {
             distr = core;
+            this.index = index;
         }
 
         @Override
 		public void run() {
             try {
                 if (distr.isDirtyCalculation()) {
-                    logP += distr.calculateLogP();
-                } else {
-                    logP += distr.getCurrentLogP();
+                	long start = System.nanoTime();
+                    distr.calculateLogP();
+                    updateCostEstimate(index, System.nanoTime() - start);
                 }
             } catch (Exception e) {
                 Log.err.println("Something went wrong in a calculation of " + distr.getID());
@@ -473,20 +593,62 @@ public class SelfTuningCompoundDistribution extends Distribution {
 
     CountDownLatch countDown;
 
+    /** only called from the thread that calculates distribution i, so no synchronisation required **/
+    void updateCostEstimate(int i, long nanos) {
+    	if (costEstimate[i] == 0) {
+    		costEstimate[i] = nanos;
+    	} else {
+    		costEstimate[i] += COST_SMOOTHING * (nanos - costEstimate[i]);
+    	}
+    }
+
+    /** expected run time of distribution i, extrapolated from distributions of similar size if it was not timed yet **/
+    double getCostEstimate(int i) {
+    	if (costEstimate[i] > 0) {
+    		return costEstimate[i];
+    	}
+    	double time = 0, weight = 0;
+    	for (int j = 0; j < costEstimate.length; j++) {
+    		if (costEstimate[j] > 0) {
+    			time += costEstimate[j];
+    			weight += costWeight[j];
+    		}
+    	}
+    	return weight > 0 ? costWeight[i] * time / weight : costWeight[i];
+    }
+
+    /** 
+     * Sort distributions such that the most expensive one is handed out first.
+     * Since idle threads take the next task from the shared queue of the executor,
+     * this gives the longest-processing-time-first schedule, which keeps a single
+     * large partition from ending up at the tail of the critical path. 
+     */
+    private void updateSchedule() {
+    	final double [] cost = new double[scheduleOrder.length];
+    	for (int i = 0; i < cost.length; i++) {
+    		cost[i] = getCostEstimate(i);
+    	}
+    	Arrays.sort(scheduleOrder, (i1, i2) -> Double.compare(cost[i2], cost[i1]));
+    }
+
     private double calculateLogPUsingThreads() {
         try {
-
+        	List<Distribution> distrs = pDistributions.get();
             int dirtyDistrs = 0;
-            for (Distribution dists : pDistributions.get()) {
+            for (Distribution dists : distrs) {
                 if (dists.isDirtyCalculation()) {
                     dirtyDistrs++;
                 }
             }
+            if (scheduleByCost) {
+            	updateSchedule();
+            }
             countDown = new CountDownLatch(dirtyDistrs);
             // kick off the threads
-            for (Distribution dists : pDistributions.get()) {
+            for (int i : scheduleOrder) {
+            	Distribution dists = distrs.get(i);
                 if (dists.isDirtyCalculation()) {
-                    CoreRunnable coreRunnable = new CoreRunnable(dists);
+                    CoreRunnable coreRunnable = new CoreRunnable(dists, i);
                     exec.execute(coreRunnable);
                 }
             }
@@ -598,7 +760,7 @@ public class SelfTuningCompoundDistribution extends Distribution {
 
 
 	public boolean update(long sample) {
-        if (sample > 0 && sample % reconfigCountInput.get() == 0 && configurations.size() > 1) {
+        if (sample > 0 && sample % reconfigCountInput.get() == 0 && configurations.size() > 1 && explorationRate == 0) {
         	restartTuning();
         	return true;
         }
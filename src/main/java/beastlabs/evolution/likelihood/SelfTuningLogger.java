@@ -0,0 +1,47 @@
+package beastlabs.evolution.likelihood;
+
+import java.io.PrintStream;
+import java.util.List;
+
+import beast.base.core.BEASTObject;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.core.Loggable;
+
+@Description("Logger for reporting which configuration a SelfTuningCompoundDistribution uses, " +
+		"and the throughput (in samples per milli second) it measured for each of its configurations.")
+public class SelfTuningLogger extends BEASTObject implements Loggable {
+	final public Input<SelfTuningCompoundDistribution> distributionInput = new Input<>("distribution", "self tuning distribution to report configurations for", Validate.REQUIRED);
+
+	SelfTuningCompoundDistribution distribution;
+
+	@Override
+	public void initAndValidate() {
+		distribution = distributionInput.get();
+	}
+
+	@Override
+	public void init(PrintStream out) {
+		String id = distribution.getID() == null ? "selfTuning" : distribution.getID();
+		out.append(id + ".configuration\t");
+		List<SelfTuningCompoundDistribution.Configuration> configurations = distribution.getConfigurations();
+		for (int i = 0; i < configurations.size(); i++) {
+			out.append(id + ".throughput" + i + "\t");
+		}
+	}
+
+	@Override
+	public void log(long sample, PrintStream out) {
+		List<SelfTuningCompoundDistribution.Configuration> configurations = distribution.getConfigurations();
+		out.append(configurations.indexOf(distribution.getCurrentConfiguration()) + "\t");
+		for (SelfTuningCompoundDistribution.Configuration cfg : configurations) {
+			out.append(cfg.throughput + "\t");
+		}
+	}
+
+	@Override
+	public void close(PrintStream out) {
+		// nothing to do
+	}
+}
@@ -23,6 +23,8 @@ public class SelfTuningMCMC extends MCMC {
     
     final public Input<Boolean> includeMPTLInput = new Input<>("includeMPTL", "include multi-partition (BEAGLE 3) tree likelihood in configurations-- only used if no SelfTuningCompoundDistribution specified.", true);
     final public Input<Boolean> includeSPTLInput = new Input<>("includeSPTL", "include single-partition (BEAGLE 2) tree likelihood in configurations-- only used if no SelfTuningCompoundDistribution specified.", true);
+    final public Input<Double> explorationRateInput = new Input<>("explorationRate", "probability of trying another configuration once tuning found the best one. If 0, tuning is only restarted every reconfigCount samples (default 0)-- only used if no SelfTuningCompoundDistribution specified.", 0.0);
+    final public Input<Double> recencyWeightInput = new Input<>("recencyWeight", "weight of the latest measurement in the throughput estimate of a configuration (default 0.3)-- only used if no SelfTuningCompoundDistribution specified.", 0.3);
 
 	
 	SelfTuningCompoundDistribution stCompoundDistribution;
@@ -60,7 +62,9 @@ public class SelfTuningMCMC extends MCMC {
 					"reconfigCount",reconfigCountInput.get(),
 					"stopAfterSamerResults",stopAfterSamerResultsInput.get(),
 					"includeMPTL",includeMPTLInput.get(),
-					"includeSPTL",includeSPTLInput.get()
+					"includeSPTL",includeSPTLInput.get(),
+					"explorationRate",explorationRateInput.get(),
+					"recencyWeight",recencyWeightInput.get()
 					);
 			for (BEASTInterface out : cd.getOutputs()) {
 				for (Input<?> in : out.listInputs()) {
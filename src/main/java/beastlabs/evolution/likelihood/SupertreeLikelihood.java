@@ -4,13 +4,24 @@ import beast.base.core.Description;
 import beast.base.inference.Distribution;
 import beast.base.core.Input;
 import beast.base.inference.State;
+import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.evolution.tree.TreeInterface;
 import beast.base.evolution.tree.TreeMetric;
+import beastlabs.evolution.tree.RobinsonsFouldMetric;
 
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
  * @author Alexei Drummond
@@ -27,6 +38,75 @@ public class SupertreeLikelihood extends Distribution {
 
     final public Input<TreeMetric> treeMetricInput = new Input<>("treeMetric", "the tree metric to use for the tree distances in the likelihood function.", Input.Validate.REQUIRED);
 
+    final public Input<Boolean> useThreadsInput = new Input<>("useThreads", "calculate distances to sub trees in parallel. " +
+            "Only used for tree metrics other than RobinsonsFouldMetric, which must be thread safe (default false)", false);
+
+
+    /** Robinson-Foulds specific bookkeeping, null if another metric is used.
+     * Clades are represented as sets of taxon numbers, as assigned by the metric. **/
+    Map<String, Integer> taxonMap;
+    /** clade below each node of the super tree, indexed by node number **/
+    BitSet [] nodeClades;
+    /** number of nodes in the super tree for each of its clades **/
+    Map<BitSet, int[]> supertreeCladeCounts;
+    /** for each clade of any of the sub trees, the sub trees it occurs in **/
+    Map<BitSet, int[]> subtreeOccurrences;
+    /** distance to each of the sub trees, and their sum **/
+    int [] distances;
+    long totalDistance;
+    /** nodes of the super tree that changed clade since the last store, and their previous clades **/
+    List<Integer> changedNodes = new ArrayList<>();
+    List<BitSet> previousClades = new ArrayList<>();
+
+    @Override
+    public void initAndValidate() {
+        if (treeMetricInput.get() instanceof RobinsonsFouldMetric) {
+            taxonMap = ((RobinsonsFouldMetric) treeMetricInput.get()).getTaxonMap();
+            initSubtreeClades();
+        }
+    }
+
+    /** the sub trees are fixed, so their clades only need to be determined once **/
+    private void initSubtreeClades() {
+        List<Tree> subtrees = dataInput.get();
+        Map<BitSet, List<Integer>> occurrences = new HashMap<>();
+        distances = new int[subtrees.size()];
+        totalDistance = 0;
+        for (int i = 0; i < subtrees.size(); i++) {
+            Set<BitSet> clades = new HashSet<>();
+            collectClades(subtrees.get(i).getRoot(), clades);
+            for (BitSet clade : clades) {
+                occurrences.computeIfAbsent(clade, k -> new ArrayList<>()).add(i);
+            }
+            // none of the clades is in the super tree yet
+            distances[i] = clades.size();
+            totalDistance += clades.size();
+        }
+        subtreeOccurrences = new HashMap<>();
+        for (Map.Entry<BitSet, List<Integer>> entry : occurrences.entrySet()) {
+            subtreeOccurrences.put(entry.getKey(), entry.getValue().stream().mapToInt(Integer::intValue).toArray());
+        }
+        supertreeCladeCounts = new HashMap<>();
+        nodeClades = null;
+    }
+
+    private BitSet collectClades(Node node, Set<BitSet> clades) {
+        BitSet tips = getTaxonClade(node);
+        for (Node child : node.getChildren()) {
+            tips.or(collectClades(child, clades));
+        }
+        clades.add(tips);
+        return tips;
+    }
+
+    private BitSet getTaxonClade(Node node) {
+        BitSet tips = new BitSet();
+        Integer taxonNr = taxonMap.get(node.getID());
+        if (taxonNr != null) {
+            tips.set(taxonNr);
+        }
+        return tips;
+    }
 
     @Override
     public List<String> getArguments() {
@@ -44,19 +124,151 @@ public class SupertreeLikelihood extends Distribution {
 
     public double calculateLogP() {
 
-        List<Tree> subtrees = dataInput.get();
         double beta = betaInput.get();
-        TreeMetric treeMetric = treeMetricInput.get();
         TreeInterface tree = treeInput.get();
 
+        if (taxonMap != null) {
+            // Robinson-Foulds distance is the number of clades of a sub tree not in the super tree,
+            // so only clades of nodes that changed need to be updated
+            if (nodeClades == null) {
+                nodeClades = new BitSet[tree.getNodeCount()];
+                updateClades(tree.getRoot(), true);
+                // the initial state cannot be restored
+                changedNodes.clear();
+                previousClades.clear();
+            } else {
+                updateClades(tree.getRoot(), false);
+            }
+            logP = -beta * totalDistance;
+            return logP;
+        }
+
+        List<Tree> subtrees = dataInput.get();
+        TreeMetric treeMetric = treeMetricInput.get();
 
         double logP = 0;
 
+        if (useThreadsInput.get() && subtrees.size() > 1) {
+            // a caller running in the common pool itself helps out with the tasks, instead of blocking a worker
+            List<Callable<Double>> tasks = new ArrayList<>();
+            for (Tree subtree : subtrees) {
+                tasks.add(() -> treeMetric.distance(subtree, tree));
+            }
+            final double [] distance = new double[subtrees.size()];
+            try {
+                List<Future<Double>> futures = ForkJoinPool.commonPool().invokeAll(tasks);
+                for (int i = 0; i < distance.length; i++) {
+                    distance[i] = futures.get(i).get();
+                }
+            } catch (InterruptedException e) {
+                // a partial sum is not a valid posterior
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while calculating distances to sub trees", e);
+            } catch (ExecutionException e) {
+                // rethrow in the calling thread, instead of returning a NaN posterior
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                if (e.getCause() instanceof Error) {
+                    throw (Error) e.getCause();
+                }
+                throw new RuntimeException(e.getCause());
+            }
+            for (double d : distance) {
+                logP += -beta * d;
+            }
+            this.logP = logP;
+            return logP;
+        }
+
         for (Tree subtree : subtrees) {
 
             logP += -beta * treeMetric.distance(subtree, tree);
         }
 
+        this.logP = logP;
         return logP;
     }
+
+    /**
+     * recalculate clades of nodes that changed topology and their ancestors
+     * @return true if the clade of node changed
+     */
+    private boolean updateClades(Node node, boolean force) {
+        boolean childChanged = false;
+        for (Node child : node.getChildren()) {
+            childChanged = updateClades(child, force) || childChanged;
+            // a child that moved here, possibly a leaf, is filthy without its clade changing
+            childChanged = childChanged || child.isDirty() == Tree.IS_FILTHY;
+        }
+        if (!force && !childChanged && node.isDirty() != Tree.IS_FILTHY) {
+            return false;
+        }
+        BitSet tips = getTaxonClade(node);
+        for (Node child : node.getChildren()) {
+            tips.or(nodeClades[child.getNr()]);
+        }
+        BitSet previous = nodeClades[node.getNr()];
+        if (tips.equals(previous)) {
+            return false;
+        }
+        replaceClade(node.getNr(), tips);
+        changedNodes.add(node.getNr());
+        previousClades.add(previous);
+        return true;
+    }
+
+    private void replaceClade(int nodeNr, BitSet clade) {
+        BitSet previous = nodeClades[nodeNr];
+        if (previous != null) {
+            int [] count = supertreeCladeCounts.get(previous);
+            count[0]--;
+            if (count[0] == 0) {
+                supertreeCladeCounts.remove(previous);
+                updateDistances(previous, 1);
+            }
+        }
+        nodeClades[nodeNr] = clade;
+        if (clade != null) {
+            int [] count = supertreeCladeCounts.computeIfAbsent(clade, k -> new int[1]);
+            count[0]++;
+            if (count[0] == 1) {
+                updateDistances(clade, -1);
+            }
+        }
+    }
+
+    /** clade appeared in (delta = -1) or disappeared from (delta = 1) the super tree **/
+    private void updateDistances(BitSet clade, int delta) {
+        int [] subtrees = subtreeOccurrences.get(clade);
+        if (subtrees != null) {
+            for (int i : subtrees) {
+                distances[i] += delta;
+            }
+            totalDistance += (long) delta * subtrees.length;
+        }
+    }
+
+    /** distance to sub tree i as of the last calculation, only available for RobinsonsFouldMetric **/
+    public int getDistance(int i) {
+        return distances[i];
+    }
+
+    @Override
+    public void store() {
+        changedNodes.clear();
+        previousClades.clear();
+        super.store();
+    }
+
+    @Override
+    public void restore() {
+        // undo changes in reverse order
+        for (int i = changedNodes.size() - 1; i >= 0; i--) {
+            replaceClade(changedNodes.get(i), previousClades.get(i));
+        }
+        changedNodes.clear();
+        previousClades.clear();
+        super.restore();
+    }
 }
@@ -0,0 +1,231 @@
+/*
+ * File VectorKernels4.java
+ *
+ * Copyright (C) 2026 Remco Bouckaert remco@cs.auckland.ac.nz
+ *
+ * This file is part of BEAST2.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+package beastlabs.evolution.likelihood;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD kernels for 4 state partials using the (incubating) Java Vector API.
+ *
+ * The partials of one pattern are 4 consecutive doubles, so they fit exactly
+ * in one 256 bit vector. The transition matrix of a category is transposed
+ * once into 4 column vectors, after which the matrix-vector product for a
+ * pattern is a sum of 4 column vectors scaled by the child partials.
+ *
+ * This class is only loaded by BeerLikelihoodCoreVector4 after it verified
+ * that the jdk.incubator.vector module is present, so no other class should
+ * refer to it directly.
+ */
+final class VectorKernels4 {
+
+	/** one pattern worth of partials **/
+	static final VectorSpecies<Double> SPECIES_4 = DoubleVector.SPECIES_256;
+	/** widest species supported by the hardware, used for flat loops **/
+	static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+	/** gather indices for picking a column out of a row major 4x4 matrix **/
+	private static final int [] COLUMN_INDEX = {0, 4, 8, 12};
+
+	private VectorKernels4() {
+	}
+
+	/**
+	 * @return true if the hardware has native vector registers of at least 256 bits,
+	 * otherwise the Vector API falls back to (slow) Java code.
+	 */
+	static boolean isSupported() {
+		return SPECIES.length() >= 4;
+	}
+
+	private static DoubleVector column(double [] fMatrices, int w, int j) {
+		return DoubleVector.fromArray(SPECIES_4, fMatrices, w + j, COLUMN_INDEX, 0);
+	}
+
+	private static DoubleVector select(int state, DoubleVector c0, DoubleVector c1, DoubleVector c2, DoubleVector c3) {
+		if (state == 0) {
+			return c0;
+		} else if (state == 1) {
+			return c1;
+		} else if (state == 2) {
+			return c2;
+		}
+		return c3;
+	}
+
+	/**
+	 * Calculates partial likelihoods at a node when both children have states.
+	 */
+	static void statesStates(int [] iStates1, double [] fMatrices1, int [] iStates2, double [] fMatrices2,
+			double [] fPartials3, int nPatterns, int nMatrices) {
+		DoubleVector one = DoubleVector.broadcast(SPECIES_4, 1.0);
+		int v = 0;
+		for (int l = 0; l < nMatrices; l++) {
+			int w = l * 16;
+			DoubleVector a0 = column(fMatrices1, w, 0);
+			DoubleVector a1 = column(fMatrices1, w, 1);
+			DoubleVector a2 = column(fMatrices1, w, 2);
+			DoubleVector a3 = column(fMatrices1, w, 3);
+			DoubleVector b0 = column(fMatrices2, w, 0);
+			DoubleVector b1 = column(fMatrices2, w, 1);
+			DoubleVector b2 = column(fMatrices2, w, 2);
+			DoubleVector b3 = column(fMatrices2, w, 3);
+
+			for (int k = 0; k < nPatterns; k++) {
+				int state1 = iStates1[k];
+				int state2 = iStates2[k];
+				DoubleVector p;
+				if (state1 < 4 && state2 < 4) {
+					p = select(state1, a0, a1, a2, a3).mul(select(state2, b0, b1, b2, b3));
+				} else if (state1 < 4) {
+					// child 2 has a gap or unknown state so don't use it
+					p = select(state1, a0, a1, a2, a3);
+				} else if (state2 < 4) {
+					// child 1 has a gap or unknown state so don't use it
+					p = select(state2, b0, b1, b2, b3);
+				} else {
+					// both children have a gap or unknown state so set partials to 1
+					p = one;
+				}
+				p.intoArray(fPartials3, v);
+				v += 4;
+			}
+		}
+	}
+
+	/**
+	 * Calculates partial likelihoods at a node when one child has states and one has partials.
+	 */
+	static void statesPartials(int [] iStates1, double [] fMatrices1, double [] fPartials2, double [] fMatrices2,
+			double [] fPartials3, int nPatterns, int nMatrices) {
+		int v = 0;
+		for (int l = 0; l < nMatrices; l++) {
+			int w = l * 16;
+			DoubleVector a0 = column(fMatrices1, w, 0);
+			DoubleVector a1 = column(fMatrices1, w, 1);
+			DoubleVector a2 = column(fMatrices1, w, 2);
+			DoubleVector a3 = column(fMatrices1, w, 3);
+			DoubleVector b0 = column(fMatrices2, w, 0);
+			DoubleVector b1 = column(fMatrices2, w, 1);
+			DoubleVector b2 = column(fMatrices2, w, 2);
+			DoubleVector b3 = column(fMatrices2, w, 3);
+
+			for (int k = 0; k < nPatterns; k++) {
+				DoubleVector sum = b0.mul(fPartials2[v])
+						.add(b1.mul(fPartials2[v + 1]))
+						.add(b2.mul(fPartials2[v + 2]))
+						.add(b3.mul(fPartials2[v + 3]));
+				int state1 = iStates1[k];
+				if (state1 < 4) {
+					sum = sum.mul(select(state1, a0, a1, a2, a3));
+				}
+				sum.intoArray(fPartials3, v);
+				v += 4;
+			}
+		}
+	}
+
+	/**
+	 * Calculates partial likelihoods at a node when both children have partials.
+	 */
+	static void partialsPartials(double [] fPartials1, double [] fMatrices1, double [] fPartials2, double [] fMatrices2,
+			double [] fPartials3, int nPatterns, int nMatrices) {
+		int v = 0;
+		for (int l = 0; l < nMatrices; l++) {
+			int w = l * 16;
+			DoubleVector a0 = column(fMatrices1, w, 0);
+			DoubleVector a1 = column(fMatrices1, w, 1);
+			DoubleVector a2 = column(fMatrices1, w, 2);
+			DoubleVector a3 = column(fMatrices1, w, 3);
+			DoubleVector b0 = column(fMatrices2, w, 0);
+			DoubleVector b1 = column(fMatrices2, w, 1);
+			DoubleVector b2 = column(fMatrices2, w, 2);
+			DoubleVector b3 = column(fMatrices2, w, 3);
+
+			for (int k = 0; k < nPatterns; k++) {
+				DoubleVector sum1 = a0.mul(fPartials1[v])
+						.add(a1.mul(fPartials1[v + 1]))
+						.add(a2.mul(fPartials1[v + 2]))
+						.add(a3.mul(fPartials1[v + 3]));
+				DoubleVector sum2 = b0.mul(fPartials2[v])
+						.add(b1.mul(fPartials2[v + 1]))
+						.add(b2.mul(fPartials2[v + 2]))
+						.add(b3.mul(fPartials2[v + 3]));
+				sum1.mul(sum2).intoArray(fPartials3, v);
+				v += 4;
+			}
+		}
+	}
+
+	/**
+	 * Integrates partials across categories.
+	 * fOutPartials[i] = sum_l fInPartials[l * nSize + i] * fProportions[l]
+	 */
+	static void integratePartials(double [] fInPartials, double [] fProportions, double [] fOutPartials, int nSize, int nMatrices) {
+		int upperBound = SPECIES.loopBound(nSize);
+		int i = 0;
+		for (; i < upperBound; i += SPECIES.length()) {
+			DoubleVector sum = DoubleVector.fromArray(SPECIES, fInPartials, i).mul(fProportions[0]);
+			for (int l = 1; l < nMatrices; l++) {
+				sum = sum.add(DoubleVector.fromArray(SPECIES, fInPartials, l * nSize + i).mul(fProportions[l]));
+			}
+			sum.intoArray(fOutPartials, i);
+		}
+		for (; i < nSize; i++) {
+			double sum = fInPartials[i] * fProportions[0];
+			for (int l = 1; l < nMatrices; l++) {
+				sum += fInPartials[l * nSize + i] * fProportions[l];
+			}
+			fOutPartials[i] = sum;
+		}
+	}
+
+	/**
+	 * Calculates site likelihoods (not logged) at the root,
+	 * fOutLikelihoods[k] = sum_i fFrequencies[i] * fPartials[k * 4 + i]
+	 */
+	static void rootLikelihoods(double [] fPartials, double [] fFrequencies, double [] fOutLikelihoods, int nPatterns) {
+		DoubleVector freqs = DoubleVector.fromArray(SPECIES_4, fFrequencies, 0);
+		int v = 0;
+		for (int k = 0; k < nPatterns; k++) {
+			fOutLikelihoods[k] = DoubleVector.fromArray(SPECIES_4, fPartials, v).mul(freqs).reduceLanes(VectorOperators.ADD);
+			v += 4;
+		}
+	}
+
+	/** multiply all entries in fPartials by fScale **/
+	static void scale(double [] fPartials, double fScale) {
+		int upperBound = SPECIES.loopBound(fPartials.length);
+		int v = 0;
+		for (; v < upperBound; v += SPECIES.length()) {
+			DoubleVector.fromArray(SPECIES, fPartials, v).mul(fScale).intoArray(fPartials, v);
+		}
+		for (; v < fPartials.length; v++) {
+			fPartials[v] *= fScale;
+		}
+	}
+
+} // class VectorKernels4
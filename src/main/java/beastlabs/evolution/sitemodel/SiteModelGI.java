@@ -35,6 +35,7 @@ import beast.base.inference.util.InputUtil;
 import org.apache.commons.statistics.distribution.GammaDistribution;
 
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
@@ -146,8 +147,6 @@ public class SiteModelGI extends SiteModelInterface.Base {
             }
         }
 
-        categoryRates = new double[categoryCount];
-        categoryProportions = new double[categoryCount];
         calculateCategoryRates(null);
         //ratesKnown = false;
     }
@@ -174,15 +173,9 @@ public class SiteModelGI extends SiteModelInterface.Base {
 
     @Override
     public double getRateForCategory(final int category, final Node node) {
-        synchronized (this) {
-            if (!ratesKnown) {
-                calculateCategoryRates(node);
-            }
-        }
-
         //final double mu = (muParameter != null) ? muParameter.getValue() : 1.0;
 
-        return categoryRates[category] * muParameter.getArrayValue();
+        return getRates(node).rates[category] * muParameter.getArrayValue();
     }
 
 
@@ -194,16 +187,21 @@ public class SiteModelGI extends SiteModelInterface.Base {
      */
     @Override
     public double[] getCategoryRates(final Node node) {
-        synchronized (this) {
-            if (!ratesKnown) {
-                calculateCategoryRates(node);
-            }
-        }
+        return getCategoryRates(node, new double[categoryCount]);
+    }
 
+    /**
+     * copy category rates into rates, which avoids allocating a new array on every call
+     *
+     * @param node  typically ignored
+     * @param rates array of at least getCategoryCount() length
+     * @return rates
+     */
+    public double[] getCategoryRates(final Node node, final double[] rates) {
+        final double [] categoryRates = getRates(node).rates;
         final double mu = muParameter.getArrayValue();//(muParameter != null) ? muParameter.getValue() : 1.0;
 
-        final double[] rates = new double[categoryRates.length];
-        for (int i = 0; i < rates.length; i++) {
+        for (int i = 0; i < categoryRates.length; i++) {
             rates[i] = categoryRates[i] * mu;
         }
 
@@ -228,13 +226,7 @@ public class SiteModelGI extends SiteModelInterface.Base {
      */
     @Override
     public double getProportionForCategory(final int category, final Node node) {
-        synchronized (this) {
-            if (!ratesKnown) {
-                calculateCategoryRates(node);
-            }
-        }
-
-        return categoryProportions[category];
+        return getRates(node).proportions[category];
     }
 
     /**
@@ -244,13 +236,42 @@ public class SiteModelGI extends SiteModelInterface.Base {
      */
     @Override
     public double[] getCategoryProportions(final Node node) {
-        synchronized (this) {
-            if (!ratesKnown) {
-                calculateCategoryRates(node);
-            }
-        }
+        return getCategoryProportions(node, new double[categoryCount]);
+    }
+
+    /**
+     * copy category proportions into proportions
+     *
+     * @param node        typically ignored
+     * @param proportions array of at least getCategoryCount() length
+     * @return proportions
+     */
+    public double[] getCategoryProportions(final Node node, final double[] proportions) {
+        final double [] categoryProportions = getRates(node).proportions;
+        System.arraycopy(categoryProportions, 0, proportions, 0, categoryProportions.length);
+        return proportions;
+    }
+
+    /**
+     * @return version of the category rates and proportions, which changes every time they are recalculated,
+     * so callers can tell whether a copy they made is still valid.
+     */
+    public long getRatesVersion() {
+        return getRates(null).version;
+    }
 
-        return categoryProportions;
+    /**
+     * Returns current rates, recalculating them if parameters changed. 
+     * No locking is required: a snapshot is never modified once published, and
+     * threads that find no valid snapshot at the same time calculate identical ones.
+     */
+    protected Rates getRates(final Node node) {
+        Rates current = rates;
+        if (current == null) {
+            calculateCategoryRates(node);
+            current = rates;
+        }
+        return current;
     }
 
     /**
@@ -259,6 +280,8 @@ public class SiteModelGI extends SiteModelInterface.Base {
      * @param node
      */
     protected void calculateCategoryRates(final Node node) {
+        final double[] categoryRates = new double[categoryCount];
+        final double[] categoryProportions = new double[categoryCount];
         double propVariable = 1.0;
         int cat = 0;
 
@@ -312,7 +335,7 @@ public class SiteModelGI extends SiteModelInterface.Base {
         }
 
 
-        ratesKnown = true;
+        rates = new Rates(nextVersion.getAndIncrement(), categoryRates, categoryProportions);
     }
 
 
@@ -327,7 +350,7 @@ public class SiteModelGI extends SiteModelInterface.Base {
     @Override
     public void restore() {
         super.restore();
-        ratesKnown = false;
+        rates = null;
     }
 
     @Override
@@ -338,11 +361,11 @@ public class SiteModelGI extends SiteModelInterface.Base {
             if (shapeParameter != null && InputUtil.isDirty(shapeParameterInput) ||
             		InputUtil.isDirty(muParameterInput) ||
             		InputUtil.isDirty(invarParameterInput)) {
-                ratesKnown = false;
+                rates = null;
             }
         } else {
             if (InputUtil.isDirty(muParameterInput) || !hasPropInvariantCategory && InputUtil.isDirty(invarParameterInput)) {
-                ratesKnown = false;
+                rates = null;
             }
         }
 //    	ratesKnown = false;
@@ -350,13 +373,25 @@ public class SiteModelGI extends SiteModelInterface.Base {
         return true;
     }
 
-    protected boolean ratesKnown;
-
     protected int categoryCount;
 
-    protected double[] categoryRates;
+    /** immutable snapshot of category rates (not multiplied by the mutation rate) and proportions **/
+    protected static final class Rates {
+        final long version;
+        final double[] rates;
+        final double[] proportions;
+
+        Rates(final long version, final double[] rates, final double[] proportions) {
+            this.version = version;
+            this.rates = rates;
+            this.proportions = proportions;
+        }
+    }
+
+    /** current rates, null if they need to be recalculated **/
+    protected volatile Rates rates;
 
-    protected double[] categoryProportions;
+    private final AtomicLong nextVersion = new AtomicLong();
 
 
     /**
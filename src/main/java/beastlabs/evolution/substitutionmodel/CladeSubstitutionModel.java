@@ -1,14 +1,13 @@
 package beastlabs.evolution.substitutionmodel;
 
+import java.io.PrintStream;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
 
 import beast.base.core.Description;
 import beast.base.core.Input;
 import beast.base.core.Input.Validate;
+import beast.base.core.Loggable;
 import beast.base.evolution.alignment.Alignment;
 import beast.base.evolution.alignment.Sequence;
 import beast.base.evolution.alignment.Taxon;
@@ -22,8 +21,9 @@ import beast.base.evolution.tree.Tree;
 
 
 @Description("Substitution model dependent on clades. For each clade a substitution model is specified. " +
-		"For nodes that do not fit in a clade a default substitution model is used.")
-public class CladeSubstitutionModel extends SubstitutionModel.Base {
+		"For nodes that do not fit in a clade a default substitution model is used. " +
+		"When logged, reports the number of topology changes and the number of times a node switched model.")
+public class CladeSubstitutionModel extends SubstitutionModel.Base implements Loggable {
 	public Input<SubstitutionModel> m_default = new Input<SubstitutionModel>("defaultModel","Default substitution model, that is, the model that applies when none of the other do", Validate.REQUIRED);
 	public Input<Tree> m_tree = new Input<Tree>("tree", "tree for which to produce substitution models", Validate.REQUIRED);
 	public Input<List<SubstitutionModel>> m_clademodel = new Input<List<SubstitutionModel>>("cladeModel","substitution model for each of the clades specified", new ArrayList<SubstitutionModel>());
@@ -32,20 +32,29 @@ public class CladeSubstitutionModel extends SubstitutionModel.Base {
 
 	/** contain default model (position 0) and clade models **/
 	SubstitutionModel [] m_substitutionModels;
-	List<Integer>[] m_nLeafNrs;
+	
+	/** number of 64 bit words in a set of clades **/
+	int m_nWords;
+	/** for each node the set of clades that contain all leafs below the node, 
+	 * bit i of word w at position nodeNr * m_nWords + w represents clade number w * 64 + i **/
+	long [] m_nodeClades;
+	long [] m_storedNodeClades;
 	
 	/** maps node to a substitution model **/
 	int [] m_nodeToModelMap;
 	int [] m_storedNodeToModelMap;
-	/** flag to indicate the nodeToModelMap is uptodate **/
-	boolean m_bRecalc;
+
+	/** number of times the topology changed, and number of nodes that switched to another model since **/
+	long m_nTopologyChanges;
+	long m_nModelSwitches;
+	/** flag to indicate a topology change was found while updating the clade index **/
+	boolean m_bTopologyChanged;
 
 	
 	public CladeSubstitutionModel() {
 		frequenciesInput.setRule(Validate.OPTIONAL);
 	}
 	
-	@SuppressWarnings("unchecked")
 	@Override
 	public void initAndValidate(){
     	super.initAndValidate();
@@ -59,13 +68,17 @@ public class CladeSubstitutionModel extends SubstitutionModel.Base {
 			m_substitutionModels[i+1] = m_clademodel.get().get(i);
 		}
 		
-		m_nLeafNrs = new List[m_clademodel.get().size()];
+		int nNodeCount = m_tree.get().getNodeCount();
+		m_nWords = Math.max(1, (m_clades.get().size() + 63) / 64);
+		m_nodeClades = new long[nNodeCount * m_nWords];
+		m_storedNodeClades = new long[nNodeCount * m_nWords];
+		m_nodeToModelMap = new int[nNodeCount];
+		m_storedNodeToModelMap = new int[nNodeCount];
 		
-		// find node numbers for clades
+		// find node numbers for clades, and mark leafs as members of these clades
 		List<Sequence> data = m_taxa.get().sequenceInput.get();
 		for (int i = 0; i < m_clades.get().size(); i++) {
 			List<Taxon> set = m_clades.get().get(i).taxonsetInput.get();
-			m_nLeafNrs[i] = new ArrayList<Integer>();
 			for (Taxon taxon : set) {
 				String sLabel = taxon.getID();
 				int iTaxon = 0;
@@ -75,14 +88,15 @@ public class CladeSubstitutionModel extends SubstitutionModel.Base {
 						throw new IllegalArgumentException("Unknown taxon (" + sLabel + ") in clade number " + (i+1));
 					}
 				}
-				m_nLeafNrs[i].add(iTaxon);
+				m_nodeClades[iTaxon * m_nWords + i / 64] |= 1L << (i % 64);
+				// the last clade a leaf is member of determines its model
+				m_nodeToModelMap[iTaxon] = i + 1;
 			}
 		}
 		
-		m_nodeToModelMap = new int[m_tree.get().getNodeCount()];
-		m_storedNodeToModelMap = new int[m_tree.get().getNodeCount()];
-		calcNodeToModelMap(m_tree.get().getRoot());
-		m_bRecalc = false;
+		updateCladeIndex(m_tree.get().getRoot(), true);
+		m_nTopologyChanges = 0;
+		m_nModelSwitches = 0;
 	} // initAndValidate
 	
     @Override
@@ -92,79 +106,89 @@ public class CladeSubstitutionModel extends SubstitutionModel.Base {
 
     @Override
 	public void getTransitionProbabilities(Node node, double fStartTime, double fEndTime, double fRate, double[] matrix) {
-		if (m_bRecalc) {
-			calcNodeToModelMap(m_tree.get().getRoot());
-			m_bRecalc = false;
-		}
 		int iModel = m_nodeToModelMap[node.getNr()];
 		m_substitutionModels[iModel].getTransitionProbabilities(node, fStartTime, fEndTime, fRate, matrix);
 	} // getTransitionProbabilities
 
-	private void calcNodeToModelMap(Node node) {
-		Arrays.fill(m_nodeToModelMap, 0);
-		// process models one by one
-		int nModelNr = 1;
-		for (List<Integer> nIDs : m_nLeafNrs) {
-			// label leafs
-			for (Integer nID : nIDs) {
-				m_nodeToModelMap[nID] = nModelNr;
-			}
-			labelInternalNodes(nIDs, nModelNr);
-			nModelNr++;
+	/**
+	 * Update clade sets and models of internal nodes below node. The clade set of an internal
+	 * node is the intersection of that of its children, so only nodes that changed topology and
+	 * their ancestors need to be recalculated. A node gets the model of the last clade in its set.
+	 * @return true if the clade set of node changed
+	 */
+	private boolean updateCladeIndex(Node node, boolean bForce) {
+		if (node.isDirty() == Tree.IS_FILTHY) {
+			m_bTopologyChanged = true;
 		}
-	} // calcNodeToModelMap
-	
-	void labelInternalNodes(List<Integer> nIDs, int nModelNr) {
-		Tree tree = m_tree.get();
-		Node [] nodes = tree.getNodesAsArray();
-		// mark all leaf nodes as being part of the clade
-		boolean [] isInClade = new boolean[nodes.length];
-		for (Integer iID : nIDs) {
-			isInClade[iID] = true;
+		if (node.isLeaf()) {
+			// clade membership of leafs does not change
+			return false;
 		}
-		Set<Integer> set = new HashSet<Integer>();
-		set.addAll(nIDs);
-		while (set.size() > 1) {
-			// Find a node in the set that has a parent node with both
-			// children in the clade constructed so far.
-			// If no such node exists, the tree is not monophyletic
-			Integer iNextNode = -1;
-			for (Integer i : set) {
-				Node node = nodes[i];
-				Node parent = node.getParent();
-				if (parent != null && isInClade[parent.getLeft().getNr()] && isInClade[parent.getRight().getNr()]) {
-					iNextNode = i;
-					m_nodeToModelMap[parent.getNr()] = nModelNr;
-					break;
-				}
+		Node left = node.getLeft();
+		Node right = node.getRight();
+		boolean bChildChanged = updateCladeIndex(left, bForce);
+		bChildChanged = updateCladeIndex(right, bForce) || bChildChanged;
+		// a filthy child may have been moved here, possibly a leaf, so the clade set needs to be
+		// recalculated even when that of the child did not change, as in ExperimentalTreeLikelihood.traverse
+		boolean bFilthy = node.isDirty() == Tree.IS_FILTHY ||
+				left.isDirty() == Tree.IS_FILTHY || right.isDirty() == Tree.IS_FILTHY;
+		if (!bForce && !bChildChanged && !bFilthy) {
+			return false;
+		}
+		
+		int iOffset = node.getNr() * m_nWords;
+		int iLeft = left.getNr() * m_nWords;
+		int iRight = right.getNr() * m_nWords;
+		boolean bChanged = false;
+		int iModel = 0;
+		for (int w = 0; w < m_nWords; w++) {
+			long nClades = m_nodeClades[iLeft + w] & m_nodeClades[iRight + w];
+			if (nClades != m_nodeClades[iOffset + w]) {
+				m_nodeClades[iOffset + w] = nClades;
+				bChanged = true;
 			}
-			if (iNextNode >= 0) {
-				// remove children from candidate set, and add parent
-				Node parent = nodes[iNextNode].getParent();
-				isInClade[parent.getNr()] = true;
-				set.add(parent.getNr());
-				set.remove(parent.getLeft().getNr());
-				set.remove(parent.getRight().getNr());
-			} else {
-				// no candidate found; this tree is not monophyletic
-				return;
+			if (nClades != 0) {
+				iModel = w * 64 + 64 - Long.numberOfLeadingZeros(nClades);
 			}
 		}
-	} // labelInternalNodes
+		if (m_nodeToModelMap[node.getNr()] != iModel) {
+			m_nodeToModelMap[node.getNr()] = iModel;
+			m_nModelSwitches++;
+		}
+		return bChanged;
+	} // updateCladeIndex
+	
+	/** number of proposals that changed the topology of the tree **/
+	public long getTopologyChangeCount() {
+		return m_nTopologyChanges;
+	}
+
+	/** number of times a node switched to another substitution model due to a topology change **/
+	public long getModelSwitchCount() {
+		return m_nModelSwitches;
+	}
 	
 	
     /** CalculationNode methods **/
 	@Override
 	public boolean requiresRecalculation() {
+		boolean bRecalc = false;
 		if (m_tree.get().somethingIsDirty()) {
-			m_bRecalc = true;
+			// only topology changes can change the node to model map
+			long nModelSwitches = m_nModelSwitches;
+			m_bTopologyChanged = false;
+			updateCladeIndex(m_tree.get().getRoot(), false);
+			if (m_bTopologyChanged) {
+				m_nTopologyChanges++;
+			}
+			bRecalc = m_nModelSwitches > nModelSwitches;
 		}
 		for (SubstitutionModel model : m_substitutionModels) {
 			if (((SubstitutionModel.Base) model).isDirtyCalculation()) {
 				return true;
 			}
 		}
-		return m_bRecalc;
+		return bRecalc;
 	}
 
 	@Override
@@ -172,16 +196,38 @@ public class CladeSubstitutionModel extends SubstitutionModel.Base {
 		int [] tmp = m_nodeToModelMap;
 		m_nodeToModelMap = m_storedNodeToModelMap;
 		m_storedNodeToModelMap = tmp;
+		long [] tmp2 = m_nodeClades;
+		m_nodeClades = m_storedNodeClades;
+		m_storedNodeClades = tmp2;
 		super.restore();
 	}
 
 	@Override
 	public void store() {
 		System.arraycopy(m_nodeToModelMap, 0, m_storedNodeToModelMap, 0, m_nodeToModelMap.length);
+		System.arraycopy(m_nodeClades, 0, m_storedNodeClades, 0, m_nodeClades.length);
 		super.store();
 	}
 	
 	
+	/** Loggable interface **/
+	@Override
+	public void init(PrintStream out) {
+		String sID = getID() == null ? "cladeModel" : getID();
+		out.append(sID + ".topologyChanges\t" + sID + ".modelSwitches\t");
+	}
+
+	@Override
+	public void log(long sample, PrintStream out) {
+		out.append(m_nTopologyChanges + "\t" + m_nModelSwitches + "\t");
+	}
+
+	@Override
+	public void close(PrintStream out) {
+		// nothing to do
+	}
+	
+	
 	@Override
 	public EigenDecomposition getEigenDecomposition(Node node) {
 		// cannot return EigenDecomposition for this substitution model
@@ -3,6 +3,7 @@ package beastlabs.evolution.substitutionmodel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import beast.base.core.BEASTInterface;
 import beast.base.core.Description;
@@ -24,9 +25,37 @@ public class EpochSubstitutionModel extends Base {
 	public Input<RealVectorParam<? extends Real>> m_epochDates = new Input<>("epochDates","list of threshold dates. " +
 			"The list indicates the dates at which substitution models are switched.", Validate.REQUIRED);
 
+	public Input<Integer> m_cacheSize = new Input<>("cacheSize", "number of rates for which transition matrices are cached for each epoch. "
+			+ "Only epochs that are completely spanned by a branch are cached. Set to 0 to switch off caching, which is required when transition probabilities depend on the node (default 8)", 8);
+
 	/** shadows m_models **/
 	SubstitutionModel [] m_substitutionModels;
 	
+	int m_nStates;
+	
+	/** transition matrix over the full length of an epoch for a given rate.
+	 * Never changed once it is in the cache, so lookups need no lock. **/
+	static class CachedMatrix {
+		final double fRate;
+		final double [] fMatrix;
+		
+		CachedMatrix(double fRate, double [] fMatrix) {
+			this.fRate = fRate;
+			this.fMatrix = fMatrix;
+		}
+	}
+	
+	/** number of cache slots per epoch **/
+	int m_nCacheSize;
+	/** cached matrices, slot i of epoch e at e * m_nCacheSize + i, null if a slot is empty **/
+	AtomicReferenceArray<CachedMatrix> m_cache;
+	/** next slot to be replaced for each epoch, also guards replacement of slots **/
+	int [] m_nextSlot;
+	
+	/** buffers for matrix multiplication: a matrix for the last part of a branch, a matrix product and a column.
+	 * Kept per thread, since threaded tree likelihoods can share a substitution model. **/
+	ThreadLocal<double [][]> m_buffers;
+	
 	@Override
 	public void initAndValidate() {
     	super.initAndValidate();
@@ -48,7 +77,17 @@ public class EpochSubstitutionModel extends Base {
 				throw new IllegalArgumentException("Frequencies should all be the same length ("+stateCount+") but found " + s.getFrequencies().length + " in " + ((BEASTInterface)s).getID());
 			}
 		}
+		if (m_cacheSize.get() < 0) {
+			throw new IllegalArgumentException("cacheSize should be non-negative, not " + m_cacheSize.get());
+		}
 		
+		m_nStates = stateCount;
+		m_nCacheSize = m_cacheSize.get();
+		m_cache = new AtomicReferenceArray<>(m_substitutionModels.length * m_nCacheSize);
+		m_nextSlot = new int[m_substitutionModels.length];
+		clearCache();
+		m_buffers = ThreadLocal.withInitial(() -> new double[][] {
+			new double[stateCount * stateCount], new double[stateCount * stateCount], new double[stateCount]});
 	}
 	
 	@Override
@@ -67,33 +106,63 @@ public class EpochSubstitutionModel extends Base {
 			return;
 		}
 		
-		double [] tmp = new double[matrix.length];
-		Arrays.fill(tmp, 1.0);
+		double [][] fBuffers = m_buffers.get();
+		double [] fTmp = fBuffers[0];
 		m_substitutionModels[iStart].getTransitionProbabilities(node, fStartTime, fEpochDates[iStart-1], fRate, matrix);
 		int iEnd = iStart - 1;
-		int nStates = (int) (Math.sqrt(matrix.length)+0.1) - 1;
 		
 		while (iEnd > 0 && fEpochDates[iEnd- 1] > fEndTime) {
 			// work through epochs that are completely overlapped by the time interval 
-			m_substitutionModels[iEnd].getTransitionProbabilities(node, fEpochDates[iEnd], fEpochDates[iEnd-1], fRate, tmp);
 			// matrix multiplication
-			multiply(matrix, tmp, nStates);
+			multiply(matrix, getEpochTransitionProbabilities(node, iEnd, fEpochDates, fRate, fTmp), m_nStates, fBuffers);
 			iEnd--;
 		}
 
 		// process last bit of the branch
-		m_substitutionModels[iEnd].getTransitionProbabilities(node, fEpochDates[iEnd], fEndTime, fRate, tmp);
+		m_substitutionModels[iEnd].getTransitionProbabilities(node, fEpochDates[iEnd], fEndTime, fRate, fTmp);
 		// matrix multiplication
-		multiply(matrix, tmp, nStates);
+		multiply(matrix, fTmp, m_nStates, fBuffers);
 	}
 
+	/** transition probabilities over the full length of epoch iEpoch, taken from the cache if available.
+	 * Without cache, fTmp is used to hold the matrix. **/
+	double [] getEpochTransitionProbabilities(Node node, int iEpoch, double [] fEpochDates, double fRate, double [] fTmp) {
+		if (m_nCacheSize == 0) {
+			m_substitutionModels[iEpoch].getTransitionProbabilities(node, fEpochDates[iEpoch], fEpochDates[iEpoch-1], fRate, fTmp);
+			return fTmp;
+		}
+		int iOffset = iEpoch * m_nCacheSize;
+		for (int i = 0; i < m_nCacheSize; i++) {
+			CachedMatrix cached = m_cache.get(iOffset + i);
+			if (cached != null && cached.fRate == fRate) {
+				return cached.fMatrix;
+			}
+		}
+		// calculate outside the lock, so other threads can carry on using the cache
+		double [] fMatrix = new double[m_nStates * m_nStates];
+		m_substitutionModels[iEpoch].getTransitionProbabilities(node, fEpochDates[iEpoch], fEpochDates[iEpoch-1], fRate, fMatrix);
+		synchronized (m_nextSlot) {
+			int iSlot = m_nextSlot[iEpoch];
+			m_nextSlot[iEpoch] = (iSlot + 1) % m_nCacheSize;
+			m_cache.set(iOffset + iSlot, new CachedMatrix(fRate, fMatrix));
+		}
+		return fMatrix;
+	}
 	
-	/** matrix multiplication A = A times B **/
-	void multiply(double [] A, double [] B, int n){
-		double [] C = new double[A.length];
-		Arrays.fill(C, 1.0);
-
-		double[] Bcolj = new double[n];
+	void clearCache() {
+		for (int i = 0; i < m_cache.length(); i++) {
+			m_cache.set(i, null);
+		}
+		synchronized (m_nextSlot) {
+			Arrays.fill(m_nextSlot, 0);
+		}
+	}
+	
+	/** matrix multiplication A = A times B, where A and B are n by n matrices stored in the first n*n entries.
+	 * fBuffers[1] and fBuffers[2] hold the product and a column of B. **/
+	static void multiply(double [] A, double [] B, int n, double [][] fBuffers){
+		double [] C = fBuffers[1];
+		double [] Bcolj = fBuffers[2];
 	    for (int j = 0; j < n; j++) {
 	      for (int k = 0; k < n; k++) {
 	        Bcolj[k] = B[k*n+j];
@@ -106,7 +175,20 @@ public class EpochSubstitutionModel extends Base {
 	        C[i*n+j] = s;
 	      }
 	    }
-	    System.arraycopy(C, 0, A, 0, C.length);
+	    System.arraycopy(C, 0, A, 0, n * n);
+	}
+	
+	@Override
+	protected boolean requiresRecalculation() {
+		// epoch dates or one of the substitution models changed
+		clearCache();
+		return super.requiresRecalculation();
+	}
+	
+	@Override
+	protected void restore() {
+		clearCache();
+		super.restore();
 	}
 		
 		
@@ -27,12 +27,17 @@
 package beastlabs.evolution.substitutionmodel;
 
 
+import java.io.PrintStream;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import beast.base.core.Description;
 import beast.base.core.Input;
+import beast.base.core.Loggable;
 import beast.base.spec.domain.PositiveReal;
 import beast.base.spec.type.RealScalar;
+import beast.base.evolution.substitutionmodel.EigenDecomposition;
 import beast.base.evolution.substitutionmodel.GeneralSubstitutionModel;
 import beast.base.evolution.tree.Node;
 import beast.base.util.GammaFunction;
@@ -40,7 +45,7 @@ import beast.base.util.GammaFunction;
 
 
 @Description("Uses a super-relaxed clock model. Note, this should only be used with strict clock models.")
-public class GeneralLazySubstitutionModel extends GeneralSubstitutionModel {
+public class GeneralLazySubstitutionModel extends GeneralSubstitutionModel implements Loggable {
 
 	enum RelaxationMode {
         exponential, gamma, inverse_gamma
@@ -48,23 +53,45 @@ public class GeneralLazySubstitutionModel extends GeneralSubstitutionModel {
     public Input<RelaxationMode> m_modeInput = new Input<RelaxationMode>("mode", "form of the  prior distribution used for relaxation " +
             "This can be " + Arrays.toString(RelaxationMode.values()) + " (default 'exponential')", RelaxationMode.exponential, RelaxationMode.values());
     public Input<RealScalar<? extends PositiveReal>> m_theta = new Input<>("theta", "shape parameter, ignored with exponential prior");
+    public Input<Integer> m_cacheSizeInput = new Input<Integer>("cacheSize", "maximum number of transition probability matrices " +
+    		"kept for reuse while the model parameters do not change (default 1000, 0 for no caching)", 1000);
+    public Input<Double> m_cacheResolutionInput = new Input<Double>("cacheResolution", "if positive, distances are rounded to this " +
+    		"relative precision so that nearby distances share a cached matrix (default 0, only exactly equal distances share)", 0.0);
 
     
     // shadows the input
     RelaxationMode m_relaxationMode = RelaxationMode.exponential;
 
+    /** least recently used cache of transition probability matrices, keyed by (rounded) distance **/
+    Map<Long, double[]> m_matrixCache;
+    /** eigen decomposition the cached matrices were calculated with. A new decomposition is
+     * made every time parameters change, and restore() swaps back the old one, so when 
+     * this differs from eigenDecomposition the cache is out of date **/
+    EigenDecomposition m_cachedDecomposition;
+    double m_fCacheResolution;
+    long m_nCacheHits = 0;
+    long m_nCacheMisses = 0;
 	
 	@Override
     public void initAndValidate() {
 		m_relaxationMode = m_modeInput.get();
 		super.initAndValidate();
+		final int nCacheSize = m_cacheSizeInput.get();
+		if (nCacheSize > 0) {
+			m_matrixCache = new LinkedHashMap<Long, double[]>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<Long, double[]> eldest) {
+					return size() > nCacheSize;
+				}
+			};
+		}
+		m_fCacheResolution = m_cacheResolutionInput.get();
     } // initAndValidate
 
     @Override
     public void getTransitionProbabilities(Node node, double fStartTime, double fEndTime, double fRate, double[] matrix) {
       	double distance = (fStartTime - fEndTime) * fRate;
-        int i, j, k;
-        double temp = 0.0;
 
         // this must be synchronized to avoid being called simultaneously by
         // two different likelihood threads - AJD
@@ -77,6 +104,50 @@ public class GeneralLazySubstitutionModel extends GeneralSubstitutionModel {
             }
         }
 
+        if (m_matrixCache == null) {
+        	calculateTransitionProbabilities(distance, matrix);
+        	return;
+        }
+
+        long nKey;
+        if (m_fCacheResolution > 0) {
+        	// use the distance in the middle of the bin, so the result does not depend on which distance came first
+        	nKey = Math.round(Math.log(distance) / m_fCacheResolution);
+        	distance = Math.exp(nKey * m_fCacheResolution);
+        } else {
+        	nKey = Double.doubleToLongBits(distance);
+        }
+        double [] cached;
+        synchronized (this) {
+        	if (m_cachedDecomposition != eigenDecomposition) {
+        		m_matrixCache.clear();
+        		m_cachedDecomposition = eigenDecomposition;
+        	}
+        	cached = m_matrixCache.get(nKey);
+        	if (cached != null) {
+        		m_nCacheHits++;
+        	} else {
+        		m_nCacheMisses++;
+        	}
+        }
+        if (cached != null) {
+        	System.arraycopy(cached, 0, matrix, 0, cached.length);
+        	return;
+        }
+        calculateTransitionProbabilities(distance, matrix);
+        cached = Arrays.copyOf(matrix, nrOfStates * nrOfStates);
+        synchronized (this) {
+        	if (m_cachedDecomposition == eigenDecomposition) {
+        		m_matrixCache.put(nKey, cached);
+        	}
+        }
+    } // getTransitionProbabilities
+
+    /** calculate transition probabilities for a branch of given distance (time x rate) with the current eigen decomposition **/
+    void calculateTransitionProbabilities(double distance, double[] matrix) {
+        int i, j, k;
+        double temp = 0.0;
+
         // TODO: is the following really necessary?
         // TODO: implemented a pool of iexp matrices to support multiple threads
         // TODO: without creating a new matrix each call. - AJD
@@ -120,7 +191,34 @@ public class GeneralLazySubstitutionModel extends GeneralSubstitutionModel {
                 u++;
             }
         }
-    } // getTransitionProbabilities
+    } // calculateTransitionProbabilities
+
+    /** @return number of transition probability matrices taken from the cache **/
+    public long getCacheHits() {
+    	return m_nCacheHits;
+    }
+
+    /** @return number of transition probability matrices that had to be calculated **/
+    public long getCacheMisses() {
+    	return m_nCacheMisses;
+    }
+
+    /** Loggable implementation **/
+    @Override
+    public void init(PrintStream out) {
+    	String id = getID() == null ? "substModel" : getID();
+    	out.append(id + ".cacheHits\t" + id + ".cacheMisses\t");
+    }
+
+    @Override
+    public void log(long sample, PrintStream out) {
+    	out.append(m_nCacheHits + "\t" + m_nCacheMisses + "\t");
+    }
+
+    @Override
+    public void close(PrintStream out) {
+    	// nothing to do
+    }
     
 
    public static double BesselK(double alpha, double x, //long []nb,
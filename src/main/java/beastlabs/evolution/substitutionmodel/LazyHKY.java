@@ -70,10 +70,7 @@ public final class LazyHKY extends HKY {
 
         final double xx = beta * distance;
         
-        
-        double bbR = Math.exp(xx * A_R);
-        double bbY = Math.exp(xx * A_Y);
-        double aa = Math.exp(xx);
+        double bbR, bbY, aa;
 
         double fTheta = (m_theta.get() == null ? 1.0 : m_theta.get().get());
 
@@ -92,6 +89,11 @@ public final class LazyHKY extends HKY {
 //    		temp = 2.0 * Math.pow(distance * fTheta * Eval[i], (fTheta+1.0)/2.0);
 //    		temp *= BesselK(fTheta + 1.0, 2.0 * Math.sqrt(distance * fTheta * Eval[i]), 1);
 //    		temp *= Math.exp(GammaFunction.lnGamma(fTheta + 1.0));
+    	default:
+    		// not relaxed
+            bbR = Math.exp(xx * A_R);
+            bbY = Math.exp(xx * A_Y);
+            aa = Math.exp(xx);
     		break;
     	}
 
@@ -124,4 +126,78 @@ public final class LazyHKY extends HKY {
         matrix[15] = freqT + t1Taa + (tab2T * bbY);
     } // getTransitionProbabilities
 
+
+    /**
+     * Calculates transition probability matrices for a batch of branches in one pass,
+     * which avoids per branch call overhead when many branches need updating. 
+     * Matrix i is stored in matrices[16*i ... 16*i+15], so matrices should have room for 16 x nCount doubles.
+     * Like the per branch method, this uses no scratch space of its own, so it can be called from
+     * several threads at the same time, as long as the model does not change in the mean time.
+     * 
+     * @param distances branch lengths multiplied by rate
+     * @param nCount number of distances to use
+     * @param matrices buffer the matrices are written to
+     */
+    public void getTransitionProbabilities(double[] distances, int nCount, double[] matrices) {
+        if (updateMatrix) {
+            setupMatrix();
+        }
+        final double fInvTheta = 1.0 / (m_theta.get() == null ? 1.0 : m_theta.get().get());
+
+    	int u = 0;
+    	for (int i = 0; i < nCount; i++) {
+    		final double xx = beta * distances[i];
+    		final double fR, fY, aa;
+    		switch (m_relaxationMode) {
+    		case exponential:
+    			fR = 1.0/(-xx * A_R + 1.0);
+    			fY = 1.0/(-xx * A_Y + 1.0);
+    			aa =  1.0/(-xx + 1.0);
+    			break;
+    		case gamma:
+    			fR = 1.0/Math.pow(-xx * A_R + 1.0, fInvTheta);
+    			fY = 1.0/Math.pow(-xx * A_Y + 1.0, fInvTheta);
+    			aa =  1.0/Math.pow(-xx + 1.0, fInvTheta);
+    			break;
+    		default:
+    			fR = Math.exp(xx * A_R);
+    			fY = Math.exp(xx * A_Y);
+    			aa = Math.exp(xx);
+    			break;
+    		}
+
+    		// the remaining constants only depend on frequencies and kappa
+            final double oneminusa = 1 - aa;
+            final double t1Aaa = (tab1A * aa);
+            final double t1Gaa = (tab1G * aa);
+            final double t1Caa = (tab1C * aa);
+            final double t1Taa = (tab1T * aa);
+            final double fCa = freqC * oneminusa;
+            final double fTa = freqT * oneminusa;
+            final double fAa = freqA * oneminusa;
+            final double fGa = freqG * oneminusa;
+
+            matrices[u     ] = freqA + t1Aaa + (tab2A * fR);
+            matrices[u +  1] = fCa;
+            matrices[u +  2] = freqG + t1Gaa - (tab3G * fR);
+            matrices[u +  3] = fTa;
+
+            matrices[u +  4] = fAa;
+            matrices[u +  5] = freqC + t1Caa + (tab2C * fY);
+            matrices[u +  6] = fGa;
+            matrices[u +  7] = freqT + t1Taa - (tab3T * fY);
+
+            matrices[u +  8] = freqA + t1Aaa - (tab3A * fR);
+            matrices[u +  9] = fCa;
+            matrices[u + 10] = freqG + t1Gaa + (tab2G * fR);
+            matrices[u + 11] = fTa;
+
+            matrices[u + 12] = fAa;
+            matrices[u + 13] = freqC + t1Caa - (tab3C * fY);
+            matrices[u + 14] = fGa;
+            matrices[u + 15] = freqT + t1Taa + (tab2T * fY);
+            u += 16;
+    	}
+    } // getTransitionProbabilities
+
 }
\ No newline at end of file
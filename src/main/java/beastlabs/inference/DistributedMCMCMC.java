@@ -0,0 +1,156 @@
+package beastlabs.inference;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.Socket;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.core.Log;
+import beast.base.inference.MCMC;
+import beast.base.parser.XMLParser;
+import beast.base.parser.XMLProducer;
+import beast.base.util.Randomizer;
+
+@Description("Metropolis-Coupled Markov Chain Monte Carlo where each chain runs in its own process, " +
+		"possibly on different machines. Start one process per chain with the same XML, but with different chainNr " +
+		"(e.g. chainNr=\"$(chain)\" and beast -D chain=0 ... beast -D chain=3) and different seeds. " +
+		"Chains only exchange posteriors and temperatures with a MCMCMCCoordinator, which is started by the first chain, " +
+		"unless startCoordinator=false. States are never exchanged, so each process logs the samples it takes while " +
+		"being the cold chain; together these form the sample of the cold chain.")
+public class DistributedMCMCMC extends MCMC {
+	final static int DEFAULT_PORT = 5123;
+
+	final public Input<Integer> nrOfChainsInput = new Input<>("chains", "total number of chains, in all processes (default 2)", 2);
+	final public Input<Integer> chainNrInput = new Input<>("chainNr", "number of the chain run by this process, from 0 to chains-1", Validate.REQUIRED);
+	final public Input<Integer> resampleEveryInput = new Input<>("resampleEvery", "number of samples in between swapping temperatures", 1000);
+	final public Input<String> heatedMCMCClassInput = new Input<>("heatedMCMCClass", "Name of the class used for heated chains", HeatedMCMC.class.getName());
+	final public Input<String> coordinatorInput = new Input<>("coordinator", "host and port of the coordinator", "localhost:" + DEFAULT_PORT);
+	final public Input<Boolean> startCoordinatorInput = new Input<>("startCoordinator", "start the coordinator in the process running the first chain. " +
+			"Set to false when the coordinator runs stand alone (default true)", true);
+	final public Input<Double> deltaTemperatureInput = new Input<>("deltaTemperature", "difference in temperature between neighbouring chains (default 1.0)", HeatedMCMC.LAMBDA);
+	final public Input<Integer> swapsPerRoundInput = new Input<>("swapsPerRound", "number of swaps between non-overlapping pairs of chains proposed every round (default 1)", 1);
+	final public Input<Integer> connectTimeoutInput = new Input<>("connectTimeout", "number of seconds to keep trying to connect to the coordinator (default 60)", 60);
+
+	int resampleEvery;
+	int chainNr;
+	String host;
+	int port;
+
+	/** chain run by this process **/
+	HeatedMCMC chain;
+
+	@Override
+	public void initAndValidate() {
+		if (nrOfChainsInput.get() < 1) {
+			throw new IllegalArgumentException("chains must be at least 1");
+		}
+		chainNr = chainNrInput.get();
+		if (chainNr < 0 || chainNr >= nrOfChainsInput.get()) {
+			throw new IllegalArgumentException("chainNr must be between 0 and " + (nrOfChainsInput.get() - 1));
+		}
+		resampleEvery = resampleEveryInput.get();
+		String coordinator = coordinatorInput.get();
+		int colon = coordinator.lastIndexOf(':');
+		if (colon < 0) {
+			throw new IllegalArgumentException("coordinator should be of the form host:port, not " + coordinator);
+		}
+		host = coordinator.substring(0, colon);
+		port = Integer.parseInt(coordinator.substring(colon + 1));
+
+		// the chain in this process is an ordinary MCMC, apart from its temperature
+		String sXML = new XMLProducer().toXML(this);
+		for (String input : new String[]{"chains", "chainNr", "resampleEvery", "heatedMCMCClass", "coordinator",
+				"startCoordinator", "deltaTemperature", "swapsPerRound", "connectTimeout"}) {
+			sXML = sXML.replaceAll(input + "=['\"][^ ]*['\"]", "");
+		}
+        String sMCMCMC = this.getClass().getName();
+		while (sMCMCMC.length() > 0) {
+			sXML = sXML.replaceAll("\\b"+DistributedMCMCMC.class.getName()+"\\b", heatedMCMCClassInput.get());
+			if (sMCMCMC.indexOf('.') >= 0) {
+				sMCMCMC = sMCMCMC.substring(sMCMCMC.indexOf('.')+1);
+			} else {
+				sMCMCMC = "";
+			}
+		}
+
+		try {
+			chain = (HeatedMCMC) new XMLParser().parseFragment(sXML, true);
+			chain.setChainNr(chainNr, resampleEvery);
+			chain.setLogOnlyWhenCold(true);
+			chain.setStateFile(stateFileName + "." + chainNr, restoreFromFile);
+			chain.run();
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+		chainLength = chainLengthInput.get();
+	} // initAndValidate
+
+	@Override
+	public void run() throws IOException {
+		Thread coordinatorThread = null;
+		if (chainNr == 0 && startCoordinatorInput.get()) {
+			MCMCMCCoordinator coordinator = new MCMCMCCoordinator(port, nrOfChainsInput.get(), deltaTemperatureInput.get(),
+					swapsPerRoundInput.get(), Randomizer.getSeed());
+			coordinatorThread = new Thread(coordinator, "MCMCMC coordinator");
+			coordinatorThread.setDaemon(true);
+			coordinatorThread.start();
+		}
+
+		try (Socket socket = connect()) {
+			socket.setTcpNoDelay(true);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			out.writeInt(chainNr);
+			out.flush();
+			chain.setTemperature(in.readDouble());
+
+			for (int sampleNr = 0; sampleNr < chainLength; sampleNr += resampleEvery) {
+				try {
+					chain.runTillResample();
+				} catch (Exception e) {
+					throw new IOException(e);
+				}
+				out.writeDouble(chain.getCurrentLogPosterior());
+				out.flush();
+				chain.setTemperature(in.readDouble());
+			}
+		}
+		chain.closeLoggers();
+		if (coordinatorThread != null) {
+			// give the coordinator the chance to report on swaps
+			try {
+				coordinatorThread.join(5000);
+			} catch (InterruptedException e) {
+				// ignore
+			}
+		}
+	} // run
+
+	/** connect to the coordinator, which may not have started yet **/
+	private Socket connect() throws IOException {
+		long deadline = System.currentTimeMillis() + connectTimeoutInput.get() * 1000L;
+		while (true) {
+			try {
+				return new Socket(host, port);
+			} catch (ConnectException e) {
+				if (System.currentTimeMillis() > deadline) {
+					throw new IOException("Could not connect to MCMCMC coordinator at " + host + ":" + port, e);
+				}
+				Log.warning.println("Waiting for MCMCMC coordinator at " + host + ":" + port);
+				try {
+					Thread.sleep(1000);
+				} catch (InterruptedException e1) {
+					// ignore
+				}
+			}
+		}
+	}
+
+} // class DistributedMCMCMC
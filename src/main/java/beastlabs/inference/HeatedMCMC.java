@@ -13,6 +13,7 @@ import beast.base.inference.Distribution;
 import beast.base.inference.Logger;
 import beast.base.inference.MCMC;
 import beast.base.inference.Operator;
+import beast.base.inference.State;
 import beast.base.inference.StateNodeInitialiser;
 import beast.base.core.Log;
 import beast.base.util.Randomizer;
@@ -20,7 +21,7 @@ import beast.base.util.Randomizer;
 @Description("Base class for doing Metropolis coupled MCMC. Each instance represenst a chain at a different temperature.")
 public class HeatedMCMC extends MCMC {
 	
-	// LAMBDA is temperature multiplier
+	// LAMBDA is default temperature multiplier, MCMCMC can override temperatures through setTemperature
 	final static double LAMBDA = 1.0;
 	
 	// temperature on which this chain runs
@@ -32,6 +33,9 @@ public class HeatedMCMC extends MCMC {
 	// keep track of total nr of states sampled, using currentSample
 	protected int currentSample = 0;
 
+	// when set, only log while running at temperature 1
+	protected boolean logOnlyWhenCold = false;
+
 	protected double getCurrentLogLikelihood() {
 		return oldLogLikelihood / temperature;
 	};
@@ -41,6 +45,41 @@ public class HeatedMCMC extends MCMC {
 		this.resampleEvery = resampleEvery;
 	}
 
+	/** unheated posterior of the current state **/
+	protected double getCurrentLogPosterior() {
+		return oldLogLikelihood;
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	public double getTemperature() {
+		return temperature;
+	}
+
+	/** should only be called in between runs of runTillResample **/
+	public void setTemperature(double temperature) {
+		this.temperature = temperature;
+	}
+
+	public void setLogOnlyWhenCold(boolean logOnlyWhenCold) {
+		this.logOnlyWhenCold = logOnlyWhenCold;
+	}
+
+	@Override
+	public void log(long sampleNr) {
+		if (!logOnlyWhenCold || temperature == 1.0) {
+			super.log(sampleNr);
+		}
+	}
+
+	public void closeLoggers() {
+		for (Logger logger : loggers) {
+			logger.close();
+		}
+	}
+
 	protected double calcCurrentLogLikelihoodRobustly() {
 		oldLogLikelihood = robustlyCalcPosterior(posterior);
 		return getCurrentLogLikelihood();
@@ -0,0 +1,99 @@
+package beastlabs.inference;
+
+import java.util.concurrent.BrokenBarrierException;
+
+/**
+ * Particle state pool for particles running as threads in a single JVM.
+ * Resampling is done by the last particle to arrive, after which waiting particles are woken up.
+ */
+public class InMemoryParticlePool extends ParticleStatePool {
+	/** states and associated posteriors as reported by the particles **/
+	final String [] m_sStates;
+	final double [] m_fPosteriors;
+	/** states selected for the particles in the last resampling round, null if a particle keeps its own state.
+	 * Kept separate from m_sStates, so particles can report their next state while others are still picking up theirs. **/
+	final String [] m_sNewStates;
+	/** nr of completed rounds, and nr of particles that arrived in the current round **/
+	int m_nGeneration;
+	int m_nArrived;
+	boolean m_bAborted;
+
+	public InMemoryParticlePool(int nParticles) {
+		m_sStates = new String[nParticles];
+		m_fPosteriors = new double[nParticles];
+		m_sNewStates = new String[nParticles];
+	}
+
+	@Override
+	synchronized public String exchange(int iParticle, String sState, double fPosterior) throws Exception {
+		if (m_bAborted) {
+			throw new BrokenBarrierException("Another particle failed");
+		}
+		m_sStates[iParticle] = sState;
+		m_fPosteriors[iParticle] = fPosterior;
+		int nGeneration = m_nGeneration;
+		if (++m_nArrived == m_sStates.length) {
+			resampleAll();
+			m_nArrived = 0;
+			m_nGeneration++;
+			notifyAll();
+		} else {
+			while (m_nGeneration == nGeneration && !m_bAborted) {
+				wait();
+			}
+			if (m_nGeneration == nGeneration) {
+				throw new BrokenBarrierException("Another particle failed");
+			}
+		}
+		return m_sNewStates[iParticle];
+	}
+
+	@Override
+	synchronized public void abort() {
+		m_bAborted = true;
+		notifyAll();
+	}
+
+	private void resampleAll() {
+		int [] iSource = resample(m_fPosteriors);
+		for (int i = 0; i < iSource.length; i++) {
+			m_sNewStates[i] = iSource[i] == i ? null : m_sStates[iSource[i]];
+		}
+	}
+
+	/**
+	 * Store state and posterior of a particle, and resample only this particle if its posterior
+	 * is more than fThreshold below the best posterior, without waiting for other particles.
+	 * @return new state for the particle, or null if it keeps its own state
+	 */
+	synchronized public String exchangeAsync(int iParticle, String sState, double fPosterior, double fThreshold) {
+		m_sStates[iParticle] = sState;
+		m_fPosteriors[iParticle] = fPosterior;
+		double fMax = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < m_sStates.length; i++) {
+			if (m_sStates[i] != null) {
+				fMax = Math.max(fMax, m_fPosteriors[i]);
+			}
+		}
+		if (fMax - fPosterior <= fThreshold) {
+			return null;
+		}
+		// only sample from particles that reported a state
+		double [] fWeights = new double[m_sStates.length];
+		double fSum = 0;
+		for (int i = 0; i < m_sStates.length; i++) {
+			if (m_sStates[i] != null) {
+				fWeights[i] = Math.exp(m_fPosteriors[i] - fMax);
+				fSum += fWeights[i];
+			}
+		}
+		int iNewState = sample(fWeights, fSum);
+		if (iNewState == iParticle || m_sStates[iNewState] == null) {
+			return null;
+		}
+		System.out.println("Updating particle " + iParticle + " with state of particle " + iNewState);
+		m_sStates[iParticle] = m_sStates[iNewState];
+		m_fPosteriors[iParticle] = m_fPosteriors[iNewState];
+		return m_sStates[iNewState];
+	}
+}
@@ -16,7 +16,10 @@ import beast.base.parser.XMLProducer;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
 
 // Altekar G, Dwarkadas S, Huelsenbeck J and Ronquist F (2004). 
 // Parallel Metropolis Coupled Markov Chain Monte Carlo For Bayesian Phylogenetic Inference.
@@ -35,10 +38,22 @@ import java.util.List;
 		"Furthermore, the log and tree log should have the same sample frequency.")
 @Deprecated(since="Use the CoupledMCMC package instead https://github.com/nicfel/CoupledMCMC")
 public class MCMCMC extends MCMC {
+	public enum SwapMode {state, temperature}
+	
 	public Input<Integer> nrOfChainsInput = new Input<Integer>("chains", " number of chains to run in parallel (default 2)", 2);
 	public Input<Integer> resampleEveryInput = new Input<Integer>("resampleEvery", "number of samples in between resampling (and possibly swappping) states", 1000);
 	public Input<String> heatedMCMCClassInput = new Input<String>("heatedMCMCClass", "Name of the class used for heated chains", HeatedMCMC.class.getName());
 	public Input<String> tempDirInput = new Input<>("tempDir","directory where temporary files are written","/tmp/");
+	public Input<Integer> swapsPerRoundInput = new Input<>("swapsPerRound", "number of swaps proposed after every resampleEvery samples. " +
+			"Swaps are between non-overlapping pairs of chains, so at most half the number of chains (default 1)", 1);
+	public Input<SwapMode> swapModeInput = new Input<>("swapMode", "what is exchanged when a swap is accepted: 'state' copies states between chains, " +
+			"'temperature' exchanges temperatures between chains, and only copies states when the cold chain is involved, " +
+			"since the first chain does the logging (default state)", SwapMode.state, SwapMode.values());
+	public Input<Double> deltaTemperatureInput = new Input<>("deltaTemperature", "initial difference in temperature between neighbouring chains (default 1.0)", HeatedMCMC.LAMBDA);
+	public Input<Long> adaptLadderForInput = new Input<>("adaptLadderFor", "number of samples, typically the burn-in, during which the spacing between " +
+			"neighbouring temperatures is tuned towards the target swap acceptance rate. While tuning, swaps are only proposed between neighbouring temperatures. " +
+			"If 0, temperatures remain fixed (default 0)", 0L);
+	public Input<Double> targetSwapAcceptanceInput = new Input<>("targetSwapAcceptance", "target acceptance rate for swaps between neighbouring temperatures, used when adapting the temperature ladder (default 0.234)", 0.234);
 	
 	// nr of samples between re-arranging states
 	int resampleEvery = 10;
@@ -46,8 +61,16 @@ public class MCMCMC extends MCMC {
 	
 	/** plugins representing MCMC with model, loggers, etc **/
 	HeatedMCMC [] chains;
-	/** threads for running MCMC chains **/
+	/** threads for running MCMC chains, one per chain for the whole run **/
 	Thread [] threads;
+	/** synchronises chain threads with the main thread at start and end of every round **/
+	CyclicBarrier barrier;
+	/** thread running the rounds and swaps, interrupted when a chain fails **/
+	Thread mainThread;
+	/** first exception thrown by a chain, which stops the run **/
+	volatile Throwable chainFailure;
+	/** nr of times chains run for resampleEvery samples **/
+	long roundCount;
 	/** keep track of time taken between logs to estimate speed **/
     long startLogTime;
 
@@ -56,6 +79,27 @@ public class MCMCMC extends MCMC {
 
 	List<StateNode> tmpStateNodes;
 
+	/** nr of swaps proposed per round **/
+	int swapsPerRound;
+	/** temperature levels in random order; pairs (0,1), (2,3), ... are proposed for swapping **/
+	int [] swapOrder;
+	SwapMode swapMode;
+	/** chain number running at each temperature level, level 0 being the cold chain. 
+	 * Only changes when temperatures are swapped. **/
+	int [] chainAtLevel;
+	
+	/** nr of samples during which the temperature ladder adapts **/
+	long adaptLadderFor;
+	double targetSwapAcceptance;
+	/** log of difference in temperature between level i and i+1 **/
+	double [] logSpacing;
+	/** neighbouring level pairs (i,i+1) in random order, identified by i **/
+	int [] pairOrder;
+	/** nr of swaps proposed and accepted between temperature levels i < j **/
+	long [][] swapsProposed;
+	long [][] swapsAccepted;
+	int successfullSwaps, successfullSwaps0;
+
 	@Override
 	public void initAndValidate() {
 		Log.warning("This class is deprecated");
@@ -71,6 +115,24 @@ public class MCMCMC extends MCMC {
 		chains = new HeatedMCMC[nrOfChainsInput.get()];
 		
 		resampleEvery = resampleEveryInput.get();
+		swapsPerRound = swapsPerRoundInput.get();
+		if (swapsPerRound < 1) {
+			throw new IllegalArgumentException("swapsPerRound must be at least 1");
+		}
+		if (deltaTemperatureInput.get() <= 0) {
+			throw new IllegalArgumentException("deltaTemperature must be positive");
+		}
+		adaptLadderFor = adaptLadderForInput.get();
+		targetSwapAcceptance = targetSwapAcceptanceInput.get();
+		if (targetSwapAcceptance <= 0 || targetSwapAcceptance >= 1) {
+			throw new IllegalArgumentException("targetSwapAcceptance must be between 0 and 1 (exclusive)");
+		}
+		if (swapsPerRound > chains.length / 2) {
+			if (chains.length > 1) {
+				Log.warning.println("Warning: swapsPerRound=" + swapsPerRound + " but only " + chains.length / 2 + " non-overlapping pairs of chains exist. Using " + chains.length / 2 + " swaps per round.");
+			}
+			swapsPerRound = chains.length / 2;
+		}
 
 		// the difference between the various chains is
 		// 1. it runs an MCMC, not a  MultiplMCMC
@@ -81,6 +143,11 @@ public class MCMCMC extends MCMC {
 		sXML = sXML.replaceAll("chains=['\"][^ ]*['\"]", "");
 		sXML = sXML.replaceAll("heatedMCMCClass=['\"][^ ]*['\"]", "");
 		sXML = sXML.replaceAll("resampleEvery=['\"][^ ]*['\"]", "");
+		sXML = sXML.replaceAll("swapsPerRound=['\"][^ ]*['\"]", "");
+		sXML = sXML.replaceAll("swapMode=['\"][^ ]*['\"]", "");
+		sXML = sXML.replaceAll("deltaTemperature=['\"][^ ]*['\"]", "");
+		sXML = sXML.replaceAll("adaptLadderFor=['\"][^ ]*['\"]", "");
+		sXML = sXML.replaceAll("targetSwapAcceptance=['\"][^ ]*['\"]", "");
 		
         String sMCMCMC = this.getClass().getName();
 		while (sMCMCMC.length() > 0) {
@@ -111,6 +178,7 @@ public class MCMCMC extends MCMC {
 					chains[i].loggersInput.get().clear();
 				}
 				chains[i].setChainNr(i, resampleEvery);
+				chains[i].setTemperature(1 + i * deltaTemperatureInput.get());
 				chains[i].setStateFile(stateFileName + "." +i, restoreFromFile);
 			
 				chains[i].run();
@@ -130,6 +198,18 @@ public class MCMCMC extends MCMC {
 
 		chainLength = chainLengthInput.get();
 		finishTimes = new long[chains.length];
+		swapMode = swapModeInput.get();
+		swapOrder = new int[chains.length];
+		chainAtLevel = new int[chains.length];
+		for (int i = 0; i < chains.length; i++) {
+			swapOrder[i] = i;
+			chainAtLevel[i] = i;
+		}
+		logSpacing = new double[Math.max(chains.length - 1, 0)];
+		Arrays.fill(logSpacing, Math.log(deltaTemperatureInput.get()));
+		pairOrder = new int[chains.length / 2];
+		swapsProposed = new long[chains.length][chains.length];
+		swapsAccepted = new long[chains.length][chains.length];
 	} // initAndValidate
 	
 	
@@ -137,13 +217,41 @@ public class MCMCMC extends MCMC {
 	class HeatedChainThread extends Thread {
 		final int chainNr;
 		HeatedChainThread(int chainNr) {
+			super("MCMCMC chain " + chainNr);
 			this.chainNr = chainNr;
+			setDaemon(true);
 		}
 		public void run() {
 			try {
-				finishTimes[chainNr] = chains[chainNr].runTillResample();
-			} catch (Exception e) {
-				e.printStackTrace();
+				for (long round = 0; round < roundCount; round++) {
+					// wait till swaps of the previous round are done
+					barrier.await();
+					finishTimes[chainNr] = chains[chainNr].runTillResample();
+					barrier.await();
+				}
+			} catch (InterruptedException | BrokenBarrierException e) {
+				// another chain failed, and the main thread stops the run
+			} catch (Throwable e) {
+				boolean isFirst;
+				synchronized (MCMCMC.this) {
+					isFirst = chainFailure == null;
+					if (isFirst) {
+						chainFailure = e;
+					}
+				}
+				if (isFirst) {
+					// the interrupt reaches the main thread even if it is not waiting at the barrier yet,
+					// while the reset releases it if it is
+					mainThread.interrupt();
+					barrier.reset();
+				}
+				if (e instanceof RuntimeException) {
+					throw (RuntimeException) e;
+				}
+				if (e instanceof Error) {
+					throw (Error) e;
+				}
+				throw new RuntimeException(e);
 			}
 		}
 	}
@@ -151,76 +259,63 @@ public class MCMCMC extends MCMC {
 	@Override 
 	public void run() throws IOException {
 		
-		int successfullSwaps = 0, successfullSwaps0 = 0;
+		successfullSwaps = 0;
+		successfullSwaps0 = 0;
 //		for (HeatedMCMC chain:m_chains) {
 //			chain.startStateInput.get().setEverythingDirty(true);
 //		}
-		for (int sampleNr = 0; sampleNr < chainLength; sampleNr += resampleEvery) {
-			long startTime = System.currentTimeMillis();
-			
-			// start threads with individual chains here.
-			threads = new Thread[chains.length];
-			
-			for (int k = 0; k < chains.length; k++) {
-				threads[k] = new HeatedChainThread(k);
-				threads[k].start();
-			}
+		roundCount = (chainLength + resampleEvery - 1) / resampleEvery;
+		barrier = new CyclicBarrier(chains.length + 1);
+		mainThread = Thread.currentThread();
+		chainFailure = null;
 
-			// wait for the chains to finish
-	        startLogTime = System.currentTimeMillis();
-			for (Thread thread : threads) {
-				try {
-					thread.join();
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
-			}
-			
-			if (chains.length > 1) {
-				// resample state
-				int i = Randomizer.nextInt(chains.length);
-				int j = i;
-				while (i == j) {
-					j = Randomizer.nextInt(chains.length);
-				}
-				if (i > j) {
-					int tmp = i; i = j; j = tmp;
-				}
-				
+		// start threads with individual chains here.
+		// these run till the end, and wait for swaps between rounds
+		threads = new Thread[chains.length];
+		for (int k = 0; k < chains.length; k++) {
+			threads[k] = new HeatedChainThread(k);
+			threads[k].start();
+		}
+
+		try {
+			for (long round = 0; round < roundCount; round++) {
+				long startTime = System.currentTimeMillis();
 				
-				double p1before = chains[i].getCurrentLogLikelihood();
-				double p2before = chains[j].getCurrentLogLikelihood();
-				swapStates(chains[i], chains[j]);
-				double p1after = chains[i].calcCurrentLogLikelihoodRobustly();
-				double p2after = chains[j].calcCurrentLogLikelihoodRobustly();
+				// let chains run
+		        startLogTime = System.currentTimeMillis();
+				awaitBarrier();
+				// wait for the chains to finish
+				awaitBarrier();
 				
-				double logAlpha = p1after - p1before + p2after - p2before;
-				System.err.println(successfullSwaps0 + " " + successfullSwaps + ": " + i + " <--> " + j + ": " + logAlpha);
-				if (Math.exp(logAlpha) < Randomizer.nextDouble()) {
-					// swap fails
-					//assignState(chains[i], chains[j]);
-					swapStates(chains[i], chains[j]);
-					chains[i].calcCurrentLogLikelihoodRobustly();
-					chains[j].calcCurrentLogLikelihoodRobustly();
-				} else {
-					successfullSwaps++;
-					if (i == 0) {
-						successfullSwaps0++;
+				if (chains.length > 1) {
+					proposeSwaps(round);
+					
+					// tuning
+					for (int k = 1; k < chains.length; k++) {
+						chains[k].optimiseRunTime(startTime, finishTimes[k], finishTimes[0]);
 					}
-					System.err.print(i + " <--> " + j);
-					//assignState(chains[j], chains[i]);
-					//chains[j].calcCurrentLogLikelihoodRobustly();
-				}
-				
-				// tuning
-				for (int k = 1; k < chains.length; k++) {
-					chains[k].optimiseRunTime(startTime, finishTimes[k], finishTimes[0]);
 				}
 			}
+		} catch (RuntimeException | Error e) {
+			stopChains();
+			if (chainFailure != null) {
+				throw new RuntimeException("MCMCMC chain failed: " + chainFailure.getMessage(), chainFailure);
+			}
+			throw e;
+		}
+		for (Thread thread : threads) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
 		}
 
 		System.err.println("#Successfull swaps = " + successfullSwaps);
 		System.err.println("#Successfull swaps with cold chain = " + successfullSwaps0);
+		if (chains.length > 1) {
+			reportLadder("Temperature ladder at end of run");
+		}
 		// wait 5 seconds for the log to complete
 		try {
 			Thread.sleep(5000);
@@ -229,6 +324,185 @@ public class MCMCMC extends MCMC {
 		}
 	} // run
 	
+	private void awaitBarrier() {
+		try {
+			barrier.await();
+		} catch (InterruptedException | BrokenBarrierException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/** stops all chain threads after a failure, and waits till they are done **/
+	private void stopChains() {
+		for (Thread thread : threads) {
+			// chains still running a round find out when they reach the barrier
+			thread.interrupt();
+		}
+		barrier.reset();
+		for (Thread thread : threads) {
+			while (thread.isAlive()) {
+				try {
+					thread.join();
+				} catch (InterruptedException e) {
+					// interrupted by a failing chain, which is already recorded
+				}
+			}
+		}
+		Thread.interrupted();
+	}
+	
+	/** propose swaps between swapsPerRound randomly selected non-overlapping pairs of temperature levels.
+	 * While the ladder adapts, only neighbouring levels are paired. **/
+	void proposeSwaps(long round) {
+		boolean adapting = (round + 1) * resampleEvery <= adaptLadderFor;
+		if (adapting) {
+			// pairs (i,i+1) with i all odd or all even do not overlap
+			int first = Randomizer.nextInt(2);
+			int pairCount = (chains.length - first) / 2;
+			for (int k = 0; k < pairCount; k++) {
+				pairOrder[k] = first + 2 * k;
+			}
+			for (int k = pairCount - 1; k > 0; k--) {
+				int m = Randomizer.nextInt(k + 1);
+				int tmp = pairOrder[k]; pairOrder[k] = pairOrder[m]; pairOrder[m] = tmp;
+			}
+			for (int k = 0; k < Math.min(swapsPerRound, pairCount); k++) {
+				int i = pairOrder[k];
+				boolean accepted = proposeSwap(i, i + 1);
+				adaptSpacing(i, accepted);
+			}
+			if ((round + 2) * resampleEvery > adaptLadderFor) {
+				reportLadder("Temperature ladder after adaptation");
+			}
+			return;
+		}
+		
+		for (int k = swapOrder.length - 1; k > 0; k--) {
+			int m = Randomizer.nextInt(k + 1);
+			int tmp = swapOrder[k]; swapOrder[k] = swapOrder[m]; swapOrder[m] = tmp;
+		}
+		for (int k = 0; k < swapsPerRound; k++) {
+			int i = swapOrder[2 * k];
+			int j = swapOrder[2 * k + 1];
+			if (i > j) {
+				int tmp = i; i = j; j = tmp;
+			}
+			proposeSwap(i, j);
+		}
+	}
+	
+	/** propose swap between temperature levels i < j and keep track of acceptance **/
+	boolean proposeSwap(int i, int j) {
+		boolean accepted = swapMode == SwapMode.temperature ? trySwapTemperatures(i, j) : trySwap(i, j);
+		swapsProposed[i][j]++;
+		if (accepted) {
+			swapsAccepted[i][j]++;
+		}
+		return accepted;
+	}
+	
+	/** Robbins-Monro update of spacing between levels i and i+1: widen if swaps are accepted 
+	 * more often than targetSwapAcceptance, narrow otherwise. The cold chain stays at temperature 1. **/
+	void adaptSpacing(int i, boolean accepted) {
+		double gain = 1.0 / Math.pow(swapsProposed[i][i + 1], 0.6);
+		logSpacing[i] += gain * ((accepted ? 1.0 : 0.0) - targetSwapAcceptance);
+		double temperature = 1.0;
+		for (int level = 0; level < chains.length; level++) {
+			chains[chainAtLevel[level]].setTemperature(temperature);
+			if (level < logSpacing.length) {
+				temperature += Math.exp(logSpacing[level]);
+			}
+		}
+	}
+	
+	void reportLadder(String header) {
+		Log.info.println(header);
+		Log.info.println(String.format("%6s %12s %10s %10s %10s", "level", "temperature", "proposed", "accepted", "rate"));
+		for (int level = 0; level < chains.length; level++) {
+			double temperature = chains[chainAtLevel[level]].getTemperature();
+			if (level + 1 < chains.length) {
+				long proposed = swapsProposed[level][level + 1];
+				long accepted = swapsAccepted[level][level + 1];
+				Log.info.println(String.format("%6d %12.4f %10d %10d %10.4f", level, temperature, proposed, accepted, 
+						proposed > 0 ? (double) accepted / proposed : 0.0));
+			} else {
+				Log.info.println(String.format("%6d %12.4f", level, temperature));
+			}
+		}
+	}
+	
+	public long getSwapsProposed(int level1, int level2) {
+		return swapsProposed[level1][level2];
+	}
+
+	public long getSwapsAccepted(int level1, int level2) {
+		return swapsAccepted[level1][level2];
+	}
+	
+	/** propose to swap temperatures of chains at temperature levels i and j, where i < j.
+	 * The acceptance ratio follows from the current posteriors, so no recalculation is required. **/
+	boolean trySwapTemperatures(int i, int j) {
+		HeatedMCMC chainI = chains[chainAtLevel[i]];
+		HeatedMCMC chainJ = chains[chainAtLevel[j]];
+		double logPI = chainI.getCurrentLogPosterior();
+		double logPJ = chainJ.getCurrentLogPosterior();
+		double tempI = chainI.getTemperature();
+		double tempJ = chainJ.getTemperature();
+		
+		double logAlpha = logPI / tempJ + logPJ / tempI - logPI / tempI - logPJ / tempJ;
+		if (Math.exp(logAlpha) < Randomizer.nextDouble()) {
+			// swap fails
+			return false;
+		}
+		successfullSwaps++;
+		if (i == 0) {
+			// loggers only exist in the first chain, so it has to remain the cold chain:
+			// swap states instead of temperatures
+			successfullSwaps0++;
+			swapStates(chainI, chainJ);
+			chainI.calcCurrentLogLikelihoodRobustly();
+			chainJ.calcCurrentLogLikelihoodRobustly();
+		} else {
+			chainI.setTemperature(tempJ);
+			chainJ.setTemperature(tempI);
+			int tmp = chainAtLevel[i]; chainAtLevel[i] = chainAtLevel[j]; chainAtLevel[j] = tmp;
+		}
+		return true;
+	}
+	
+	/** @return chain number running at temperature level, 0 being the cold chain **/
+	public int getChainAtLevel(int level) {
+		return chainAtLevel[level];
+	}
+	
+	/** propose to swap states of chains i and j, where i < j **/
+	boolean trySwap(int i, int j) {
+		double p1before = chains[i].getCurrentLogLikelihood();
+		double p2before = chains[j].getCurrentLogLikelihood();
+		swapStates(chains[i], chains[j]);
+		double p1after = chains[i].calcCurrentLogLikelihoodRobustly();
+		double p2after = chains[j].calcCurrentLogLikelihoodRobustly();
+		
+		double logAlpha = p1after - p1before + p2after - p2before;
+		System.err.println(successfullSwaps0 + " " + successfullSwaps + ": " + i + " <--> " + j + ": " + logAlpha);
+		if (Math.exp(logAlpha) < Randomizer.nextDouble()) {
+			// swap fails
+			//assignState(chains[i], chains[j]);
+			swapStates(chains[i], chains[j]);
+			chains[i].calcCurrentLogLikelihoodRobustly();
+			chains[j].calcCurrentLogLikelihoodRobustly();
+			return false;
+		}
+		successfullSwaps++;
+		if (i == 0) {
+			successfullSwaps0++;
+		}
+		System.err.print(i + " <--> " + j);
+		//assignState(chains[j], chains[i]);
+		//chains[j].calcCurrentLogLikelihoodRobustly();
+		return true;
+	}
+	
 	private void assignState(HeatedMCMC mcmc1, HeatedMCMC mcmc2) {
 		State state1 = mcmc1.startStateInput.get();
 		State state2 = mcmc2.startStateInput.get();
@@ -0,0 +1,208 @@
+package beastlabs.inference;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import beast.base.core.Log;
+
+/**
+ * Coordinates swaps between chains of a DistributedMCMCMC, each running in its own process.
+ * Chains connect over TCP and only exchange posteriors and temperatures:
+ * a chain sends its nr once after connecting and gets its initial temperature;
+ * then, after every resampleEvery samples, it sends its (unheated) log posterior
+ * and gets the temperature to run the next round at.
+ * The coordinator stops when the chains disconnect.
+ * With port 0 a free port is picked, which getLocalPort returns once the coordinator runs.
+ *
+ * Can be started stand alone with
+ * java beastlabs.inference.MCMCMCCoordinator -port 5123 -chains 4 [-deltaTemperature 1.0] [-swapsPerRound 1] [-seed 127]
+ * or by the first chain of a DistributedMCMCMC.
+ */
+public class MCMCMCCoordinator implements Runnable {
+	final int port;
+	final int chainCount;
+	final double deltaTemperature;
+	final int swapsPerRound;
+	final Random random;
+
+	/** temperature of each chain **/
+	double [] temperature;
+	/** chain number running at each temperature level, level 0 being the cold chain **/
+	int [] chainAtLevel;
+	/** temperature levels in random order; pairs (0,1), (2,3), ... are proposed for swapping **/
+	int [] swapOrder;
+	/** nr of swaps proposed and accepted between temperature levels i < j **/
+	long [][] swapsProposed;
+	long [][] swapsAccepted;
+	long roundCount;
+
+	/** port actually listened on, which differs from port when port is 0 and the system picks a free one **/
+	volatile int localPort = -1;
+	final CountDownLatch listening = new CountDownLatch(1);
+
+	public MCMCMCCoordinator(int port, int chainCount, double deltaTemperature, int swapsPerRound, long seed) {
+		if (chainCount < 1) {
+			throw new IllegalArgumentException("chains must be at least 1");
+		}
+		this.port = port;
+		this.chainCount = chainCount;
+		this.deltaTemperature = deltaTemperature;
+		this.swapsPerRound = Math.min(swapsPerRound, chainCount / 2);
+		this.random = new Random(seed);
+
+		temperature = new double[chainCount];
+		chainAtLevel = new int[chainCount];
+		swapOrder = new int[chainCount];
+		for (int i = 0; i < chainCount; i++) {
+			temperature[i] = 1 + i * deltaTemperature;
+			chainAtLevel[i] = i;
+			swapOrder[i] = i;
+		}
+		swapsProposed = new long[chainCount][chainCount];
+		swapsAccepted = new long[chainCount][chainCount];
+	}
+
+	@Override
+	public void run() {
+		Socket [] sockets = new Socket[chainCount];
+		DataInputStream [] in = new DataInputStream[chainCount];
+		DataOutputStream [] out = new DataOutputStream[chainCount];
+		try (ServerSocket server = new ServerSocket(port)) {
+			localPort = server.getLocalPort();
+			listening.countDown();
+			Log.info.println("MCMCMC coordinator waiting for " + chainCount + " chains on port " + localPort);
+			for (int k = 0; k < chainCount; k++) {
+				Socket socket = server.accept();
+				socket.setTcpNoDelay(true);
+				DataInputStream din = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+				int chainNr = din.readInt();
+				if (chainNr < 0 || chainNr >= chainCount || sockets[chainNr] != null) {
+					socket.close();
+					throw new IOException("Unexpected chain nr " + chainNr + ": expected a unique number from 0 to " + (chainCount - 1));
+				}
+				sockets[chainNr] = socket;
+				in[chainNr] = din;
+				out[chainNr] = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			}
+			sendTemperatures(out);
+
+			double [] logP = new double[chainCount];
+			while (true) {
+				try {
+					for (int i = 0; i < chainCount; i++) {
+						logP[i] = in[i].readDouble();
+					}
+				} catch (EOFException e) {
+					// chains are done
+					break;
+				}
+				roundCount++;
+				proposeSwaps(logP);
+				sendTemperatures(out);
+			}
+			report();
+		} catch (IOException e) {
+			Log.err.println("MCMCMC coordinator failed: " + e.getMessage());
+		} finally {
+			// do not leave callers of getLocalPort waiting when the server socket could not be opened
+			listening.countDown();
+			for (Socket socket : sockets) {
+				if (socket != null) {
+					try {
+						socket.close();
+					} catch (IOException e) {
+						// ignore
+					}
+				}
+			}
+		}
+	}
+
+	/** waits till the coordinator listens, and returns its port, or -1 if it failed to open it **/
+	public int getLocalPort() throws InterruptedException {
+		listening.await();
+		return localPort;
+	}
+
+	private void sendTemperatures(DataOutputStream [] out) throws IOException {
+		for (int i = 0; i < chainCount; i++) {
+			out[i].writeDouble(temperature[i]);
+			out[i].flush();
+		}
+	}
+
+	/** propose swapsPerRound temperature swaps between randomly selected non-overlapping pairs of temperature levels **/
+	void proposeSwaps(double [] logP) {
+		for (int k = swapOrder.length - 1; k > 0; k--) {
+			int m = random.nextInt(k + 1);
+			int tmp = swapOrder[k]; swapOrder[k] = swapOrder[m]; swapOrder[m] = tmp;
+		}
+		for (int k = 0; k < swapsPerRound; k++) {
+			int i = swapOrder[2 * k];
+			int j = swapOrder[2 * k + 1];
+			if (i > j) {
+				int tmp = i; i = j; j = tmp;
+			}
+			int chainI = chainAtLevel[i];
+			int chainJ = chainAtLevel[j];
+			double tempI = temperature[chainI];
+			double tempJ = temperature[chainJ];
+			double logAlpha = logP[chainI] / tempJ + logP[chainJ] / tempI - logP[chainI] / tempI - logP[chainJ] / tempJ;
+			swapsProposed[i][j]++;
+			if (Math.exp(logAlpha) >= random.nextDouble()) {
+				swapsAccepted[i][j]++;
+				temperature[chainI] = tempJ;
+				temperature[chainJ] = tempI;
+				chainAtLevel[i] = chainJ;
+				chainAtLevel[j] = chainI;
+			}
+		}
+	}
+
+	void report() {
+		long proposed = 0, accepted = 0, accepted0 = 0;
+		for (int i = 0; i < chainCount; i++) {
+			for (int j = i + 1; j < chainCount; j++) {
+				proposed += swapsProposed[i][j];
+				accepted += swapsAccepted[i][j];
+				if (i == 0) {
+					accepted0 += swapsAccepted[i][j];
+				}
+			}
+		}
+		Log.info.println("MCMCMC coordinator finished after " + roundCount + " rounds");
+		Log.info.println("#Swaps proposed = " + proposed);
+		Log.info.println("#Successfull swaps = " + accepted);
+		Log.info.println("#Successfull swaps with cold chain = " + accepted0);
+	}
+
+	public static void main(String[] args) {
+		int port = DistributedMCMCMC.DEFAULT_PORT;
+		int chainCount = 2;
+		double deltaTemperature = HeatedMCMC.LAMBDA;
+		int swapsPerRound = 1;
+		long seed = System.currentTimeMillis();
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			switch (args[i]) {
+			case "-port": port = Integer.parseInt(args[i + 1]); break;
+			case "-chains": chainCount = Integer.parseInt(args[i + 1]); break;
+			case "-deltaTemperature": deltaTemperature = Double.parseDouble(args[i + 1]); break;
+			case "-swapsPerRound": swapsPerRound = Integer.parseInt(args[i + 1]); break;
+			case "-seed": seed = Long.parseLong(args[i + 1]); break;
+			default:
+				throw new IllegalArgumentException("Unknown argument " + args[i] +
+						". Usage: MCMCMCCoordinator -port 5123 -chains 4 [-deltaTemperature 1.0] [-swapsPerRound 1] [-seed 127]");
+			}
+		}
+		new MCMCMCCoordinator(port, chainCount, deltaTemperature, swapsPerRound, seed).run();
+	}
+}
@@ -0,0 +1,142 @@
+package beastlabs.inference;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Particle state pool shared by particles in different processes on the same machine
+ * through a memory mapped file. Each process maps the same file, and particles synchronise
+ * through counters in the file header. The last particle to arrive resamples.
+ *
+ * Layout of the file: a header with the generation (nr of completed rounds), the nr of
+ * particles that arrived in the current round, the total nr of particles, a flag set when
+ * a particle failed and, for each particle, the particle it takes its new state from.
+ * This is followed by two slots per particle, each holding a posterior, the length of
+ * the state and the UTF-8 encoded state.
+ * Particles write to the slot selected by the parity of the generation, so a fast particle
+ * can write its next state while slow ones are still reading the previous round.
+ */
+public class MappedParticlePool extends ParticleStatePool {
+	private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+	private static final int GENERATION = 0;
+	private static final int ARRIVED = 4;
+	private static final int TOTAL = 8;
+	private static final int ABORTED = 12;
+	private static final int SOURCE = 16;
+
+	/** nr of spins before a waiting particle starts parking **/
+	private static final int SPINS = 1000;
+	private static final long PARK_NANOS = 50000;
+
+	final MappedByteBuffer m_buffer;
+	final int m_nParticles;
+	final int m_nSlotSize;
+	final int m_nSlotStart;
+
+	/**
+	 * @param sFileName file shared by all processes. It should not exist when the first process starts.
+	 * @param nParticles total nr of particles, over all processes
+	 * @param nSlotSize maximum size in bytes of a serialised state
+	 */
+	public MappedParticlePool(String sFileName, int nParticles, int nSlotSize) throws IOException {
+		m_nParticles = nParticles;
+		m_nSlotSize = nSlotSize;
+		// slots are 8 byte aligned, so posteriors are as well
+		m_nSlotStart = (SOURCE + 4 * nParticles + 7) & ~7;
+		long nSize = m_nSlotStart + 2L * nParticles * (16 + nSlotSize);
+		if (nSize > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Too many particles or too large slotSize: " + nSize + " bytes needed for " + sFileName);
+		}
+		try (RandomAccessFile file = new RandomAccessFile(sFileName, "rw");
+				FileChannel channel = file.getChannel()) {
+			// the mapping remains valid after the channel is closed
+			m_buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, nSize);
+		}
+		m_buffer.order(ByteOrder.nativeOrder());
+		if (!INT.compareAndSet(m_buffer, TOTAL, 0, nParticles)) {
+			int nTotal = (int) INT.getVolatile(m_buffer, TOTAL);
+			if (nTotal != nParticles) {
+				throw new IllegalArgumentException(sFileName + " is used for " + nTotal + " particles, not " + nParticles +
+						". Remove the file before starting a new analysis.");
+			}
+		}
+	}
+
+	private int slotOffset(int iParticle, int iParity) {
+		return m_nSlotStart + (2 * iParticle + iParity) * (16 + m_nSlotSize);
+	}
+
+	@Override
+	public String exchange(int iParticle, String sState, double fPosterior) throws Exception {
+		checkAborted();
+		int nGeneration = (int) INT.getVolatile(m_buffer, GENERATION);
+		int iParity = nGeneration & 1;
+
+		byte [] bytes = sState.getBytes(StandardCharsets.UTF_8);
+		if (bytes.length > m_nSlotSize) {
+			throw new IOException("State of particle " + iParticle + " takes " + bytes.length + " bytes, which exceeds slotSize " + m_nSlotSize);
+		}
+		int iOffset = slotOffset(iParticle, iParity);
+		m_buffer.putDouble(iOffset, fPosterior);
+		m_buffer.putInt(iOffset + 8, bytes.length);
+		m_buffer.put(iOffset + 16, bytes);
+
+		// the atomic update makes the slot visible to the particle that resamples
+		int nArrived = (int) INT.getAndAdd(m_buffer, ARRIVED, 1) + 1;
+		if (nArrived == m_nParticles) {
+			resampleAll(iParity);
+			INT.setVolatile(m_buffer, ARRIVED, 0);
+			INT.setVolatile(m_buffer, GENERATION, nGeneration + 1);
+		} else {
+			int nSpins = 0;
+			while ((int) INT.getVolatile(m_buffer, GENERATION) == nGeneration) {
+				if (nSpins++ < SPINS) {
+					Thread.onSpinWait();
+				} else {
+					checkAborted();
+					LockSupport.parkNanos(PARK_NANOS);
+				}
+			}
+		}
+
+		int iSource = m_buffer.getInt(SOURCE + 4 * iParticle);
+		if (iSource == iParticle) {
+			return null;
+		}
+		iOffset = slotOffset(iSource, iParity);
+		bytes = new byte[m_buffer.getInt(iOffset + 8)];
+		m_buffer.get(iOffset + 16, bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public void abort() {
+		INT.setVolatile(m_buffer, ABORTED, 1);
+	}
+
+	private void checkAborted() throws BrokenBarrierException {
+		if ((int) INT.getVolatile(m_buffer, ABORTED) != 0) {
+			throw new BrokenBarrierException("A particle sharing the pool failed. Remove the file before starting a new analysis.");
+		}
+	}
+
+	private void resampleAll(int iParity) {
+		double [] fPosteriors = new double[m_nParticles];
+		for (int i = 0; i < m_nParticles; i++) {
+			fPosteriors[i] = m_buffer.getDouble(slotOffset(i, iParity));
+		}
+		int [] iSource = resample(fPosteriors);
+		for (int i = 0; i < m_nParticles; i++) {
+			m_buffer.putInt(SOURCE + 4 * i, iSource[i]);
+		}
+	}
+}
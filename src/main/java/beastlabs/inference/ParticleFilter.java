@@ -15,6 +15,8 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.concurrent.CountDownLatch;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import beast.base.core.BEASTInterface;
 import beast.base.core.Description;
@@ -30,6 +32,7 @@ import beast.base.core.Input.Validate;
 import beast.pkgmgmt.BEASTClassLoader;
 import beast.base.util.DiscreteStatistics;
 import beast.base.util.Randomizer;
+import beast.base.parser.XMLParser;
 import beast.base.parser.XMLProducer;
 
 
@@ -50,11 +53,22 @@ public class ParticleFilter extends beast.base.inference.Runnable {
 	public Input<String> m_sScriptInput = new Input<String>("value", "script for launching a job. " +
 			"$(dir) is replaced by the directory associated with the particle " +
 			"$(seed) is replaced by a random number seed that differs with every launch " +
-			"$(host) is replaced by a host from the list of hosts", Validate.REQUIRED);
+			"$(host) is replaced by a host from the list of hosts. " +
+			"Not used by " + ParticleLauncherInMemory.class.getSimpleName() + ", but required by other launchers");
 	public Input<String> m_sHostsInput = new Input<String>("hosts", "comma separated list of hosts. " +
 			"If there are k hosts in the list, for particle i the term $(host) in the script will be replaced " +
 			"by the (i modulo k) host in the list. " +
 			"Note that whitespace is removed");
+	public Input<String> m_sSharedFileInput = new Input<String>("sharedFile", "file to memory map for exchanging states with particles " +
+			"run by other processes on the same machine. Only used by " + ParticleLauncherInMemory.class.getSimpleName() + ". " +
+			"If not specified, states are only exchanged between the particles of this process. " +
+			"The file should not exist when the first process starts");
+	public Input<Integer> m_nTotalParticlesInput = new Input<Integer>("totalParticles", "total number of particles over all processes " +
+			"sharing sharedFile (default nrofparticles)");
+	public Input<Integer> m_nFirstParticleInput = new Input<Integer>("firstParticle", "number of the first particle run by this process, " +
+			"when particles are shared through sharedFile (default 0)", 0);
+	public Input<Integer> m_nSlotSizeInput = new Input<Integer>("slotSize", "maximum size in bytes of a serialised state " +
+			"when particles are shared through sharedFile (default 1048576)", 1 << 20);
 
 	int m_nParticles;
 	// nr of steps = MCMC.chainLength / step size
@@ -70,6 +84,15 @@ public class ParticleFilter extends beast.base.inference.Runnable {
 
 	CountDownLatch m_nCountDown;
 
+	/** used by ParticleLauncherInMemory only **/
+	int m_iFirstParticle;
+	int m_nTotalParticles;
+	/** XML of the particle MCMC, to be parsed by every particle **/
+	String m_sXML;
+	/** resampling threshold when particles update asynchronously, null when they synchronise **/
+	Double m_fAsyncThreshold;
+	ParticleStatePool m_pool;
+
 	
 	DecimalFormat formatter;
 	String getParticleDir(int iParticle) {
@@ -82,6 +105,19 @@ public class ParticleFilter extends beast.base.inference.Runnable {
 		m_nParticles = m_nParticlesInput.get();
 		m_sScript = m_sScriptInput.get();
 		int nStepSize = m_nStepSizeInput.get();
+		boolean bInMemory = m_sParticleLauncher.get().equals(ParticleLauncherInMemory.class.getName());
+		if (m_sScript == null && !bInMemory) {
+			throw new IllegalArgumentException("A script (value) must be specified for launcher " + m_sParticleLauncher.get());
+		}
+		m_iFirstParticle = m_nFirstParticleInput.get();
+		m_nTotalParticles = m_nTotalParticlesInput.get() == null ? m_nParticles : m_nTotalParticlesInput.get();
+		if (m_sSharedFileInput.get() == null && (m_iFirstParticle != 0 || m_nTotalParticles != m_nParticles)) {
+			throw new IllegalArgumentException("firstParticle and totalParticles can only be used together with sharedFile");
+		}
+		if (m_iFirstParticle < 0 || m_iFirstParticle + m_nParticles > m_nTotalParticles) {
+			throw new IllegalArgumentException("particles " + m_iFirstParticle + " to " + (m_iFirstParticle + m_nParticles - 1) +
+					" are not within the " + m_nTotalParticles + " particles");
+		}
 		if (m_sHostsInput.get() != null) {
 			m_sHosts = m_sHostsInput.get().split(",");
 			// remove whitespace
@@ -100,6 +136,12 @@ public class ParticleFilter extends beast.base.inference.Runnable {
 		
 		// initialise MCMC
 		MCMC mcmc = m_mcmc.get();
+		if (mcmc instanceof MCMCParticleAsync) {
+			m_fAsyncThreshold = ((MCMCParticleAsync) mcmc).thresholdInput.get();
+			if (bInMemory && m_sSharedFileInput.get() != null) {
+				throw new IllegalArgumentException("Asynchronous particles cannot be shared through sharedFile");
+			}
+		}
 		// set up chain length for a single step
 		mcmc.burnInInput.setValue(0, mcmc);
 		m_nSteps = mcmc.chainLengthInput.get() / nStepSize;
@@ -116,14 +158,15 @@ public class ParticleFilter extends beast.base.inference.Runnable {
 
 		// set up directories with beast.xml files in each of them
 		String sFormat = "";
-		for (int i = m_nParticles; i > 0; i /= 10) {
+		for (int i = m_nTotalParticles; i > 0; i /= 10) {
 			sFormat += "#";
 		}
 		formatter = new DecimalFormat(sFormat);
 		
 		XMLProducer producer = new XMLProducer();
 		String sXML = producer.toXML(m_mcmc.get());
-		for (int i = 0; i < m_nParticles; i++) {
+		m_sXML = sXML;
+		for (int i = m_iFirstParticle; i < m_iFirstParticle + m_nParticles; i++) {
 			File particleDir = new File(getParticleDir(i));
 			if (!particleDir.exists() && !particleDir.mkdir()) {
 				throw new IllegalArgumentException("Failed to make directory " + particleDir.getName());
@@ -357,6 +400,34 @@ public class ParticleFilter extends beast.base.inference.Runnable {
 	
 	}
 
+	/** create MCMC for a particle running in this JVM, logging to the particle directory **/
+	synchronized HeatedMCMC createParticleMCMC(int iParticle) throws Exception {
+		String sParticleDir = getParticleDir(iParticle);
+		String sXML = m_sXML;
+		for (String input : new String[]{"stepsize", "threshold"}) {
+			sXML = sXML.replaceAll("\\s" + input + "=['\"][^ ]*['\"]", "");
+		}
+		sXML = sXML.replaceAll("\\b" + Pattern.quote(m_mcmc.get().getClass().getName()) + "\\b", HeatedMCMC.class.getName());
+		sXML = sXML.replaceAll("fileName=(['\"])", "fileName=$1" + Matcher.quoteReplacement(sParticleDir + "/"));
+
+		HeatedMCMC chain = (HeatedMCMC) new XMLParser().parseFragment(sXML, true);
+		chain.setChainNr(0, m_nStepSizeInput.get());
+		chain.setStateFile(sParticleDir + "/beast.xml.state", false);
+		chain.run();
+		return chain;
+	}
+
+	synchronized ParticleStatePool getStatePool() throws IOException {
+		if (m_pool == null) {
+			if (m_sSharedFileInput.get() != null) {
+				m_pool = new MappedParticlePool(m_sSharedFileInput.get(), m_nTotalParticles, m_nSlotSizeInput.get());
+			} else {
+				m_pool = new InMemoryParticlePool(m_nParticles);
+			}
+		}
+		return m_pool;
+	}
+
 	private String getTextFile(String sFileName) throws IOException {
 		BufferedReader fin = new BufferedReader(new FileReader(sFileName));
 		StringBuffer buf = new StringBuffer();
@@ -383,8 +454,10 @@ public class ParticleFilter extends beast.base.inference.Runnable {
 	    	ParticleLauncher launcher = (ParticleLauncher) o;
 	    	launcher.setParticle(i, this);
 			launcher.start();
-			// wait a second to ensure threads are not all launced at the same time, which can cause problems.
-			Thread.sleep(1000);
+			if (!(launcher instanceof ParticleLauncherInMemory)) {
+				// wait a second to ensure threads are not all launced at the same time, which can cause problems.
+				Thread.sleep(1000);
+			}
 		}
 		
 		m_nCountDown.await();
@@ -0,0 +1,47 @@
+package beastlabs.inference;
+
+import beast.base.inference.State;
+
+
+/**
+ * Runs a particle as a thread in this JVM instead of launching a process per step.
+ * States and posteriors are exchanged through the ParticleStatePool of the ParticleFilter,
+ * so no script or state files are needed. Logs are still written to the particle directory.
+ */
+public class ParticleLauncherInMemory extends ParticleLauncher {
+
+	@Override
+	public void run() {
+		ParticleStatePool pool = null;
+		try {
+			int iParticle = m_filter.m_iFirstParticle + m_iParticle;
+			HeatedMCMC chain = m_filter.createParticleMCMC(iParticle);
+			pool = m_filter.getStatePool();
+			State state = chain.getState();
+
+			for (int k = 0; k < m_filter.m_nSteps; k++) {
+				chain.runTillResample();
+				String sState = state.toXML((k + 1) * m_filter.m_nStepSizeInput.get());
+				double fPosterior = chain.getCurrentLogPosterior();
+				String sNewState;
+				if (m_filter.m_fAsyncThreshold != null) {
+					sNewState = ((InMemoryParticlePool) pool).exchangeAsync(iParticle, sState, fPosterior, m_filter.m_fAsyncThreshold);
+				} else {
+					sNewState = pool.exchange(iParticle, sState, fPosterior);
+				}
+				if (sNewState != null) {
+					state.fromXML(sNewState);
+					chain.calcCurrentLogLikelihoodRobustly();
+				}
+			}
+			chain.closeLoggers();
+		} catch (Exception e) {
+			e.printStackTrace();
+			if (pool != null) {
+				// do not leave the other particles waiting for this one
+				pool.abort();
+			}
+		}
+		m_filter.m_nCountDown.countDown();
+	}
+}
@@ -0,0 +1,59 @@
+package beastlabs.inference;
+
+import java.util.Arrays;
+
+import beast.base.util.DiscreteStatistics;
+import beast.base.util.Randomizer;
+
+/**
+ * Pool of serialised states and posteriors of particles, used by ParticleLauncherInMemory
+ * to exchange states between particles without going through the file system.
+ */
+public abstract class ParticleStatePool {
+
+	/**
+	 * Store state and posterior of a particle, wait till all particles did so,
+	 * then resample states proportional to their posterior.
+	 * @return new state for the particle, or null if it keeps its own state
+	 */
+	abstract public String exchange(int iParticle, String sState, double fPosterior) throws Exception;
+
+	/**
+	 * Called when a particle fails, so particles waiting in exchange, and those that call it later,
+	 * stop with a BrokenBarrierException instead of waiting for the failed particle forever.
+	 */
+	abstract public void abort();
+
+	/** sample new state for every particle with probability proportional to its posterior **/
+	static int [] resample(double [] fPosteriors) {
+		double fMax = fPosteriors[0];
+		for (double f : fPosteriors) {
+			fMax = Math.max(fMax, f);
+		}
+		double [] fWeights = new double[fPosteriors.length];
+		double fSum = 0;
+		for (int i = 0; i < fPosteriors.length; i++) {
+			fWeights[i] = Math.exp(fPosteriors[i] - fMax);
+			fSum += fWeights[i];
+		}
+		int [] iSource = new int[fPosteriors.length];
+		for (int iParticle = 0; iParticle < fPosteriors.length; iParticle++) {
+			iSource[iParticle] = sample(fWeights, fSum);
+		}
+
+		System.out.print("\n" + DiscreteStatistics.mean(fPosteriors) + " " + DiscreteStatistics.variance(fPosteriors));
+		System.out.print(" " + Arrays.toString(fPosteriors));
+		System.out.println();
+		return iSource;
+	}
+
+	static int sample(double [] fWeights, double fSum) {
+		double fRand = Randomizer.nextDouble() * fSum;
+		int iNewState = 0;
+		while (fRand > fWeights[iNewState] && iNewState < fWeights.length - 1) {
+			fRand -= fWeights[iNewState];
+			iNewState++;
+		}
+		return iNewState;
+	}
+}
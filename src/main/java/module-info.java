@@ -8,6 +8,7 @@ open module beast.labs {
     requires org.apache.commons.statistics.distribution;
     requires org.apache.commons.numbers.gamma;
     requires static beast.fx;
+    requires static jdk.incubator.vector;
     requires static javafx.controls;
 
     exports beastlabs.app.beauti;
@@ -47,8 +48,11 @@ open module beast.labs {
         beastlabs.evolution.branchratemodel.PrunedRelaxedClockModel,
         beastlabs.evolution.likelihood.AncestralStateLogger,
         beastlabs.evolution.likelihood.ExperimentalTreeLikelihood,
+        beastlabs.evolution.likelihood.LikelihoodOperationLogger,
+        beastlabs.evolution.likelihood.MultiPartitionProfiler,
         beastlabs.evolution.likelihood.MultiPartitionTreeLikelihood,
         beastlabs.evolution.likelihood.SelfTuningCompoundDistribution,
+        beastlabs.evolution.likelihood.SelfTuningLogger,
         beastlabs.evolution.likelihood.SelfTuningMCMC,
         beastlabs.evolution.likelihood.SupertreeLikelihood,
         beastlabs.evolution.likelihood.TraitedTreeLikelihood,
@@ -87,6 +91,7 @@ open module beast.labs {
         beastlabs.evolution.tree.coalescent.ExponentialGrowthPlusConstant,
         beastlabs.evolution.tree.coalescent.StructuredCoalescentTree,
         beastlabs.inference.ConvergableMCMC,
+        beastlabs.inference.DistributedMCMCMC,
         beastlabs.inference.HeatedMCMC,
         beastlabs.inference.IndependentMCMC,
         beastlabs.inference.MCMCMC,
@@ -0,0 +1,84 @@
+package test.beast.evolution.likelihood;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.alignment.Sequence;
+import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.substitutionmodel.Frequencies;
+import beast.base.evolution.substitutionmodel.HKY;
+import beast.base.evolution.tree.Tree;
+import beastlabs.evolution.likelihood.ExperimentalTreeLikelihood;
+import beastlabs.evolution.likelihood.ExperimentalTreeLikelihood.CoreType;
+import test.beast.BEASTTestCase;
+
+
+/** Runs the ExperimentalTreeLikelihoodTest tests with the core picked by timing all cores.
+ * Whatever core wins, it should reproduce the same likelihoods.
+ * **/
+public class ExperimentalTreeLikelihoodAutoTest extends ExperimentalTreeLikelihoodTest {
+
+	@Override
+	protected ExperimentalTreeLikelihood newTreeLikelihood() {
+		ExperimentalTreeLikelihood likelihood = new ExperimentalTreeLikelihood();
+		likelihood.m_coreType.setValue(CoreType.auto, likelihood);
+		likelihood.m_autoEvaluationCount.setValue(5, likelihood);
+		return likelihood;
+	}
+
+	/** balanced tree over taxa t<from> ... t<to - 1> with branches of length 0.5 **/
+	private String balancedNewick(int from, int to) {
+		if (to - from == 1) {
+			return "t" + from;
+		}
+		int mid = (from + to) / 2;
+		return "(" + balancedNewick(from, mid) + ":0.5," + balancedNewick(mid, to) + ":0.5)";
+	}
+
+	@Test
+	public void testUnderflowingData() throws Exception {
+		// 1024 taxa of random sequences: partials underflow without scaling
+		int nTaxa = 1024;
+		Random random = new Random(127);
+		Alignment data = new Alignment();
+		for (int i = 0; i < nTaxa; i++) {
+			StringBuilder buf = new StringBuilder();
+			for (int j = 0; j < 20; j++) {
+				buf.append("ACGT".charAt(random.nextInt(4)));
+			}
+			data.sequenceInput.setValue(new Sequence("t" + i, buf.toString()), data);
+		}
+		data.initByName("dataType", "nucleotide");
+		Tree tree = BEASTTestCase.getTree(data, balancedNewick(0, nTaxa) + ";");
+
+		Frequencies freqs = new Frequencies();
+		freqs.initByName("data", data);
+		HKY hky = new HKY();
+		hky.initByName("kappa", "2.0", "frequencies", freqs);
+		SiteModel siteModel = new SiteModel();
+		siteModel.initByName("mutationRate", "1.0", "gammaCategoryCount", 1, "substModel", hky);
+
+		ExperimentalTreeLikelihood likelihood = newTreeLikelihood();
+		likelihood.initByName("data", data, "tree", tree, "siteModel", siteModel);
+		// cores should be timed with scaling, instead of all underflowing and falling back to CnG untimed
+		assertFalse(likelihood.getAutoTimes().isEmpty(), "no core agreed with the reference core");
+		assertTrue(likelihood.getAutoTimes().containsKey(CoreType.CnG));
+		double fLogP = likelihood.calculateLogP();
+
+		ExperimentalTreeLikelihood likelihood2 = new ExperimentalTreeLikelihood();
+		likelihood2.initByName("data", data, "tree", tree, "siteModel", siteModel);
+		double fExpected = likelihood2.calculateLogP();
+		assertTrue(Double.isFinite(fExpected));
+		assertEquals(fExpected, fLogP, 1e-6 * Math.abs(fExpected));
+
+		likelihood.finalize();
+		likelihood2.finalize();
+	}
+
+}
@@ -0,0 +1,86 @@
+package test.beast.evolution.likelihood;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.alignment.Sequence;
+import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.substitutionmodel.Frequencies;
+import beast.base.evolution.substitutionmodel.HKY;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.State;
+import beast.base.inference.parameter.RealParameter;
+import beastlabs.evolution.likelihood.ExperimentalTreeLikelihood;
+import beastlabs.evolution.likelihood.ExperimentalTreeLikelihood.CoreType;
+import test.beast.BEASTTestCase;
+
+
+/** Runs the ExperimentalTreeLikelihoodTest tests with the compressing CnG core,
+ * and checks it on data with enough patterns to make it index internal nodes through its hash table.
+ * **/
+public class ExperimentalTreeLikelihoodCnGTest extends ExperimentalTreeLikelihoodTest {
+
+	@Override
+	protected ExperimentalTreeLikelihood newTreeLikelihood() {
+		ExperimentalTreeLikelihood likelihood = new ExperimentalTreeLikelihood();
+		likelihood.m_coreType.setValue(CoreType.CnG, likelihood);
+		return likelihood;
+	}
+
+	private ExperimentalTreeLikelihood newTreeLikelihood(CoreType coreType, Alignment data, Tree tree, SiteModel siteModel) {
+		ExperimentalTreeLikelihood likelihood = new ExperimentalTreeLikelihood();
+		likelihood.initByName("data", data, "tree", tree, "siteModel", siteModel, "core", coreType);
+		return likelihood;
+	}
+
+	@Test
+	public void testHashedPatternIndex() throws Exception {
+		// 8 taxa of random sequences with some gaps: each four taxon clade has hundreds of distinct patterns,
+		// so at the root there are far more pairs of child patterns than the (4 + 1) x #patterns
+		// that fit in the direct map, and the hash table is used
+		Random random = new Random(127);
+		Alignment data = new Alignment();
+		for (int i = 0; i < 8; i++) {
+			StringBuilder buf = new StringBuilder();
+			for (int j = 0; j < 2000; j++) {
+				buf.append(random.nextDouble() < 0.05 ? '-' : "ACGT".charAt(random.nextInt(4)));
+			}
+			data.sequenceInput.setValue(new Sequence("t" + i, buf.toString()), data);
+		}
+		data.initByName("dataType", "nucleotide");
+		Tree tree = BEASTTestCase.getTree(data, "(((t0:0.1,t1:0.1):0.1,(t2:0.1,t3:0.1):0.1):0.1,((t4:0.1,t5:0.1):0.1,(t6:0.1,t7:0.1):0.1):0.1);");
+
+		Frequencies freqs = new Frequencies();
+		freqs.initByName("data", data);
+		RealParameter kappa = new RealParameter("2.0");
+		HKY hky = new HKY();
+		hky.initByName("kappa", kappa, "frequencies", freqs);
+		SiteModel siteModel = new SiteModel();
+		siteModel.initByName("mutationRate", "1.0", "gammaCategoryCount", 4, "shape", "0.5", "substModel", hky);
+
+		ExperimentalTreeLikelihood likelihood = newTreeLikelihood(CoreType.CnG, data, tree, siteModel);
+		ExperimentalTreeLikelihood reference = newTreeLikelihood(CoreType.Java, data, tree, siteModel);
+		assertEquals(reference.calculateLogP(), likelihood.calculateLogP(), getPrecision());
+
+		// recalculate after a change, so the indices are rebuilt for stored as well as current nodes
+		State state = new State();
+		state.initByName("stateNode", kappa);
+		state.initialise();
+		state.setPosterior(likelihood);
+		state.store(0);
+		kappa.setValue(5.0);
+		state.storeCalculationNodes();
+		state.checkCalculationNodesDirtiness();
+		double fLogP = likelihood.calculateLogP();
+		state.acceptCalculationNodes();
+		assertEquals(newTreeLikelihood(CoreType.Java, data, tree, siteModel).calculateLogP(), fLogP, getPrecision());
+
+		likelihood.finalize();
+		reference.finalize();
+	}
+
+}
@@ -0,0 +1,58 @@
+package test.beast.evolution.likelihood;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.substitutionmodel.Frequencies;
+import beast.base.evolution.substitutionmodel.HKY;
+import beast.base.evolution.tree.Tree;
+import beastlabs.evolution.likelihood.ExperimentalTreeLikelihood;
+import beastlabs.evolution.likelihood.ExperimentalTreeLikelihood.CoreType;
+
+
+/** Runs the ExperimentalTreeLikelihoodTest tests with the single precision core,
+ * so log likelihoods are compared with a tolerance that allows for float rounding.
+ * **/
+public class ExperimentalTreeLikelihoodFloatTest extends ExperimentalTreeLikelihoodTest {
+
+	@Override
+	protected ExperimentalTreeLikelihood newTreeLikelihood() {
+		ExperimentalTreeLikelihood likelihood = new ExperimentalTreeLikelihood();
+		likelihood.m_coreType.setValue(CoreType.Float, likelihood);
+		return likelihood;
+	}
+
+	@Override
+	protected double getPrecision() {
+		return 5e-3;
+	}
+
+	@Test
+	public void testScalingStaysOn() throws Exception {
+		// ExperimentalTreeLikelihood tries switching scaling off after 100 evaluations,
+		// which the single precision core should ignore
+		Alignment data = getAlignment();
+		Tree tree = getTree(data);
+
+		Frequencies freqs = new Frequencies();
+		freqs.initByName("data", data);
+
+		HKY hky = new HKY();
+		hky.initByName("kappa", "29.739445", "frequencies", freqs);
+
+		SiteModel siteModel = new SiteModel();
+		siteModel.initByName("mutationRate", "1.0", "gammaCategoryCount", 1, "substModel", hky);
+
+		ExperimentalTreeLikelihood likelihood = newTreeLikelihood();
+		likelihood.initByName("data", data, "tree", tree, "siteModel", siteModel);
+		for (int i = 0; i < 250; i++) {
+			double fLogP = likelihood.calculateLogP();
+			assertEquals(-1825.2131708068507, fLogP, getPrecision());
+		}
+		likelihood.finalize();
+	}
+
+}
@@ -0,0 +1,23 @@
+package test.beast.evolution.likelihood;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+
+import beastlabs.evolution.likelihood.OffHeapBeerLikelihoodCore;
+
+
+/** Runs the ExperimentalTreeLikelihoodTest tests with the off-heap core, keeping partials in a memory mapped scratch file.
+ * **/
+public class ExperimentalTreeLikelihoodOffHeapMappedTest extends ExperimentalTreeLikelihoodOffHeapTest {
+
+	@BeforeEach
+	public void setUp() {
+		System.setProperty(OffHeapBeerLikelihoodCore.SCRATCH_DIR_PROPERTY, System.getProperty("java.io.tmpdir"));
+	}
+
+	@AfterEach
+	public void tearDown() {
+		System.clearProperty(OffHeapBeerLikelihoodCore.SCRATCH_DIR_PROPERTY);
+	}
+
+}
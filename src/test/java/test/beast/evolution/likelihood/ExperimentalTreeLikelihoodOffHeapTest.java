@@ -0,0 +1,18 @@
+package test.beast.evolution.likelihood;
+
+import beastlabs.evolution.likelihood.ExperimentalTreeLikelihood;
+import beastlabs.evolution.likelihood.ExperimentalTreeLikelihood.CoreType;
+
+
+/** Runs the ExperimentalTreeLikelihoodTest tests with the off-heap core, keeping partials in an Arena.
+ * **/
+public class ExperimentalTreeLikelihoodOffHeapTest extends ExperimentalTreeLikelihoodTest {
+
+	@Override
+	protected ExperimentalTreeLikelihood newTreeLikelihood() {
+		ExperimentalTreeLikelihood likelihood = new ExperimentalTreeLikelihood();
+		likelihood.m_coreType.setValue(CoreType.OffHeap, likelihood);
+		return likelihood;
+	}
+
+}
@@ -0,0 +1,35 @@
+package test.beast.evolution.likelihood;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+
+import beast.base.core.ProgramStatus;
+import beastlabs.evolution.likelihood.ExperimentalTreeLikelihood;
+import beastlabs.evolution.likelihood.ExperimentalTreeLikelihood.CoreType;
+import beastlabs.evolution.likelihood.ParallelBeerLikelihoodCore;
+
+
+/** Runs the ExperimentalTreeLikelihoodTest tests with the block parallel core.
+ * Blocks are made small enough for the patterns of the test alignments to be split over several threads.
+ * **/
+public class ExperimentalTreeLikelihoodParallelTest extends ExperimentalTreeLikelihoodTest {
+
+	@BeforeEach
+	public void setUp() {
+		ProgramStatus.m_nThreads = 4;
+		System.setProperty(ParallelBeerLikelihoodCore.MIN_PATTERNS_PROPERTY, "8");
+	}
+
+	@AfterEach
+	public void tearDown() {
+		System.clearProperty(ParallelBeerLikelihoodCore.MIN_PATTERNS_PROPERTY);
+	}
+
+	@Override
+	protected ExperimentalTreeLikelihood newTreeLikelihood() {
+		ExperimentalTreeLikelihood likelihood = new ExperimentalTreeLikelihood();
+		likelihood.m_coreType.setValue(CoreType.Parallel, likelihood);
+		return likelihood;
+	}
+
+}
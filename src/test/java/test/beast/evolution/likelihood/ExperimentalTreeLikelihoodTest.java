@@ -10,12 +10,16 @@ import org.junit.jupiter.api.Test;
 
 import beast.base.evolution.alignment.Alignment;
 import beast.base.evolution.alignment.Sequence;
+import beast.base.evolution.branchratemodel.StrictClockModel;
 import beast.base.evolution.sitemodel.SiteModel;
 import beast.base.evolution.substitutionmodel.Frequencies;
 import beast.base.evolution.substitutionmodel.GeneralSubstitutionModel;
 import beast.base.evolution.substitutionmodel.HKY;
+import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.State;
+import beast.base.inference.parameter.RealParameter;
 import beastlabs.evolution.likelihood.ExperimentalTreeLikelihood;
 
 
@@ -34,6 +38,11 @@ public class ExperimentalTreeLikelihoodTest  {
 	protected ExperimentalTreeLikelihood newTreeLikelihood() {
 		return new ExperimentalTreeLikelihood();
 	}
+
+	/** tolerance used when comparing log likelihoods with the reference values **/
+	protected double getPrecision() {
+		return PRECISION;
+	}
 	
 	
 	public static Alignment getAlignment() throws Exception {
@@ -106,13 +115,13 @@ public class ExperimentalTreeLikelihoodTest  {
 		likelihood.initByName("data",data, "tree",tree, "siteModel", siteModel);
 		double fLogP = 0;
 		fLogP = likelihood.calculateLogP();
-		assertEquals(fLogP, -1992.2056440317247, PRECISION);
+		assertEquals(fLogP, -1992.2056440317247, getPrecision());
 
 		
 		if (g_bUseAmbiguities) {
 			likelihood.initByName("useAmbiguities", true, "data",data, "tree",tree, "siteModel", siteModel);
 			fLogP = likelihood.calculateLogP();
-			assertEquals(fLogP, -1992.2056440317247, PRECISION);
+			assertEquals(fLogP, -1992.2056440317247, getPrecision());
 		}
 		likelihood.finalize();
 	}
@@ -139,7 +148,7 @@ public class ExperimentalTreeLikelihoodTest  {
 		double fLogP = 0;
 		fLogP = likelihood.calculateLogP();
 		// the following number comes from Beast 1.6
-		assertEquals(fLogP, -737.7140695360017, PRECISION);
+		assertEquals(fLogP, -737.7140695360017, getPrecision());
 		likelihood.finalize();
 	}
 	
@@ -164,12 +173,12 @@ public class ExperimentalTreeLikelihoodTest  {
 
 		double fLogP = 0;
 		fLogP = likelihood.calculateLogP();
-		assertEquals(fLogP, -1856.303048876734, PRECISION);
+		assertEquals(fLogP, -1856.303048876734, getPrecision());
 
 		if (g_bUseAmbiguities) {
 			likelihood.initByName("useAmbiguities", true, "data",data, "tree",tree, "siteModel", siteModel);
 			fLogP = likelihood.calculateLogP();
-			assertEquals(fLogP, -1856.303048876734, PRECISION);
+			assertEquals(fLogP, -1856.303048876734, getPrecision());
 		}
 		likelihood.finalize();
 	}
@@ -194,12 +203,12 @@ public class ExperimentalTreeLikelihoodTest  {
 
 		double fLogP = 0;
 		fLogP = likelihood.calculateLogP();
-		assertEquals(fLogP, -1825.2131708068507, PRECISION);
+		assertEquals(fLogP, -1825.2131708068507, getPrecision());
 	
 		if (g_bUseAmbiguities) {
 			likelihood.initByName("useAmbiguities", true, "data",data, "tree",tree, "siteModel", siteModel);
 			fLogP = likelihood.calculateLogP();
-			assertEquals(fLogP, -1825.2131708068507, PRECISION);
+			assertEquals(fLogP, -1825.2131708068507, getPrecision());
 		}
 		likelihood.finalize();
 	}
@@ -230,12 +239,12 @@ public class ExperimentalTreeLikelihoodTest  {
 		double fLogP = 0;
 		fLogP = likelihood.calculateLogP();
 		System.err.println(fLogP - -1789.7593576610134);
-		assertEquals(fLogP, -1789.7593576610134, PRECISION);
+		assertEquals(fLogP, -1789.7593576610134, getPrecision());
 	
 		if (g_bUseAmbiguities) {
 			likelihood.initByName("useAmbiguities", true, "data",data, "tree",tree, "siteModel", siteModel);
 			fLogP = likelihood.calculateLogP();
-			assertEquals(fLogP, -1789.7593576610134, PRECISION);
+			assertEquals(fLogP, -1789.7593576610134, getPrecision());
 		}
 		likelihood.finalize();
 	}
@@ -263,12 +272,12 @@ public class ExperimentalTreeLikelihoodTest  {
 
 		double fLogP = 0;
 		fLogP = likelihood.calculateLogP();
-		assertEquals(fLogP, -1789.912401996943, PRECISION);
+		assertEquals(fLogP, -1789.912401996943, getPrecision());
 
 		if (g_bUseAmbiguities) {
 			likelihood.initByName("useAmbiguities", true, "data",data, "tree",tree, "siteModel", siteModel);
 			fLogP = likelihood.calculateLogP();
-			assertEquals(fLogP, -1789.912401996943, PRECISION);
+			assertEquals(fLogP, -1789.912401996943, getPrecision());
 		}
 		likelihood.finalize();
 	}
@@ -296,12 +305,12 @@ public class ExperimentalTreeLikelihoodTest  {
 
 		double fLogP = 0;
 		fLogP = likelihood.calculateLogP();
-		assertEquals(fLogP, -1789.639227747059, PRECISION);
+		assertEquals(fLogP, -1789.639227747059, getPrecision());
 
 		if (g_bUseAmbiguities) {
 			likelihood.initByName("useAmbiguities", true, "data",data, "tree",tree, "siteModel", siteModel);
 			fLogP = likelihood.calculateLogP();
-			assertEquals(fLogP, -1789.639227747059, PRECISION);
+			assertEquals(fLogP, -1789.639227747059, getPrecision());
 		}
 		likelihood.finalize();
 	}
@@ -328,11 +337,11 @@ public class ExperimentalTreeLikelihoodTest  {
 
 		double fLogP = 0;
 		fLogP = likelihood.calculateLogP();
-		assertEquals(fLogP, -1969.145839307625, PRECISION);
+		assertEquals(fLogP, -1969.145839307625, getPrecision());
 
 		likelihood.initByName("useAmbiguities", false, "data",data, "tree",tree, "siteModel", siteModel);
 		fLogP = likelihood.calculateLogP();
-		assertEquals(fLogP, -1969.145839307625, PRECISION);
+		assertEquals(fLogP, -1969.145839307625, getPrecision());
 		likelihood.finalize();
 	}
 
@@ -359,11 +368,11 @@ public class ExperimentalTreeLikelihoodTest  {
 
 		double fLogP = 0;
 		fLogP = likelihood.calculateLogP();
-		assertEquals(fLogP, -1948.8417455357564, PRECISION);
+		assertEquals(fLogP, -1948.8417455357564, getPrecision());
 
 		likelihood.initByName("useAmbiguities", false, "data",data, "tree",tree, "siteModel", siteModel);
 		fLogP = likelihood.calculateLogP();
-		assertEquals(fLogP, -1948.8417455357564, PRECISION);
+		assertEquals(fLogP, -1948.8417455357564, getPrecision());
 		likelihood.finalize();
 	}
 	
@@ -389,11 +398,11 @@ public class ExperimentalTreeLikelihoodTest  {
 
 		double fLogP = 0;
 		fLogP = likelihood.calculateLogP();
-		assertEquals(fLogP, -1949.0360143622, PRECISION);
+		assertEquals(fLogP, -1949.0360143622, getPrecision());
 
 		likelihood.initByName("useAmbiguities", false, "data",data, "tree",tree, "siteModel", siteModel);
 		fLogP = likelihood.calculateLogP();
-		assertEquals(fLogP, -1949.0360143622, PRECISION);
+		assertEquals(fLogP, -1949.0360143622, getPrecision());
 		likelihood.finalize();
 	}
 	
@@ -420,11 +429,126 @@ public class ExperimentalTreeLikelihoodTest  {
 
 		double fLogP = 0;
 		fLogP = likelihood.calculateLogP();
-		assertEquals(fLogP, -1947.5829396144961, PRECISION);
+		assertEquals(fLogP, -1947.5829396144961, getPrecision());
 
 		likelihood.initByName("useAmbiguities", false, "data",data, "tree",tree, "siteModel", siteModel);
 		fLogP = likelihood.calculateLogP();
-		assertEquals(fLogP, -1947.5829396144961, PRECISION);
+		assertEquals(fLogP, -1947.5829396144961, getPrecision());
+		likelihood.finalize();
+	}
+
+	@Test
+	public void testClockAndKappaChangeInOneStep() throws Exception {
+		// a proposal changing both the clock rate and the substitution model
+		// should update the matrices of all branches, not just of those with a changed length
+		Alignment data = getAlignment();
+		Tree tree = getTree(data);
+
+		Frequencies freqs = new Frequencies();
+		freqs.initByName("data", data);
+
+		RealParameter kappa = new RealParameter("2.0");
+		HKY hky = new HKY();
+		hky.initByName("kappa", kappa, "frequencies", freqs);
+
+		SiteModel siteModel = new SiteModel();
+		siteModel.initByName("mutationRate", "1.0", "gammaCategoryCount", 1, "substModel", hky);
+
+		RealParameter clockRate = new RealParameter("1.0");
+		StrictClockModel clock = new StrictClockModel();
+		clock.initByName("clock.rate", clockRate);
+
+		ExperimentalTreeLikelihood likelihood = newTreeLikelihood();
+		likelihood.initByName("data",data, "tree",tree, "siteModel", siteModel, "branchRateModel", clock);
+
+		State state = new State();
+		state.initByName("stateNode", kappa, "stateNode", clockRate);
+		state.initialise();
+		state.setPosterior(likelihood);
+		likelihood.calculateLogP();
+
+		state.store(0);
+		kappa.setValue(5.0);
+		clockRate.setValue(1.5);
+		state.storeCalculationNodes();
+		state.checkCalculationNodesDirtiness();
+		double fLogP = likelihood.calculateLogP();
+		state.acceptCalculationNodes();
+
+		// fresh likelihood with the new values
+		HKY hky2 = new HKY();
+		hky2.initByName("kappa", "5.0", "frequencies", freqs);
+		SiteModel siteModel2 = new SiteModel();
+		siteModel2.initByName("mutationRate", "1.0", "gammaCategoryCount", 1, "substModel", hky2);
+		StrictClockModel clock2 = new StrictClockModel();
+		clock2.initByName("clock.rate", "1.5");
+		ExperimentalTreeLikelihood likelihood2 = newTreeLikelihood();
+		likelihood2.initByName("data",data, "tree",getTree(data), "siteModel", siteModel2, "branchRateModel", clock2);
+		assertEquals(likelihood2.calculateLogP(), fLogP, getPrecision());
+
+		likelihood.finalize();
+		likelihood2.finalize();
+	}
+
+	@Test
+	public void testOperationCounts() throws Exception {
+		// only changes to the data or site model should recompute all partials,
+		// a branch length change only updates the partials above it
+		Alignment data = getAlignment();
+		Tree tree = getTree(data);
+
+		Frequencies freqs = new Frequencies();
+		freqs.initByName("data", data);
+
+		RealParameter kappa = new RealParameter("2.0");
+		HKY hky = new HKY();
+		hky.initByName("kappa", kappa, "frequencies", freqs);
+
+		SiteModel siteModel = new SiteModel();
+		siteModel.initByName("mutationRate", "1.0", "gammaCategoryCount", 1, "substModel", hky);
+
+		ExperimentalTreeLikelihood likelihood = newTreeLikelihood();
+		likelihood.initByName("data",data, "tree",tree, "siteModel", siteModel);
+
+		State state = new State();
+		state.initByName("stateNode", tree, "stateNode", kappa);
+		state.initialise();
+		state.setPosterior(likelihood);
+		likelihood.calculateLogP();
+		long nFullRecomputes = likelihood.getFullRecomputeCount();
+		long nPartialUpdates = likelihood.getPartialUpdateCount();
+		long nMatrixUpdates = likelihood.getMatrixUpdateCount();
+
+		// branch length only: move an internal node half way down to its oldest child
+		Node node = null;
+		for (Node internalNode : tree.getInternalNodes()) {
+			if (!internalNode.isRoot()) {
+				node = internalNode;
+				break;
+			}
+		}
+		double fChildHeight = Math.max(node.getLeft().getHeight(), node.getRight().getHeight());
+		state.store(0);
+		node.setHeight((node.getHeight() + fChildHeight) / 2);
+		state.storeCalculationNodes();
+		state.checkCalculationNodesDirtiness();
+		likelihood.calculateLogP();
+		state.acceptCalculationNodes();
+		state.setEverythingDirty(false);
+		assertEquals(nFullRecomputes, likelihood.getFullRecomputeCount());
+		assertTrue(likelihood.getPartialUpdateCount() > nPartialUpdates);
+		assertTrue(likelihood.getMatrixUpdateCount() > nMatrixUpdates);
+
+		// kappa changes the matrices of all branches
+		state.store(1);
+		kappa.setValue(5.0);
+		state.storeCalculationNodes();
+		state.checkCalculationNodesDirtiness();
+		likelihood.calculateLogP();
+		state.acceptCalculationNodes();
+		state.setEverythingDirty(false);
+		assertEquals(nFullRecomputes + 1, likelihood.getFullRecomputeCount());
+
 		likelihood.finalize();
 	}
 
@@ -0,0 +1,19 @@
+package test.beast.evolution.likelihood;
+
+import beastlabs.evolution.likelihood.ExperimentalTreeLikelihood;
+import beastlabs.evolution.likelihood.ExperimentalTreeLikelihood.CoreType;
+
+
+/** Runs the ExperimentalTreeLikelihoodTest tests with the SIMD nucleotide core.
+ * When the Java Vector API is not available, this exercises the scalar fall back code.
+ * **/
+public class ExperimentalTreeLikelihoodVectorTest extends ExperimentalTreeLikelihoodTest {
+
+	@Override
+	protected ExperimentalTreeLikelihood newTreeLikelihood() {
+		ExperimentalTreeLikelihood likelihood = new ExperimentalTreeLikelihood();
+		likelihood.m_coreType.setValue(CoreType.Vector, likelihood);
+		return likelihood;
+	}
+
+}
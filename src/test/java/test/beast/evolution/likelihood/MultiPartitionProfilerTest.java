@@ -0,0 +1,106 @@
+package test.beast.evolution.likelihood;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import beast.base.core.ProgramStatus;
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.alignment.FilteredAlignment;
+import beast.base.evolution.likelihood.TreeLikelihood;
+import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.substitutionmodel.Frequencies;
+import beast.base.evolution.substitutionmodel.HKY;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.State;
+import beast.base.inference.parameter.RealParameter;
+import beastlabs.evolution.likelihood.MultiPartitionProfiler;
+import beastlabs.evolution.likelihood.MultiPartitionTreeLikelihood;
+import test.beast.BEASTTestCase;
+
+/** checks the operations counted by MultiPartitionProfiler, using the Java implementation of MultiPartitionTreeLikelihood **/
+public class MultiPartitionProfilerTest {
+
+	@BeforeEach
+	public void setUp() {
+		System.setProperty(MultiPartitionTreeLikelihood.JAVA_IMPLEMENTATION_PROPERTY, "true");
+		ProgramStatus.m_nThreads = 1;
+	}
+
+	@AfterEach
+	public void tearDown() {
+		System.clearProperty(MultiPartitionTreeLikelihood.JAVA_IMPLEMENTATION_PROPERTY);
+	}
+
+	private TreeLikelihood newTreeLikelihood(Alignment data, Tree tree, RealParameter kappa) {
+		Frequencies freqs = new Frequencies();
+		freqs.initByName("data", data, "estimate", false);
+
+		HKY hky = new HKY();
+		hky.initByName("kappa", kappa, "frequencies", freqs);
+
+		SiteModel siteModel = new SiteModel();
+		siteModel.initByName("mutationRate", "1.0", "gammaCategoryCount", 4, "substModel", hky, "shape", "0.5");
+
+		TreeLikelihood likelihood = new TreeLikelihood();
+		likelihood.initByName("data", data, "tree", tree, "siteModel", siteModel, "scaling", "none");
+		return likelihood;
+	}
+
+	private Alignment filter(Alignment data, String sFilter) {
+		FilteredAlignment partition = new FilteredAlignment();
+		partition.initByName("data", data, "filter", sFilter);
+		return partition;
+	}
+
+	private void checkCounts(MultiPartitionProfiler profiler, int partition, long nMatrices, long nPartials, long nRoots) {
+		assertEquals(nMatrices, profiler.getOperationCount(MultiPartitionProfiler.MATRIX, partition), "matrix updates of partition " + partition);
+		assertEquals(nPartials, profiler.getOperationCount(MultiPartitionProfiler.PARTIALS, partition), "partial updates of partition " + partition);
+		assertEquals(nRoots, profiler.getOperationCount(MultiPartitionProfiler.ROOT, partition), "root integrations of partition " + partition);
+		assertEquals(0, profiler.getOperationCount(MultiPartitionProfiler.RESCALE, partition), "rescalings of partition " + partition);
+	}
+
+	@Test
+	public void testOperationCounts() throws Exception {
+		Alignment data = BEASTTestCase.getAlignment();
+		Tree tree = BEASTTestCase.getTree(data);
+		RealParameter [] kappas = {new RealParameter("1.0"), new RealParameter("29.739445")};
+
+		MultiPartitionTreeLikelihood tl = new MultiPartitionTreeLikelihood();
+		tl.initByName("distribution", newTreeLikelihood(filter(data, "1-300"), tree, kappas[0]),
+				"distribution", newTreeLikelihood(filter(data, "301-" + data.getSiteCount()), tree, kappas[1]),
+				"delayScalingUntillUnderflow", false);
+		assertEquals("Java", tl.getProcessor());
+
+		MultiPartitionProfiler profiler = new MultiPartitionProfiler();
+		profiler.initByName("likelihood", tl);
+		assertEquals(0, profiler.getEvaluationCount());
+
+		State state = new State();
+		state.initByName("stateNode", tree, "stateNode", kappas[0], "stateNode", kappas[1]);
+		state.initialise();
+		state.setPosterior(tl);
+
+		// the first evaluation updates every branch and internal node of both partitions
+		int nBranches = tree.getNodeCount() - 1;
+		int nInternalNodes = tree.getInternalNodeCount();
+		tl.calculateLogP();
+		assertEquals(1, profiler.getEvaluationCount());
+		checkCounts(profiler, 0, nBranches, nInternalNodes, 1);
+		checkCounts(profiler, 1, nBranches, nInternalNodes, 1);
+
+		// a change of kappa of the second partition only recalculates that partition
+		state.store(0);
+		kappas[1].setValue(5.0);
+		state.storeCalculationNodes();
+		state.checkCalculationNodesDirtiness();
+		tl.calculateLogP();
+		state.acceptCalculationNodes();
+		state.setEverythingDirty(false);
+		assertEquals(2, profiler.getEvaluationCount());
+		checkCounts(profiler, 0, nBranches, nInternalNodes, 1);
+		checkCounts(profiler, 1, 2 * nBranches, 2 * nInternalNodes, 2);
+	}
+}
@@ -0,0 +1,162 @@
+package test.beast.evolution.likelihood;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import beast.base.core.ProgramStatus;
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.alignment.FilteredAlignment;
+import beast.base.evolution.likelihood.TreeLikelihood;
+import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.substitutionmodel.Frequencies;
+import beast.base.evolution.substitutionmodel.HKY;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.State;
+import beast.base.inference.parameter.RealParameter;
+import beastlabs.evolution.likelihood.JavaMultiPartitionBeagle;
+import beastlabs.evolution.likelihood.MultiPartitionTreeLikelihood;
+import test.beast.BEASTTestCase;
+
+/** test MultiPartitionTreeLikelihood with the Java implementation against a TreeLikelihood per partition **/
+public class MultiPartitionTreeLikelihoodJavaTest {
+
+	@BeforeEach
+	public void setUp() {
+		System.setProperty(MultiPartitionTreeLikelihood.JAVA_IMPLEMENTATION_PROPERTY, "true");
+	}
+
+	@AfterEach
+	public void tearDown() {
+		System.clearProperty(MultiPartitionTreeLikelihood.JAVA_IMPLEMENTATION_PROPERTY);
+		System.clearProperty(MultiPartitionTreeLikelihood.MIN_PATTERNS_PER_TASK_PROPERTY);
+		ProgramStatus.m_nThreads = 1;
+	}
+
+	private TreeLikelihood newTreeLikelihood(Alignment data, Tree tree, RealParameter kappa, int categoryCount, String scaling) {
+		Frequencies freqs = new Frequencies();
+		freqs.initByName("data", data, "estimate", false);
+
+		HKY hky = new HKY();
+		hky.initByName("kappa", kappa, "frequencies", freqs);
+
+		SiteModel siteModel = new SiteModel();
+		siteModel.initByName("mutationRate", "1.0", "gammaCategoryCount", categoryCount, "substModel", hky, "shape", "0.5");
+
+		TreeLikelihood likelihood = new TreeLikelihood();
+		likelihood.initByName("data", data, "tree", tree, "siteModel", siteModel, "scaling", scaling);
+		return likelihood;
+	}
+
+	private Alignment filter(Alignment data, String sFilter) {
+		FilteredAlignment partition = new FilteredAlignment();
+		partition.initByName("data", data, "filter", sFilter);
+		return partition;
+	}
+
+	/** sum of likelihoods of the partitions, calculated from scratch **/
+	private double expectedLogP(Alignment [] partitions, Tree tree, RealParameter [] kappas, String scaling) {
+		double fLogP = 0;
+		for (int i = 0; i < partitions.length; i++) {
+			RealParameter kappa = new RealParameter(kappas[i].getValue().toString());
+			fLogP += newTreeLikelihood(partitions[i], tree, kappa, 4, scaling).calculateLogP();
+		}
+		return fLogP;
+	}
+
+	/** moves an internal node somewhere between its oldest child and its parent **/
+	private void moveNode(Tree tree, double fFraction) {
+		for (Node node : tree.getInternalNodes()) {
+			if (!node.isRoot()) {
+				double fChildHeight = Math.max(node.getLeft().getHeight(), node.getRight().getHeight());
+				node.setHeight(fChildHeight + fFraction * (node.getParent().getHeight() - fChildHeight));
+				return;
+			}
+		}
+	}
+
+	/** compares the multi-partition likelihood with the sum of likelihoods of the partitions, 
+	 * initially and after accepted and rejected changes of a branch length and of kappa **/
+	private void checkAgainstTreeLikelihoods(String scaling) throws Exception {
+		Alignment data = BEASTTestCase.getAlignment();
+		// partitions of different length, so they have different pattern counts
+		Alignment [] partitions = {filter(data, "1-300"), filter(data, "301-" + data.getSiteCount())};
+		Tree tree = BEASTTestCase.getTree(data);
+		RealParameter [] kappas = {new RealParameter("1.0"), new RealParameter("29.739445")};
+
+		MultiPartitionTreeLikelihood tl = new MultiPartitionTreeLikelihood();
+		tl.initByName("distribution", newTreeLikelihood(partitions[0], tree, kappas[0], 4, scaling),
+				"distribution", newTreeLikelihood(partitions[1], tree, kappas[1], 4, scaling),
+				"delayScalingUntillUnderflow", false);
+
+		State state = new State();
+		state.initByName("stateNode", tree, "stateNode", kappas[0], "stateNode", kappas[1]);
+		state.initialise();
+		state.setPosterior(tl);
+
+		double fLogP = tl.calculateLogP();
+		// calculate again: scale factors are disabled at initial calculateLogP
+		fLogP = tl.calculateLogP();
+		assertEquals(expectedLogP(partitions, tree, kappas, scaling), fLogP, BEASTTestCase.PRECISION);
+
+		for (int step = 0; step < 6; step++) {
+			state.store(step);
+			if (step % 2 == 0) {
+				moveNode(tree, 0.2 + 0.1 * step);
+			} else {
+				kappas[step / 2 % 2].setValue(2.0 + step);
+			}
+			state.storeCalculationNodes();
+			state.checkCalculationNodesDirtiness();
+			fLogP = tl.calculateLogP();
+			assertEquals(expectedLogP(partitions, tree, kappas, scaling), fLogP, BEASTTestCase.PRECISION, "step " + step);
+			if (step % 3 == 2) {
+				state.restore();
+				state.restoreCalculationNodes();
+				assertEquals(expectedLogP(partitions, tree, kappas, scaling), tl.getCurrentLogP(), BEASTTestCase.PRECISION, "restored step " + step);
+			} else {
+				state.acceptCalculationNodes();
+			}
+			state.setEverythingDirty(false);
+		}
+	}
+
+	@Test
+	public void testSingleThread() throws Exception {
+		ProgramStatus.m_nThreads = 1;
+		checkAgainstTreeLikelihoods("none");
+		checkAgainstTreeLikelihoods("always");
+	}
+
+	@Test
+	public void testPatternBlocks() throws Exception {
+		// small blocks, so patterns of every partition are split over the threads
+		ProgramStatus.m_nThreads = 4;
+		System.setProperty(MultiPartitionTreeLikelihood.MIN_PATTERNS_PER_TASK_PROPERTY, "4");
+		checkAgainstTreeLikelihoods("none");
+		checkAgainstTreeLikelihoods("always");
+	}
+
+	@Test
+	public void testStages() throws Exception {
+		// too few patterns to keep the threads busy, so operations at the same level run in parallel
+		ProgramStatus.m_nThreads = 4;
+		System.setProperty(MultiPartitionTreeLikelihood.MIN_PATTERNS_PER_TASK_PROPERTY, "1000");
+		checkAgainstTreeLikelihoods("none");
+		checkAgainstTreeLikelihoods("always");
+	}
+
+	@Test
+	public void testComplexEigenValuesRejected() {
+		JavaMultiPartitionBeagle beagle = new JavaMultiPartitionBeagle(2, 3, 2, 4, 10, 1, 4, 1, 2);
+		double [] eigenVectors = new double[16];
+		// real eigen values with zero imaginary parts are accepted
+		beagle.setEigenDecomposition(0, eigenVectors, eigenVectors, new double[]{0, -1, -1, -2, 0, 0, 0, 0});
+		assertThrows(UnsupportedOperationException.class,
+				() -> beagle.setEigenDecomposition(0, eigenVectors, eigenVectors, new double[]{0, -1, -1, -2, 0, 0.5, -0.5, 0}));
+	}
+}
@@ -0,0 +1,145 @@
+package test.beast.evolution.likelihood;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.core.ProgramStatus;
+import beast.base.inference.Distribution;
+import beast.base.inference.State;
+import beast.base.inference.parameter.RealParameter;
+import beastlabs.evolution.likelihood.SelfTuningCompoundDistribution;
+import beastlabs.evolution.likelihood.SelfTuningLogger;
+
+public class SelfTuningCompoundDistributionTest {
+	final static int SWITCH_COUNT = 20;
+
+	/** thread calling the compound distribution, and the time distributions take on it and on other threads **/
+	static volatile Thread callingThread;
+	static volatile long callingThreadDelay;
+	static volatile long otherThreadDelay;
+
+	/** distribution that takes a fixed time depending on the thread calculating it **/
+	public static class SleepingDistribution extends Distribution {
+		final public Input<RealParameter> xInput = new Input<>("x", "parameter that makes this distribution dirty", Validate.REQUIRED);
+
+		@Override
+		public void initAndValidate() {
+		}
+
+		@Override
+		public double calculateLogP() {
+			long nDelay = Thread.currentThread() == callingThread ? callingThreadDelay : otherThreadDelay;
+			if (nDelay > 0) {
+				try {
+					Thread.sleep(nDelay);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			logP = -xInput.get().getValue();
+			return logP;
+		}
+
+		@Override
+		public List<String> getArguments() {
+			return null;
+		}
+
+		@Override
+		public List<String> getConditions() {
+			return null;
+		}
+
+		@Override
+		public void sample(State state, Random random) {
+		}
+	}
+
+	@AfterEach
+	public void tearDown() {
+		ProgramStatus.m_nThreads = 1;
+		if (SelfTuningCompoundDistribution.exec != null) {
+			SelfTuningCompoundDistribution.exec.shutdownNow();
+		}
+	}
+
+	/** index of the configuration the distribution currently uses, as reported by its logger **/
+	private int currentConfiguration(SelfTuningLogger logger) {
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		logger.log(0, new PrintStream(buf, true));
+		return Integer.parseInt(buf.toString().split("\t")[0]);
+	}
+
+	/** runs samples from..to-1 as SelfTuningMCMC does, and returns the number of samples using the given configuration **/
+	private int runSamples(long from, long to, int iConfiguration, SelfTuningCompoundDistribution distribution,
+			SelfTuningLogger logger, State state, RealParameter x) {
+		int nCount = 0;
+		for (long sample = from; sample < to; sample++) {
+			distribution.update(sample);
+			state.store(sample);
+			x.setValue(0.1 * (sample % 10));
+			state.storeCalculationNodes();
+			state.checkCalculationNodesDirtiness();
+			distribution.calculateLogP();
+			state.acceptCalculationNodes();
+			state.setEverythingDirty(false);
+			if (currentConfiguration(logger) == iConfiguration) {
+				nCount++;
+			}
+		}
+		return nCount;
+	}
+
+	@Test
+	public void testContinueTuning() {
+		ProgramStatus.m_nThreads = 2;
+		callingThread = Thread.currentThread();
+
+		RealParameter x = new RealParameter("0.5");
+		SleepingDistribution distr1 = new SleepingDistribution();
+		distr1.initByName("x", x);
+		SleepingDistribution distr2 = new SleepingDistribution();
+		distr2.initByName("x", x);
+		SelfTuningCompoundDistribution distribution = new SelfTuningCompoundDistribution();
+		distribution.initByName("distribution", distr1, "distribution", distr2, "includeMPTL", false,
+				"switchCount", (long) SWITCH_COUNT, "explorationRate", 0.3, "recencyWeight", 0.5);
+		SelfTuningLogger logger = new SelfTuningLogger();
+		logger.initByName("distribution", distribution);
+
+		State state = new State();
+		state.initByName("stateNode", x);
+		state.initialise();
+		state.setPosterior(distribution);
+
+		// configuration 0 uses 1 thread, configuration 1 uses 2 threads
+		// first, calculating on the calling thread is fastest
+		callingThreadDelay = 0;
+		otherThreadDelay = 5;
+		runSamples(0, 10 * SWITCH_COUNT, 0, distribution, logger, state, x);
+		int nSamples = runSamples(10 * SWITCH_COUNT, 20 * SWITCH_COUNT, 0, distribution, logger, state, x);
+		assertTrue(nSamples > 5 * SWITCH_COUNT, "single thread used for " + nSamples + " samples only");
+
+		// then the threads get faster, and recency weighting should make the distribution switch over
+		callingThreadDelay = 5;
+		otherThreadDelay = 0;
+		runSamples(20 * SWITCH_COUNT, 30 * SWITCH_COUNT, 1, distribution, logger, state, x);
+		nSamples = runSamples(30 * SWITCH_COUNT, 40 * SWITCH_COUNT, 1, distribution, logger, state, x);
+		assertTrue(nSamples > 5 * SWITCH_COUNT, "two threads used for " + nSamples + " samples only");
+	}
+
+	@Test
+	public void testExplorationOffByDefault() {
+		SelfTuningCompoundDistribution distribution = new SelfTuningCompoundDistribution();
+		assertEquals(0.0, distribution.explorationRateInput.get(), 0.0);
+	}
+}
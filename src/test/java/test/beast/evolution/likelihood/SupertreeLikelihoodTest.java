@@ -0,0 +1,195 @@
+package test.beast.evolution.likelihood;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import beast.base.core.BEASTObject;
+import beast.base.evolution.alignment.Taxon;
+import beast.base.evolution.alignment.TaxonSet;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeInterface;
+import beast.base.evolution.tree.TreeMetric;
+import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.State;
+import beast.base.util.Randomizer;
+import beastlabs.evolution.likelihood.SupertreeLikelihood;
+import beastlabs.evolution.tree.RobinsonsFouldMetric;
+
+public class SupertreeLikelihoodTest {
+	final static double BETA = 0.7;
+
+	final static String [] SUBTREES = {
+			"((t1:1,t3:1):1,(t5:1,t6:1):1)",
+			"((t2:1,t4:1):1,t8:2)",
+			"(((t1:1,t2:1):1,t7:2):1,(t3:1,t8:1):2)",
+			"((t4:1,t5:1):1,(t6:1,t7:1):1)",
+			"(((t1:1,t2:1):1,t3:2):1,((t6:1,t7:1):1,t8:2):1)"
+	};
+
+	private RobinsonsFouldMetric newMetric() {
+		List<Taxon> taxa = new ArrayList<>();
+		for (int i = 1; i <= 8; i++) {
+			taxa.add(new Taxon("t" + i));
+		}
+		TaxonSet taxonset = new TaxonSet(taxa);
+		RobinsonsFouldMetric metric = new RobinsonsFouldMetric();
+		metric.initByName("taxonset", taxonset);
+		return metric;
+	}
+
+	private List<Tree> newSubtrees() {
+		List<Tree> subtrees = new ArrayList<>();
+		for (String newick : SUBTREES) {
+			subtrees.add(new TreeParser(newick));
+		}
+		return subtrees;
+	}
+
+	private SupertreeLikelihood newLikelihood(List<Tree> subtrees) {
+		SupertreeLikelihood likelihood = new SupertreeLikelihood();
+		for (Tree subtree : subtrees) {
+			likelihood.dataInput.setValue(subtree, likelihood);
+		}
+		return likelihood;
+	}
+
+	private double expectedLogP(TreeMetric metric, List<Tree> subtrees, TreeInterface tree) {
+		double logP = 0;
+		for (Tree subtree : subtrees) {
+			logP += -BETA * metric.distance(subtree, tree);
+		}
+		return logP;
+	}
+
+	private boolean isAncestor(Node ancestor, Node node) {
+		while (node != null) {
+			if (node == ancestor) {
+				return true;
+			}
+			node = node.getParent();
+		}
+		return false;
+	}
+
+	/** exchanges two random subtrees, as the wide Exchange operator does **/
+	private void exchange(Tree tree) {
+		int nodeCount = tree.getNodeCount();
+		while (true) {
+			Node i = tree.getNode(Randomizer.nextInt(nodeCount));
+			Node j = tree.getNode(Randomizer.nextInt(nodeCount));
+			if (i.isRoot() || j.isRoot() || i.getParent() == j.getParent() || isAncestor(i, j) || isAncestor(j, i)) {
+				continue;
+			}
+			Node iParent = i.getParent();
+			Node jParent = j.getParent();
+			iParent.removeChild(i);
+			jParent.removeChild(j);
+			iParent.addChild(j);
+			jParent.addChild(i);
+			i.makeDirty(Tree.IS_FILTHY);
+			j.makeDirty(Tree.IS_FILTHY);
+			return;
+		}
+	}
+
+	@Test
+	public void testRandomTopologyMoves() {
+		Randomizer.setSeed(127);
+		RobinsonsFouldMetric metric = newMetric();
+		List<Tree> subtrees = newSubtrees();
+		Tree tree = new TreeParser("((((t1:1,t2:1):1,t3:2):1,(t4:1,t5:1):2):1,((t6:1,t7:1):1,t8:2):2)");
+
+		SupertreeLikelihood likelihood = newLikelihood(subtrees);
+		likelihood.initByName("tree", tree, "beta", BETA, "treeMetric", newMetric());
+
+		State state = new State();
+		state.initByName("stateNode", tree);
+		state.initialise();
+		state.setPosterior(likelihood);
+		assertEquals(expectedLogP(metric, subtrees, tree), likelihood.calculateLogP(), 1e-10);
+
+		for (int sample = 0; sample < 500; sample++) {
+			state.store(sample);
+			exchange(tree);
+			state.storeCalculationNodes();
+			state.checkCalculationNodesDirtiness();
+			double logP = likelihood.calculateLogP();
+			assertEquals(expectedLogP(metric, subtrees, tree), logP, 1e-10, "sample " + sample);
+			if (Randomizer.nextBoolean()) {
+				state.acceptCalculationNodes();
+			} else {
+				state.restore();
+				state.restoreCalculationNodes();
+				assertEquals(expectedLogP(metric, subtrees, tree), likelihood.getCurrentLogP(), 1e-10, "restored sample " + sample);
+			}
+			state.setEverythingDirty(false);
+		}
+	}
+
+	/** metric that fails for every tree **/
+	public static class FailingMetric extends BEASTObject implements TreeMetric {
+		@Override
+		public void initAndValidate() {
+		}
+
+		@Override
+		public double distance(TreeInterface tree1, TreeInterface tree2) {
+			throw new IllegalArgumentException("cannot calculate distance");
+		}
+
+		@Override
+		public double distance(TreeInterface tree) {
+			throw new IllegalArgumentException("cannot calculate distance");
+		}
+
+		@Override
+		public void setReference(TreeInterface ref) {
+		}
+	}
+
+	/** thread safe metric: the number of leafs of the first tree **/
+	public static class LeafCountMetric extends BEASTObject implements TreeMetric {
+		@Override
+		public void initAndValidate() {
+		}
+
+		@Override
+		public double distance(TreeInterface tree1, TreeInterface tree2) {
+			return tree1.getLeafNodeCount();
+		}
+
+		@Override
+		public double distance(TreeInterface tree) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void setReference(TreeInterface ref) {
+		}
+	}
+
+	@Test
+	public void testThreads() {
+		Tree tree = new TreeParser("((((t1:1,t2:1):1,t3:2):1,(t4:1,t5:1):2):1,((t6:1,t7:1):1,t8:2):2)");
+		List<Tree> subtrees = newSubtrees();
+		SupertreeLikelihood likelihood = newLikelihood(subtrees);
+		likelihood.initByName("tree", tree, "beta", BETA,
+				"treeMetric", new LeafCountMetric(), "useThreads", true);
+		assertEquals(expectedLogP(new LeafCountMetric(), subtrees, tree), likelihood.calculateLogP(), 1e-10);
+	}
+
+	@Test
+	public void testThreadsRethrow() {
+		Tree tree = new TreeParser("((((t1:1,t2:1):1,t3:2):1,(t4:1,t5:1):2):1,((t6:1,t7:1):1,t8:2):2)");
+		SupertreeLikelihood likelihood = newLikelihood(newSubtrees());
+		likelihood.initByName("tree", tree, "beta", BETA,
+				"treeMetric", new FailingMetric(), "useThreads", true);
+		assertThrows(IllegalArgumentException.class, likelihood::calculateLogP);
+	}
+}
@@ -0,0 +1,131 @@
+package test.beast.evolution.sitemodel;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.evolution.substitutionmodel.Frequencies;
+import beast.base.evolution.substitutionmodel.HKY;
+import beast.base.inference.Distribution;
+import beast.base.inference.State;
+import beast.base.inference.parameter.RealParameter;
+import beastlabs.evolution.sitemodel.SiteModelGI;
+
+public class SiteModelGITest {
+
+	/** posterior depending on the category rates only **/
+	public static class RatesDistribution extends Distribution {
+		final public Input<SiteModelGI> siteModelInput = new Input<>("siteModel", "site model to get rates from", Validate.REQUIRED);
+
+		@Override
+		public void initAndValidate() {
+		}
+
+		@Override
+		public double calculateLogP() {
+			logP = 0;
+			for (double rate : siteModelInput.get().getCategoryRates(null)) {
+				logP += Math.log(rate);
+			}
+			return logP;
+		}
+
+		@Override
+		public List<String> getArguments() {
+			return null;
+		}
+
+		@Override
+		public List<String> getConditions() {
+			return null;
+		}
+
+		@Override
+		public void sample(State state, Random random) {
+		}
+	}
+
+	private SiteModelGI newSiteModel(RealParameter shape, RealParameter mu) {
+		Frequencies freqs = new Frequencies();
+		freqs.initByName("frequencies", new RealParameter("0.25 0.25 0.25 0.25"));
+		HKY hky = new HKY();
+		hky.initByName("kappa", "2.0", "frequencies", freqs);
+		SiteModelGI siteModel = new SiteModelGI();
+		siteModel.initByName("gammaCategoryCount", 4, "shape", shape, "mutationRate", mu, "substModel", hky);
+		return siteModel;
+	}
+
+	@Test
+	public void testCategoryProportionsAreCopies() {
+		SiteModelGI siteModel = newSiteModel(new RealParameter("0.5"), new RealParameter("1.0"));
+		double [] proportions = siteModel.getCategoryProportions(null);
+		assertArrayEquals(new double[]{0.25, 0.25, 0.25, 0.25}, proportions, 1e-15);
+		proportions[0] = 1.0;
+		assertEquals(0.25, siteModel.getCategoryProportions(null)[0], 1e-15);
+		assertEquals(0.25, siteModel.getProportionForCategory(0, null), 1e-15);
+	}
+
+	@Test
+	public void testRatesVersion() {
+		RealParameter shape = new RealParameter("0.5");
+		RealParameter mu = new RealParameter("1.0");
+		SiteModelGI siteModel = newSiteModel(shape, mu);
+		RatesDistribution posterior = new RatesDistribution();
+		posterior.initByName("siteModel", siteModel);
+
+		State state = new State();
+		state.initByName("stateNode", shape, "stateNode", mu);
+		state.initialise();
+		state.setPosterior(posterior);
+		posterior.calculateLogP();
+		long nVersion = siteModel.getRatesVersion();
+
+		// accepted shape change
+		state.store(0);
+		shape.setValue(1.0);
+		state.storeCalculationNodes();
+		state.checkCalculationNodesDirtiness();
+		posterior.calculateLogP();
+		state.acceptCalculationNodes();
+		state.setEverythingDirty(false);
+		assertNotEquals(nVersion, siteModel.getRatesVersion());
+		nVersion = siteModel.getRatesVersion();
+		double [] rates = siteModel.getCategoryRates(null);
+
+		// accepted mu change
+		state.store(1);
+		mu.setValue(2.0);
+		state.storeCalculationNodes();
+		state.checkCalculationNodesDirtiness();
+		posterior.calculateLogP();
+		state.acceptCalculationNodes();
+		state.setEverythingDirty(false);
+		assertNotEquals(nVersion, siteModel.getRatesVersion());
+		nVersion = siteModel.getRatesVersion();
+		for (int i = 0; i < rates.length; i++) {
+			rates[i] *= 2.0;
+		}
+		assertArrayEquals(rates, siteModel.getCategoryRates(null), 1e-12);
+
+		// rejected shape change
+		state.store(2);
+		shape.setValue(2.0);
+		state.storeCalculationNodes();
+		state.checkCalculationNodesDirtiness();
+		posterior.calculateLogP();
+		assertNotEquals(nVersion, siteModel.getRatesVersion());
+		nVersion = siteModel.getRatesVersion();
+		state.restore();
+		state.restoreCalculationNodes();
+		state.setEverythingDirty(false);
+		assertNotEquals(nVersion, siteModel.getRatesVersion());
+		assertArrayEquals(rates, siteModel.getCategoryRates(null), 1e-12);
+	}
+}
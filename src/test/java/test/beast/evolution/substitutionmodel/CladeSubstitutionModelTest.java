@@ -0,0 +1,125 @@
+package test.beast.evolution.substitutionmodel;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+import org.junit.jupiter.api.Test;
+
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.alignment.Taxon;
+import beast.base.evolution.alignment.TaxonSet;
+import beast.base.evolution.likelihood.TreeLikelihood;
+import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.substitutionmodel.Frequencies;
+import beast.base.evolution.substitutionmodel.HKY;
+import beast.base.evolution.substitutionmodel.SubstitutionModel;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.State;
+import beast.base.inference.parameter.RealParameter;
+import beastlabs.evolution.substitutionmodel.CladeSubstitutionModel;
+import test.beast.BEASTTestCase;
+
+public class CladeSubstitutionModelTest {
+	// leaf node numbers follow the order of the taxa in the alignment
+	final static int A = 0, B = 1, C = 2, D = 3;
+
+	HKY defaultModel;
+	HKY cladeModel;
+	CladeSubstitutionModel model;
+
+	/** checks node gets the transition probabilities of expected **/
+	private void assertModel(SubstitutionModel expected, Node node) {
+		double [] matrix = new double[16];
+		double [] expectedMatrix = new double[16];
+		model.getTransitionProbabilities(node, 1.0, 0.0, 1.0, matrix);
+		expected.getTransitionProbabilities(node, 1.0, 0.0, 1.0, expectedMatrix);
+		assertArrayEquals(expectedMatrix, matrix, 1e-12, "node " + node.getNr());
+	}
+
+	/** exchanges the subtrees below nodes i and j, as the Exchange operator does **/
+	private void exchange(Tree tree, int i, int j) {
+		Node iNode = tree.getNode(i);
+		Node jNode = tree.getNode(j);
+		Node iParent = iNode.getParent();
+		Node jParent = jNode.getParent();
+		iParent.removeChild(iNode);
+		jParent.removeChild(jNode);
+		iParent.addChild(jNode);
+		jParent.addChild(iNode);
+		iNode.makeDirty(Tree.IS_FILTHY);
+		jNode.makeDirty(Tree.IS_FILTHY);
+	}
+
+	@Test
+	public void testTopologyChange() throws Exception {
+		Alignment data = new BEASTTestCase().getFourTaxaNoData();
+		Tree tree = BEASTTestCase.getTree(data, "((A:1.0,B:1.0):1.0,(C:1.0,D:1.0):1.0)");
+
+		Frequencies freqs = new Frequencies();
+		freqs.initByName("frequencies", new RealParameter("0.2 0.3 0.4 0.1"));
+		defaultModel = new HKY();
+		defaultModel.initByName("kappa", "1.0", "frequencies", freqs);
+		cladeModel = new HKY();
+		cladeModel.initByName("kappa", "10.0", "frequencies", freqs);
+
+		TaxonSet clade = new TaxonSet();
+		clade.initByName("taxon", new Taxon("A"), "taxon", new Taxon("B"));
+		model = new CladeSubstitutionModel();
+		model.initByName("defaultModel", defaultModel, "cladeModel", cladeModel, "clades", clade,
+				"tree", tree, "taxa", data);
+
+		SiteModel siteModel = new SiteModel();
+		siteModel.initByName("substModel", model);
+		TreeLikelihood likelihood = new TreeLikelihood();
+		likelihood.initByName("data", data, "tree", tree, "siteModel", siteModel);
+
+		State state = new State();
+		state.initByName("stateNode", tree);
+		state.initialise();
+		state.setPosterior(likelihood);
+		likelihood.calculateLogP();
+
+		assertModel(cladeModel, tree.getNode(A));
+		assertModel(cladeModel, tree.getNode(B));
+		assertModel(cladeModel, tree.getNode(A).getParent());
+		assertModel(defaultModel, tree.getNode(C));
+		assertModel(defaultModel, tree.getNode(C).getParent());
+		assertModel(defaultModel, tree.getRoot());
+
+		// reject ((A,C),(B,D)): only leafs are filthy, but their new parents leave the clade
+		state.store(0);
+		exchange(tree, B, C);
+		state.storeCalculationNodes();
+		state.checkCalculationNodesDirtiness();
+		likelihood.calculateLogP();
+		assertModel(cladeModel, tree.getNode(A));
+		assertModel(cladeModel, tree.getNode(B));
+		assertModel(defaultModel, tree.getNode(A).getParent());
+		assertModel(defaultModel, tree.getNode(B).getParent());
+
+		state.restore();
+		state.restoreCalculationNodes();
+		assertModel(cladeModel, tree.getNode(A).getParent());
+		assertModel(defaultModel, tree.getNode(C).getParent());
+
+		// accept ((A,D),(C,B)), then move B back next to A
+		state.store(1);
+		exchange(tree, B, D);
+		state.storeCalculationNodes();
+		state.checkCalculationNodesDirtiness();
+		likelihood.calculateLogP();
+		state.acceptCalculationNodes();
+		assertModel(defaultModel, tree.getNode(A).getParent());
+		assertModel(defaultModel, tree.getNode(B).getParent());
+
+		state.store(2);
+		exchange(tree, B, D);
+		state.storeCalculationNodes();
+		state.checkCalculationNodesDirtiness();
+		likelihood.calculateLogP();
+		state.acceptCalculationNodes();
+		assertModel(cladeModel, tree.getNode(A).getParent());
+		assertModel(defaultModel, tree.getNode(C).getParent());
+		assertModel(defaultModel, tree.getRoot());
+	}
+}
@@ -2,6 +2,13 @@ package test.beast.evolution.substitutionmodel;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
 import org.junit.jupiter.api.Test;
 
 import beast.base.evolution.substitutionmodel.ComplexSubstitutionModel;
@@ -133,7 +140,98 @@ public class EpochSubtitutionModelTest {
 			assertEquals(Math.abs(probs[i] - epochProbs[i]) > 1e-10, true);
 		}
 	}
+
+	@Test
+	public void testCachedEpochs() {
+		RealParameter freqs = new RealParameter("0.2 0.3 0.4 0.1");
+		Frequencies frequencies = new Frequencies();
+		frequencies.initByName("frequencies", freqs);
+		ComplexSubstitutionModel model = new ComplexSubstitutionModel();
+		model.initByName("frequencies", frequencies, "rates", "1.0 2.0 3.0 4.0 5.0 6.0 7.0 8.0 9.0 10.0 11.0 12.0");
+		HKY model2 = new HKY();
+		model2.initByName("frequencies", frequencies, "kappa", "2.0");
+
+		// epochs 1 and 2 are completely spanned by the branch, so get cached
+		EpochSubstitutionModel cached = new EpochSubstitutionModel();
+		cached.initByName("frequencies", frequencies,
+				"model", model, 
+				"model", model2,
+				"model", model,
+				"model", model2,
+				"epochDates", realVec("0.1 0.2 0.4"),
+				"cacheSize", 2
+				);
+		EpochSubstitutionModel uncached = new EpochSubstitutionModel();
+		uncached.initByName("frequencies", frequencies,
+				"model", model, 
+				"model", model2,
+				"model", model,
+				"model", model2,
+				"epochDates", realVec("0.1 0.2 0.4"),
+				"cacheSize", 0
+				);
+		
+		// more rates than cache slots, and repeated rates, should give the same as without cache
+		double [] rates = {0.5, 1.0, 0.5, 2.0, 1.0, 0.5};
+		double [] probs = new double[4*4];
+		double [] cachedProbs = new double[4*4];
+		for (double rate : rates) {
+			uncached.getTransitionProbabilities(null, 0.5, 0.05, rate, probs);
+			cached.getTransitionProbabilities(null, 0.5, 0.05, rate, cachedProbs);
+			for (int i = 0; i < 4*4; i++) {
+				assertEquals(probs[i], cachedProbs[i], 1e-14);
+			}
+		}
+	}
 	
-	
-	
+
+	@Test
+	public void testSharedBetweenThreads() throws Exception {
+		RealParameter freqs = new RealParameter("0.2 0.3 0.4 0.1");
+		Frequencies frequencies = new Frequencies();
+		frequencies.initByName("frequencies", freqs);
+		HKY model = new HKY();
+		model.initByName("frequencies", frequencies, "kappa", "5.0");
+		HKY model2 = new HKY();
+		model2.initByName("frequencies", frequencies, "kappa", "2.0");
+
+		EpochSubstitutionModel uncached = new EpochSubstitutionModel();
+		uncached.initByName("frequencies", frequencies, "model", model, "model", model2, "model", model, "model", model2,
+				"epochDates", realVec("0.1 0.2 0.4"), "cacheSize", 0);
+		double [] rates = {0.5, 1.0, 2.0, 0.25, 4.0};
+		double [][] expected = new double[rates.length][16];
+		for (int i = 0; i < rates.length; i++) {
+			uncached.getTransitionProbabilities(null, 0.5, 0.05, rates[i], expected[i]);
+		}
+
+		// fewer slots than rates, so threads keep replacing slots while others read them
+		EpochSubstitutionModel cached = new EpochSubstitutionModel();
+		cached.initByName("frequencies", frequencies, "model", model, "model", model2, "model", model, "model", model2,
+				"epochDates", realVec("0.1 0.2 0.4"), "cacheSize", 2);
+		ExecutorService exec = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (int t = 0; t < 4; t++) {
+				final int offset = t;
+				for (EpochSubstitutionModel substModel : new EpochSubstitutionModel[]{cached, uncached}) {
+					futures.add(exec.submit(() -> {
+						double [] probs = new double[16];
+						for (int k = 0; k < 2000; k++) {
+							int i = (k + offset) % rates.length;
+							substModel.getTransitionProbabilities(null, 0.5, 0.05, rates[i], probs);
+							for (int j = 0; j < 16; j++) {
+								assertEquals(expected[i][j], probs[j], 1e-14);
+							}
+						}
+					}));
+				}
+			}
+			for (Future<?> future : futures) {
+				future.get(60, TimeUnit.SECONDS);
+			}
+		} finally {
+			exec.shutdownNow();
+		}
+	}
+
 }
@@ -0,0 +1,111 @@
+package test.beast.evolution.substitutionmodel;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.substitutionmodel.Frequencies;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.CompoundDistribution;
+import beast.base.inference.State;
+import beast.base.inference.parameter.RealParameter;
+import beastlabs.evolution.likelihood.ExperimentalTreeLikelihood;
+import beastlabs.evolution.substitutionmodel.GeneralLazySubstitutionModel;
+import test.beast.BEASTTestCase;
+
+public class GeneralLazySubstitutionModelTest {
+	final static double [] DISTANCES = {0.0123, 0.456, 1.789};
+
+	GeneralLazySubstitutionModel cachedModel;
+	GeneralLazySubstitutionModel uncachedModel;
+
+	private GeneralLazySubstitutionModel newModel(RealParameter rates, int nCacheSize) {
+		Frequencies freqs = new Frequencies();
+		freqs.initByName("frequencies", new RealParameter("0.2 0.3 0.4 0.1"));
+		GeneralLazySubstitutionModel model = new GeneralLazySubstitutionModel();
+		if (nCacheSize < 0) {
+			model.initByName("rates", rates, "frequencies", freqs);
+		} else {
+			model.initByName("rates", rates, "frequencies", freqs, "cacheSize", nCacheSize);
+		}
+		return model;
+	}
+
+	private ExperimentalTreeLikelihood newLikelihood(Alignment data, Tree tree, GeneralLazySubstitutionModel model) {
+		SiteModel siteModel = new SiteModel();
+		siteModel.initByName("substModel", model);
+		ExperimentalTreeLikelihood likelihood = new ExperimentalTreeLikelihood();
+		likelihood.initByName("data", data, "tree", tree, "siteModel", siteModel);
+		return likelihood;
+	}
+
+	/** @return matrices for DISTANCES from the cached model, after checking they are bit identical to those of the uncached model **/
+	private double [][] checkMatrices() {
+		double [][] matrices = new double[DISTANCES.length][16];
+		double [] expected = new double[16];
+		for (int i = 0; i < DISTANCES.length; i++) {
+			cachedModel.getTransitionProbabilities(null, DISTANCES[i], 0, 1.0, matrices[i]);
+			uncachedModel.getTransitionProbabilities(null, DISTANCES[i], 0, 1.0, expected);
+			assertArrayEquals(expected, matrices[i], "distance " + DISTANCES[i]);
+		}
+		return matrices;
+	}
+
+	@Test
+	public void testCache() throws Exception {
+		Alignment data = BEASTTestCase.getAlignment();
+		Tree tree = BEASTTestCase.getTree(data);
+		RealParameter rates = new RealParameter("1.0 2.0 1.0 1.0 2.0 1.0 1.0 2.0 1.0 1.0 2.0 1.0");
+		// default cacheSize and cacheResolution=0, so only exactly equal distances share a matrix
+		cachedModel = newModel(rates, -1);
+		uncachedModel = newModel(rates, 0);
+
+		CompoundDistribution posterior = new CompoundDistribution();
+		posterior.initByName("distribution", newLikelihood(data, tree, cachedModel),
+				"distribution", newLikelihood(data, tree, uncachedModel));
+		State state = new State();
+		state.initByName("stateNode", rates);
+		state.initialise();
+		state.setPosterior(posterior);
+		posterior.calculateLogP();
+
+		// first time the distances are seen they are calculated, then they come from the cache
+		long nHits = cachedModel.getCacheHits();
+		long nMisses = cachedModel.getCacheMisses();
+		double [][] matrices = checkMatrices();
+		assertEquals(nHits, cachedModel.getCacheHits());
+		assertEquals(nMisses + DISTANCES.length, cachedModel.getCacheMisses());
+		checkMatrices();
+		assertEquals(nHits + DISTANCES.length, cachedModel.getCacheHits());
+		assertEquals(nMisses + DISTANCES.length, cachedModel.getCacheMisses());
+		assertEquals(0, uncachedModel.getCacheHits() + uncachedModel.getCacheMisses());
+
+		// a parameter change makes the cache out of date
+		state.store(0);
+		rates.setValue(1, 5.0);
+		state.storeCalculationNodes();
+		state.checkCalculationNodesDirtiness();
+		posterior.calculateLogP();
+		nHits = cachedModel.getCacheHits();
+		nMisses = cachedModel.getCacheMisses();
+		checkMatrices();
+		assertEquals(nHits, cachedModel.getCacheHits());
+		assertEquals(nMisses + DISTANCES.length, cachedModel.getCacheMisses());
+
+		// so does restoring the old parameters, which should give the old matrices back
+		state.restore();
+		state.restoreCalculationNodes();
+		state.setEverythingDirty(false);
+		nHits = cachedModel.getCacheHits();
+		nMisses = cachedModel.getCacheMisses();
+		double [][] restoredMatrices = checkMatrices();
+		assertEquals(nHits, cachedModel.getCacheHits());
+		assertEquals(nMisses + DISTANCES.length, cachedModel.getCacheMisses());
+		for (int i = 0; i < DISTANCES.length; i++) {
+			assertArrayEquals(matrices[i], restoredMatrices[i], "distance " + DISTANCES[i]);
+		}
+	}
+}
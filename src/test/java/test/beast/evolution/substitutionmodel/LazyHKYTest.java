@@ -0,0 +1,76 @@
+package test.beast.evolution.substitutionmodel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.likelihood.TreeLikelihood;
+import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.substitutionmodel.Frequencies;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.spec.domain.PositiveReal;
+import beast.base.spec.inference.parameter.RealScalarParam;
+import beastlabs.evolution.likelihood.ExperimentalTreeLikelihood;
+import beastlabs.evolution.substitutionmodel.LazyHKY;
+import test.beast.BEASTTestCase;
+
+public class LazyHKYTest {
+
+	private LazyHKY newModel(String mode) {
+		Frequencies frequencies = new Frequencies();
+		frequencies.initByName("frequencies", new RealParameter("0.2 0.3 0.4 0.1"));
+		RealScalarParam<PositiveReal> theta = new RealScalarParam<>();
+		theta.initByName("value", "2.5");
+		LazyHKY model = new LazyHKY();
+		model.initByName("frequencies", frequencies, "kappa", "2.0", "mode", mode, "theta", theta);
+		return model;
+	}
+
+	@Test
+	public void testBatchMatchesPerBranch() {
+		double [] distances = {0.0, 0.001, 0.05, 0.3, 1.0, 4.0};
+		for (String mode : new String[]{"exponential", "gamma", "inverse_gamma"}) {
+			LazyHKY model = newModel(mode);
+			double [] matrices = new double[16 * distances.length];
+			model.getTransitionProbabilities(distances, distances.length, matrices);
+
+			double [] matrix = new double[16];
+			for (int i = 0; i < distances.length; i++) {
+				// rate 0.5 over twice the distance gives the same branch length
+				model.getTransitionProbabilities(null, 2 * distances[i], 0, 0.5, matrix);
+				for (int j = 0; j < 16; j++) {
+					assertEquals(matrix[j], matrices[16 * i + j], 1e-12, mode + " distance " + distances[i] + " entry " + j);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testBatchUsesCount() {
+		LazyHKY model = newModel("exponential");
+		double [] matrices = new double[16 * 3];
+		model.getTransitionProbabilities(new double[]{0.1, 0.2, 0.3}, 2, matrices);
+		for (int j = 0; j < 16; j++) {
+			assertEquals(0.0, matrices[32 + j], 0.0);
+		}
+	}
+
+	@Test
+	public void testTreeLikelihoodUsesBatch() throws Exception {
+		// ExperimentalTreeLikelihood gets the matrices of all categories of a branch in one batch call
+		Alignment data = BEASTTestCase.getAlignment();
+		Tree tree = BEASTTestCase.getTree(data);
+		for (String mode : new String[]{"exponential", "gamma"}) {
+			SiteModel siteModel = new SiteModel();
+			siteModel.initByName("gammaCategoryCount", 4, "shape", "0.5", "substModel", newModel(mode));
+
+			TreeLikelihood expected = new TreeLikelihood();
+			expected.initByName("data", data, "tree", tree, "siteModel", siteModel);
+			ExperimentalTreeLikelihood likelihood = new ExperimentalTreeLikelihood();
+			likelihood.initByName("data", data, "tree", tree, "siteModel", siteModel);
+			assertEquals(expected.calculateLogP(), likelihood.calculateLogP(), BEASTTestCase.PRECISION, mode);
+		}
+	}
+}
@@ -0,0 +1,93 @@
+package test.beast.inference;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import beastlabs.inference.MCMCMCCoordinator;
+
+public class MCMCMCCoordinatorTest {
+	final static int CHAINS = 4;
+	final static double DELTA_TEMPERATURE = 0.5;
+
+	/** reads the temperature of every chain, and checks they are a permutation of those of the levels **/
+	private double [] readTemperatures(DataInputStream [] in) throws Exception {
+		double [] temperature = new double[CHAINS];
+		int coldChains = 0;
+		for (int i = 0; i < CHAINS; i++) {
+			temperature[i] = in[i].readDouble();
+			if (temperature[i] == 1.0) {
+				coldChains++;
+			}
+		}
+		assertEquals(1, coldChains, "exactly one chain should run at temperature 1");
+
+		double [] sorted = temperature.clone();
+		Arrays.sort(sorted);
+		double [] levels = new double[CHAINS];
+		for (int i = 0; i < CHAINS; i++) {
+			levels[i] = 1 + i * DELTA_TEMPERATURE;
+		}
+		assertArrayEquals(levels, sorted, 1e-12);
+		return temperature;
+	}
+
+	@Test
+	public void testRounds() throws Exception {
+		MCMCMCCoordinator coordinator = new MCMCMCCoordinator(0, CHAINS, DELTA_TEMPERATURE, 2, 127);
+		Thread thread = new Thread(coordinator);
+		thread.start();
+		int port = coordinator.getLocalPort();
+		assertTrue(port > 0);
+
+		Socket [] sockets = new Socket[CHAINS];
+		DataInputStream [] in = new DataInputStream[CHAINS];
+		DataOutputStream [] out = new DataOutputStream[CHAINS];
+		// connect in another order than the chain numbers
+		for (int k = 0; k < CHAINS; k++) {
+			int i = CHAINS - 1 - k;
+			sockets[i] = new Socket(InetAddress.getLoopbackAddress(), port);
+			in[i] = new DataInputStream(new BufferedInputStream(sockets[i].getInputStream()));
+			out[i] = new DataOutputStream(new BufferedOutputStream(sockets[i].getOutputStream()));
+			out[i].writeInt(i);
+			out[i].flush();
+		}
+		double [] temperature = readTemperatures(in);
+		for (int i = 0; i < CHAINS; i++) {
+			assertEquals(1 + i * DELTA_TEMPERATURE, temperature[i], 1e-12);
+		}
+
+		Random random = new Random(127);
+		boolean swapped = false;
+		for (int round = 0; round < 200; round++) {
+			for (int i = 0; i < CHAINS; i++) {
+				// posteriors close together, so that swaps get accepted
+				out[i].writeDouble(-1000 + random.nextDouble());
+				out[i].flush();
+			}
+			double [] newTemperature = readTemperatures(in);
+			swapped = swapped || !Arrays.equals(temperature, newTemperature);
+			temperature = newTemperature;
+		}
+		assertTrue(swapped, "expected at least one accepted swap");
+
+		// chains are done: the coordinator should stop at end of stream
+		for (Socket socket : sockets) {
+			socket.close();
+		}
+		thread.join(10000);
+		assertFalse(thread.isAlive(), "coordinator should stop when the chains disconnect");
+	}
+}
@@ -0,0 +1,123 @@
+package test.beast.inference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+import java.io.File;
+import java.time.Duration;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.inference.Distribution;
+import beast.base.inference.State;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.parser.XMLParser;
+import beast.base.util.Randomizer;
+import beastlabs.inference.MCMCMC;
+
+public class MCMCMCTest {
+	final static int CHAINS = 4;
+	final static int ROUNDS = 50;
+	final static int RESAMPLE_EVERY = 10;
+
+	@TempDir
+	File tempDir;
+
+	/** log-normal density on x, which fails once in one of the chain threads when failOnce is set **/
+	public static class FailingDistribution extends Distribution {
+		final public Input<RealParameter> xInput = new Input<>("x", "parameter to calculate density for", Validate.REQUIRED);
+
+		static AtomicBoolean failOnce = new AtomicBoolean();
+
+		int nCalls = 0;
+
+		@Override
+		public void initAndValidate() {
+		}
+
+		@Override
+		public double calculateLogP() {
+			nCalls++;
+			// the first calls come from initialising the chain, later ones from its rounds,
+			// or from the main thread when proposing swaps
+			if (nCalls > 2 * RESAMPLE_EVERY && Thread.currentThread().getName().startsWith("MCMCMC chain")
+					&& failOnce.compareAndSet(true, false)) {
+				throw new IllegalStateException("chain failed");
+			}
+			double fLogX = Math.log(xInput.get().getValue());
+			logP = -fLogX * fLogX / 2 - fLogX;
+			return logP;
+		}
+
+		@Override
+		public List<String> getArguments() {
+			return null;
+		}
+
+		@Override
+		public List<String> getConditions() {
+			return null;
+		}
+
+		@Override
+		public void sample(State state, Random random) {
+		}
+	}
+
+	private MCMCMC newMCMCMC() throws Exception {
+		String sXML = "<beast version='2.7' namespace='beast.base.inference:beast.base.inference.parameter'>\n" +
+				"<run spec='" + MCMCMC.class.getName() + "' id='mcmcmc' chainLength='" + ROUNDS * RESAMPLE_EVERY + "'" +
+				" chains='" + CHAINS + "' resampleEvery='" + RESAMPLE_EVERY + "' swapsPerRound='2'" +
+				" tempDir='" + tempDir.getPath() + File.separator + "'>\n" +
+				"  <state id='state'>\n" +
+				"    <stateNode spec='RealParameter' id='x' value='1.0' lower='0.0'/>\n" +
+				"  </state>\n" +
+				"  <distribution spec='" + FailingDistribution.class.getName() + "' id='posterior' x='@x'/>\n" +
+				"  <operator spec='beast.base.evolution.operator.ScaleOperator' id='scale' parameter='@x' scaleFactor='0.5' weight='1'/>\n" +
+				"  <logger id='screenlog' logEvery='" + ROUNDS * RESAMPLE_EVERY + "'>\n" +
+				"    <log idref='x'/>\n" +
+				"  </logger>\n" +
+				"</run>\n" +
+				"</beast>\n";
+		return (MCMCMC) new XMLParser().parseFromString(sXML);
+	}
+
+	@Test
+	public void testSwapsPerRound() throws Exception {
+		Randomizer.setSeed(127);
+		FailingDistribution.failOnce.set(false);
+		MCMCMC mcmcmc = newMCMCMC();
+		mcmcmc.run();
+
+		// every round proposes two swaps between non-overlapping pairs of chains
+		long nProposed = 0;
+		for (int i = 0; i < CHAINS; i++) {
+			for (int j = i + 1; j < CHAINS; j++) {
+				nProposed += mcmcmc.getSwapsProposed(i, j);
+			}
+		}
+		assertEquals(2 * ROUNDS, nProposed);
+	}
+
+	@Test
+	public void testChainFailureStopsRun() throws Exception {
+		Randomizer.setSeed(127);
+		FailingDistribution.failOnce.set(false);
+		MCMCMC mcmcmc = newMCMCMC();
+		FailingDistribution.failOnce.set(true);
+
+		// the run should stop with the failure of the chain, instead of waiting for it forever
+		RuntimeException e = assertTimeoutPreemptively(Duration.ofSeconds(60),
+				() -> assertThrows(RuntimeException.class, mcmcmc::run));
+		assertInstanceOf(IllegalStateException.class, e.getCause());
+		assertEquals("chain failed", e.getCause().getMessage());
+	}
+}
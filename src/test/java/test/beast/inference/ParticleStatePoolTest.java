@@ -0,0 +1,167 @@
+package test.beast.inference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import beast.base.util.Randomizer;
+import beastlabs.inference.InMemoryParticlePool;
+import beastlabs.inference.MappedParticlePool;
+import beastlabs.inference.ParticleStatePool;
+
+public class ParticleStatePoolTest {
+	final static int PARTICLES = 6;
+	final static int ROUNDS = 200;
+
+	@TempDir
+	File tempDir;
+
+	/** state of particle i in round k **/
+	private static String state(int i, int k) {
+		return "particle " + i + " round " + k;
+	}
+
+	/**
+	 * Runs every particle in its own thread through ROUNDS exchanges, using pools[i % pools.length] for particle i,
+	 * and checks every particle gets either its own state or a state of another particle from the same round.
+	 */
+	private void runParticles(ParticleStatePool [] pools) throws Exception {
+		Randomizer.setSeed(127);
+		ExecutorService exec = Executors.newFixedThreadPool(PARTICLES);
+		try {
+			List<Future<Integer>> futures = new ArrayList<>();
+			for (int i = 0; i < PARTICLES; i++) {
+				final int iParticle = i;
+				final ParticleStatePool pool = pools[i % pools.length];
+				futures.add(exec.submit(() -> {
+					int nUpdates = 0;
+					for (int k = 0; k < ROUNDS; k++) {
+						String sNewState = pool.exchange(iParticle, state(iParticle, k), -iParticle);
+						if (sNewState != null) {
+							assertTrue(sNewState.endsWith(" round " + k), sNewState + " is not from round " + k);
+							nUpdates++;
+						}
+					}
+					return nUpdates;
+				}));
+			}
+			int nUpdates = 0;
+			for (Future<Integer> future : futures) {
+				nUpdates += future.get(60, TimeUnit.SECONDS);
+			}
+			// posteriors differ by 1 or more, so states should get copied
+			assertTrue(nUpdates > 0);
+		} finally {
+			exec.shutdownNow();
+		}
+	}
+
+	/** starts particles 0 and 1 exchanging and waiting for the others, and checks they stop once the pool aborts **/
+	private void checkAbort(ParticleStatePool pool0, ParticleStatePool pool1, ParticleStatePool aborting) throws Exception {
+		ExecutorService exec = Executors.newFixedThreadPool(2);
+		try {
+			Future<String> future0 = exec.submit(() -> pool0.exchange(0, state(0, 0), 0));
+			Future<String> future1 = exec.submit(() -> pool1.exchange(1, state(1, 0), 0));
+			assertThrows(TimeoutException.class, () -> future0.get(200, TimeUnit.MILLISECONDS));
+
+			aborting.abort();
+			for (Future<String> future : List.of(future0, future1)) {
+				try {
+					future.get(10, TimeUnit.SECONDS);
+					fail("exchange should fail after abort");
+				} catch (ExecutionException e) {
+					assertInstanceOf(BrokenBarrierException.class, e.getCause());
+				}
+			}
+			// particles arriving later do not wait either
+			assertThrows(BrokenBarrierException.class, () -> pool0.exchange(2, state(2, 0), 0));
+		} finally {
+			exec.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testInMemoryExchange() throws Exception {
+		runParticles(new ParticleStatePool[]{new InMemoryParticlePool(PARTICLES)});
+	}
+
+	@Test
+	public void testInMemoryExchangeAsync() throws Exception {
+		InMemoryParticlePool pool = new InMemoryParticlePool(PARTICLES);
+		ExecutorService exec = Executors.newFixedThreadPool(PARTICLES);
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (int i = 0; i < PARTICLES; i++) {
+				final int iParticle = i;
+				futures.add(exec.submit(() -> {
+					for (int k = 0; k < ROUNDS; k++) {
+						String sNewState = pool.exchangeAsync(iParticle, state(iParticle, k), -iParticle, 2.0);
+						if (sNewState != null) {
+							assertTrue(sNewState.startsWith("particle "), sNewState);
+							assertTrue(iParticle > 2, "particle " + iParticle + " is within the threshold of the best particle");
+						}
+					}
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get(60, TimeUnit.SECONDS);
+			}
+		} finally {
+			exec.shutdownNow();
+		}
+
+		// a particle far below the best one takes its state, others keep their own
+		InMemoryParticlePool pool2 = new InMemoryParticlePool(2);
+		assertNull(pool2.exchangeAsync(0, state(0, 0), 0, 10));
+		assertEquals(state(0, 0), pool2.exchangeAsync(1, state(1, 0), -1000, 10));
+		assertNull(pool2.exchangeAsync(0, state(0, 1), -5, 10));
+	}
+
+	@Test
+	public void testInMemoryAbort() throws Exception {
+		InMemoryParticlePool pool = new InMemoryParticlePool(3);
+		checkAbort(pool, pool, pool);
+	}
+
+	@Test
+	public void testMappedExchange() throws Exception {
+		String sFileName = new File(tempDir, "particles.bin").getPath();
+		// two instances mapping the same file, as two processes would
+		MappedParticlePool pool0 = new MappedParticlePool(sFileName, PARTICLES, 64);
+		MappedParticlePool pool1 = new MappedParticlePool(sFileName, PARTICLES, 64);
+		runParticles(new ParticleStatePool[]{pool0, pool1});
+	}
+
+	@Test
+	public void testMappedParticleCountMismatch() throws Exception {
+		String sFileName = new File(tempDir, "particles.bin").getPath();
+		new MappedParticlePool(sFileName, PARTICLES, 64);
+		assertThrows(IllegalArgumentException.class, () -> new MappedParticlePool(sFileName, PARTICLES + 1, 64));
+	}
+
+	@Test
+	public void testMappedAbort() throws Exception {
+		String sFileName = new File(tempDir, "particles.bin").getPath();
+		MappedParticlePool pool0 = new MappedParticlePool(sFileName, 3, 64);
+		MappedParticlePool pool1 = new MappedParticlePool(sFileName, 3, 64);
+		// the abort is seen through the file by particles using the other instance
+		checkAbort(pool0, pool1, pool1);
+	}
+}